@@ -1,7 +1,17 @@
 package io.pyroscope.http;
 
 public enum Format {
-    JFR ("jfr");
+    JFR ("jfr"),
+    /**
+     * A pprof profile converted from the JFR recording by the agent, see
+     * {@link io.pyroscope.javaagent.util.pprof.JfrToPprof}.
+     */
+    PPROF ("pprof"),
+    /**
+     * Collapsed stacks of the main profiling event, one upload per label set, see
+     * {@link io.pyroscope.javaagent.util.collapsed.JfrToCollapsed}.
+     */
+    COLLAPSED ("folded");
 
     /**
      * Profile data format, as expected by Pyroscope's HTTP API.
@@ -3,7 +3,9 @@ package io.pyroscope.http;
 public enum Units {
     SAMPLES ("samples"),
     OBJECTS ("objects"),
-    BYTES ("bytes");
+    BYTES ("bytes"),
+    LOCK_SAMPLES ("lock_samples"),
+    LOCK_NANOSECONDS ("lock_nanoseconds");
 
     /**
     * Pyroscope units id, as expected by Pyroscope's HTTP API.
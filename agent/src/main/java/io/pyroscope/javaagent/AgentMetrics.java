@@ -0,0 +1,182 @@
+package io.pyroscope.javaagent;
+
+import io.pyroscope.labels.Pyroscope;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the agent's own work: dumps, the labels registry, the export queue and uploads.
+ * <p>
+ * Counters are cumulative since the start of the process, durations are in nanoseconds, sizes in bytes.
+ * Recording and reading do not allocate, the getters are the pull API and the attributes of the
+ * {@link AgentMetricsMBean} registered with {@link io.pyroscope.javaagent.config.Config#metricsJmx}.
+ * Only one export queue is tracked, the one of the most recently created exporter.
+ */
+public final class AgentMetrics implements AgentMetricsMBean {
+    public static final String OBJECT_NAME = "io.pyroscope:type=AgentMetrics";
+    public static final AgentMetrics INSTANCE = new AgentMetrics();
+
+    private final AtomicLong dumps = new AtomicLong();
+    private final AtomicLong dumpNanos = new AtomicLong();
+    private volatile long lastDumpNanos;
+    private final AtomicLong jfrBytes = new AtomicLong();
+    private final AtomicLong labelsBytes = new AtomicLong();
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong uploadFailures = new AtomicLong();
+    private final AtomicLong uploadRetries = new AtomicLong();
+    private final AtomicLong uploadNanos = new AtomicLong();
+    private volatile long lastUploadNanos;
+    private final AtomicLong uploadBytes = new AtomicLong();
+    private volatile OverfillQueue<?> queue;
+
+    private AgentMetrics() {
+    }
+
+    /**
+     * Records a profile dump: the time the profiler was paused for it plus the time it took to build the snapshot.
+     */
+    public void recordDump(long nanos, long jfrBytes, long labelsBytes) {
+        dumps.incrementAndGet();
+        dumpNanos.addAndGet(nanos);
+        lastDumpNanos = nanos;
+        this.jfrBytes.addAndGet(jfrBytes);
+        this.labelsBytes.addAndGet(labelsBytes);
+    }
+
+    /**
+     * Records an upload attempt.
+     *
+     * @param nanos    time from sending the request to receiving the response or the error
+     * @param bytes    size of the request body, after compression
+     * @param accepted true if the server accepted the snapshot
+     */
+    public void recordUpload(long nanos, long bytes, boolean accepted) {
+        uploadNanos.addAndGet(nanos);
+        lastUploadNanos = nanos;
+        if (accepted) {
+            uploads.incrementAndGet();
+            uploadBytes.addAndGet(bytes);
+        }
+    }
+
+    public void recordUploadRetry() {
+        uploadRetries.incrementAndGet();
+    }
+
+    /**
+     * Records a snapshot which was given up after failed upload attempts.
+     */
+    public void recordUploadFailure() {
+        uploadFailures.incrementAndGet();
+    }
+
+    public void setQueue(OverfillQueue<?> queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * Registers the MBean with the platform MBean server, does nothing if it is registered already.
+     */
+    public static void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(INSTANCE, name);
+        }
+    }
+
+    public static void unregisterMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Override
+    public long getDumps() {
+        return dumps.get();
+    }
+
+    @Override
+    public long getDumpNanos() {
+        return dumpNanos.get();
+    }
+
+    @Override
+    public long getLastDumpNanos() {
+        return lastDumpNanos;
+    }
+
+    @Override
+    public long getJfrBytes() {
+        return jfrBytes.get();
+    }
+
+    @Override
+    public long getLabelsBytes() {
+        return labelsBytes.get();
+    }
+
+    @Override
+    public int getLiveContexts() {
+        return Pyroscope.getContextCount();
+    }
+
+    @Override
+    public int getLiveStrings() {
+        return Pyroscope.getStringCount();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        OverfillQueue<?> q = queue;
+        return q != null ? q.size() : 0;
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        OverfillQueue<?> q = queue;
+        return q != null ? q.capacity() : 0;
+    }
+
+    @Override
+    public long getQueueDropped() {
+        OverfillQueue<?> q = queue;
+        return q != null ? q.dropped() : 0;
+    }
+
+    @Override
+    public long getUploads() {
+        return uploads.get();
+    }
+
+    @Override
+    public long getUploadFailures() {
+        return uploadFailures.get();
+    }
+
+    @Override
+    public long getUploadRetries() {
+        return uploadRetries.get();
+    }
+
+    @Override
+    public long getUploadNanos() {
+        return uploadNanos.get();
+    }
+
+    @Override
+    public long getLastUploadNanos() {
+        return lastUploadNanos;
+    }
+
+    @Override
+    public long getUploadBytes() {
+        return uploadBytes.get();
+    }
+}
@@ -0,0 +1,38 @@
+package io.pyroscope.javaagent;
+
+/**
+ * JMX view of {@link AgentMetrics}, registered as {@value AgentMetrics#OBJECT_NAME}.
+ */
+public interface AgentMetricsMBean {
+    long getDumps();
+
+    long getDumpNanos();
+
+    long getLastDumpNanos();
+
+    long getJfrBytes();
+
+    long getLabelsBytes();
+
+    int getLiveContexts();
+
+    int getLiveStrings();
+
+    int getQueueDepth();
+
+    int getQueueCapacity();
+
+    long getQueueDropped();
+
+    long getUploads();
+
+    long getUploadFailures();
+
+    long getUploadRetries();
+
+    long getUploadNanos();
+
+    long getLastUploadNanos();
+
+    long getUploadBytes();
+}
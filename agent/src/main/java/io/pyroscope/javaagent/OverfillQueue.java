@@ -1,8 +1,9 @@
 package io.pyroscope.javaagent;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 /**
  * <p>A blocking queue with a limited capacity.</p>
@@ -10,61 +11,165 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p>When the queue is attempted to put a new element and is overfilled, the oldest element is dropped
  * so the capacity limit is preserved.</p>
  *
+ * <p>The queue is a lock-free ring buffer which supports multiple producers and a single consumer.
+ * Every slot carries a sequence number telling whether it is ready to be written or read, producers and
+ * the consumer claim slots by advancing the tail and the head with a CAS. A producer that finds the queue full
+ * claims the head slot like the consumer does and drops its element. Only {@link #take()} blocks, by parking
+ * the consumer thread until a producer wakes it up.</p>
+ *
  * @param <E> the type of elements.
  */
 public final class OverfillQueue<E> {
-    private final ArrayBlockingQueue<E> innerQueue;
-    // Guards innerQueue.
-    private final ReentrantLock lock = new ReentrantLock(false);
-    private final Condition notEmpty = lock.newCondition();
+    private final int capacity;
+    private final Object[] elements;
+    // Sequence number of every slot: equals the tail position when the slot is free to write,
+    // the head position + 1 when it is ready to read.
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Consumer<E> onDrop;
+    // The consumer thread parked in take(), if any.
+    private volatile Thread waiter;
 
     public OverfillQueue(final int capacity) {
+        this(capacity, e -> {
+        });
+    }
+
+    /**
+     * @param onDrop called with every element dropped from the head of the queue, on the thread that put
+     *               the element which displaced it
+     */
+    public OverfillQueue(final int capacity, final Consumer<E> onDrop) {
         if (capacity < 1) {
             throw new IllegalArgumentException("Capacity must be >= 1");
         }
-        this.innerQueue = new ArrayBlockingQueue<>(capacity);
+        this.capacity = capacity;
+        this.elements = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.onDrop = onDrop;
     }
 
     /**
      * Inserts the specified element at the tail of this queue if it is
      * possible to do so without exceeding the queue's capacity. If not,
      * drops one element from the head of the queue.
+     * <p>
+     * Never blocks, the checked exception is kept for compatibility.
      */
     public void put(final E element) throws InterruptedException {
-        lock.lockInterruptibly();
-        try {
-            boolean offerSuccessful = innerQueue.offer(element);
-            if (offerSuccessful) {
-                notEmpty.signal();
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        while (!offer(element)) {
+            // Drop one old element to ensure the capacity for the new one.
+            final E old = poll();
+            if (old != null) {
+                dropped.incrementAndGet();
+                onDrop.accept(old);
             } else {
-                // Drop one old element to ensure the capacity for the new one.
-                innerQueue.poll();
-                offerSuccessful = innerQueue.offer(element);
-                if (offerSuccessful) {
-                    notEmpty.signal();
-                } else {
-                    // Doing this as a sanity check.
-                    throw new RuntimeException("innerQueue.offer was not successful");
-                }
+                // The head slot is being read by another thread, it is about to be freed.
+                Thread.yield();
             }
-        } finally {
-            lock.unlock();
+        }
+        final Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
         }
     }
 
     /**
      * Retrieves and removes the head of this queue, waiting for the element to become available if needed.
+     * Must only be called from a single consumer thread at a time.
      */
     public E take() throws InterruptedException {
-        lock.lockInterruptibly();
+        E result = poll();
+        if (result != null) {
+            return result;
+        }
+        waiter = Thread.currentThread();
         try {
-            E result;
-            while ((result = innerQueue.poll()) == null) {
-                notEmpty.await();
+            // put() unparks after publishing the element, re-checking after setting the waiter does not miss it
+            while ((result = poll()) == null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                LockSupport.park(this);
             }
             return result;
         } finally {
-            lock.unlock();
+            waiter = null;
+        }
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, or returns null if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        while (true) {
+            final long pos = head.get();
+            final int i = index(pos);
+            final long dif = sequences.get(i) - (pos + 1);
+            if (dif == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    final E e = (E) elements[i];
+                    elements[i] = null;
+                    sequences.set(i, pos + capacity);
+                    return e;
+                }
+            } else if (dif < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return the number of elements in the queue, may be stale by the time it returns
+     */
+    public int size() {
+        while (true) {
+            final long h = head.get();
+            final long t = tail.get();
+            if (h == head.get()) {
+                return (int) Math.max(0, Math.min(capacity, t - h));
+            }
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of elements dropped to make room for new ones since the queue was created
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    private boolean offer(final E element) {
+        while (true) {
+            final long pos = tail.get();
+            final int i = index(pos);
+            final long dif = sequences.get(i) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements[i] = element;
+                    sequences.set(i, pos + 1);
+                    return true;
+                }
+            } else if (dif < 0) {
+                return false;
+            }
         }
     }
+
+    private int index(final long pos) {
+        return (int) (pos % capacity);
+    }
 }
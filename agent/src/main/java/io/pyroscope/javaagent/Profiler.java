@@ -2,27 +2,56 @@ package io.pyroscope.javaagent;
 
 import io.pyroscope.http.Format;
 import io.pyroscope.javaagent.config.Config;
+import io.pyroscope.javaagent.util.collapsed.JfrToCollapsed;
+import io.pyroscope.javaagent.util.jfr.ContextIds;
+import io.pyroscope.javaagent.util.pprof.JfrToPprof;
 import io.pyroscope.labels.Pyroscope;
 import io.pyroscope.labels.io.pyroscope.PyroscopeAsyncProfiler;
+import io.pyroscope.labels.pb.JfrLabels;
+import okio.Buffer;
 import one.profiler.AsyncProfiler;
-import one.profiler.Counter;
 
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.LongPredicate;
+import java.util.regex.Pattern;
 
 public final class Profiler {
     private Config config;
     private EventType eventType;
     private String alloc;
     private String lock;
+    private String wall;
     private Duration interval;
+    // the interval of the running recording, reset() only changes the interval of the next one
+    private Duration recordingInterval;
     private Format format;
     private File tempJFRFile;
+    // Double buffered recording files for rotate(), tempJFRFile is one of them. A buffer is free
+    // once the snapshot of the recording it holds has been built.
+    private File[] jfrBuffers;
+    private final Semaphore[] jfrBufferFree = {new Semaphore(0), new Semaphore(1)};
+    private int jfrBuffer = 0;
+    private boolean threadFilter;
+    private Pattern threadNames;
+    // threads registered with addThread(), async-profiler forgets them on every start
+    private final Set<Thread> threads = Collections.newSetFromMap(new WeakHashMap<>());
 
     private final AsyncProfiler instance = PyroscopeAsyncProfiler.getAsyncProfiler();
 
@@ -30,19 +59,30 @@ public final class Profiler {
         reset(config);
     }
 
-    public void reset(final Config config) {
+    /**
+     * Applies the config to the next start of the profiler, the running recording keeps its settings.
+     */
+    public synchronized void reset(final Config config) {
         this.config = config;
         this.alloc = config.profilingAlloc;
         this.lock = config.profilingLock;
+        this.wall = config.profilingWall;
         this.eventType = config.profilingEvent;
         this.interval = config.profilingInterval;
         this.format = config.format;
+        this.threadNames = config.profilingThreadNames == null || config.profilingThreadNames.isEmpty()
+            ? null : Pattern.compile(config.profilingThreadNames);
+        this.threadFilter = config.profilingThreadFilter || threadNames != null;
 
-        if (format == Format.JFR && null == tempJFRFile) {
+        if (null == tempJFRFile) {
             try {
                 // flight recorder is built on top of a file descriptor, so we need a file.
-                tempJFRFile = File.createTempFile("pyroscope", ".jfr");
-                tempJFRFile.deleteOnExit();
+                jfrBuffers = new File[2];
+                for (int i = 0; i < jfrBuffers.length; i++) {
+                    jfrBuffers[i] = File.createTempFile("pyroscope", ".jfr");
+                    jfrBuffers[i].deleteOnExit();
+                }
+                tempJFRFile = jfrBuffers[jfrBuffer];
             } catch (IOException e) {
                 throw new IllegalStateException(e);
             }
@@ -53,14 +93,71 @@ public final class Profiler {
      * Start async-profiler
      */
     public synchronized void start() {
-        if (format == Format.JFR) {
-            try {
-                instance.execute(createJFRCommand());
-            } catch (IOException e) {
-                throw new IllegalStateException(e);
+        recordingInterval = interval;
+        try {
+            instance.execute(createJFRCommand());
+            if (threadFilter) {
+                applyThreadFilter();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds the thread to the profiled threads when {@link Config#profilingThreadFilter} is enabled, otherwise
+     * only remembers it for the case the filter gets enabled by {@link #reset(Config)}.
+     * async-profiler applies the filter to every event of the recording, CPU, wall-clock, allocation and lock
+     * events of other threads are dropped.
+     * Threads are held weakly, a terminated thread does not need to be removed.
+     */
+    public synchronized void addThread(Thread thread) {
+        threads.add(thread);
+        if (threadFilter) {
+            instance.addThread(thread);
+        }
+    }
+
+    /**
+     * Removes a thread added with {@link #addThread(Thread)}. A thread which matches
+     * {@link Config#profilingThreadNames} stays profiled until the next restart of the profiler.
+     */
+    public synchronized void removeThread(Thread thread) {
+        threads.remove(thread);
+        if (threadFilter) {
+            instance.removeThread(thread);
+        }
+    }
+
+    /**
+     * The filter is empty after each start, add the registered threads and the live threads matching the name
+     * pattern again. Matching threads started later are only picked up by the next start, i.e. the next upload
+     * interval, none of their events are recorded until then. Register them with {@link #addThread(Thread)}
+     * to profile them right away.
+     */
+    private void applyThreadFilter() {
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                instance.addThread(thread);
+            }
+        }
+        if (threadNames == null) {
+            return;
+        }
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        Thread[] live;
+        int n;
+        do {
+            live = new Thread[root.activeCount() * 2 + 1];
+            n = root.enumerate(live, true);
+        } while (n == live.length);
+        for (int i = 0; i < n; i++) {
+            if (threadNames.matcher(live[i].getName()).matches()) {
+                instance.addThread(live[i]);
             }
-        } else {
-            instance.start(eventType.id, interval.toNanos());
         }
     }
 
@@ -78,23 +175,138 @@ public final class Profiler {
      * @return Profiling data and dynamic labels as {@link Snapshot}
      */
     public synchronized Snapshot dumpProfile(Instant started, Instant ended) {
-        return dumpImpl(started, ended);
+        long start = System.nanoTime();
+        Snapshot snapshot = dumpImpl(started, ended);
+        recordDump(System.nanoTime() - start, snapshot);
+        return snapshot;
+    }
+
+
+
+    /**
+     * Ends the running profiling interval and starts the next one right away, leaving the expensive part of the dump
+     * to {@link Rotation#snapshot()} which may run on another thread while the next interval is being profiled.
+     * <p>
+     * For JFR the next recording goes to the other one of two buffer files, so the profiler is only paused for
+     * the restart. The labels are dumped after the restart: context ids are never reused and a context is only
+     * collected by the dump that emits it, so the dump resolves every context id of the finished recording.
+     * With {@link Config#labelsPruneUnreferenced} the finished recording is scanned for context ids after
+     * the restart too, the next interval is already being profiled meanwhile.
+     * If the snapshot of the previous use of the buffer is not built yet, this waits for it.
+     *
+     * @param started - time when profiling has been started
+     * @param ended - time when profiling has ended
+     */
+    public synchronized Rotation rotate(Instant started, Instant ended) {
+        final long pauseStart = System.nanoTime();
+        final int next = 1 - jfrBuffer;
+        jfrBufferFree[next].acquireUninterruptibly();
+        final File finished = tempJFRFile;
+        final int finishedBuffer = jfrBuffer;
+        final Duration finishedInterval = recordingInterval;
+        final JfrLabels.Snapshot labels;
+        try {
+            stop();
+            if (config.gcBeforeDump) {
+                System.gc();
+            }
+            jfrBuffer = next;
+            tempJFRFile = jfrBuffers[next];
+            start();
+            LongPredicate referencedContexts = config.labelsPruneUnreferenced ? referencedContexts(finished) : null;
+            labels = dumpLabels(referencedContexts);
+        } catch (RuntimeException e) {
+            // free the buffer that is not recording, the finished recording is lost if the restart or the labels dump failed
+            jfrBufferFree[jfrBuffer == next ? finishedBuffer : next].release();
+            throw e;
+        }
+        return new Rotation(this, finishedBuffer, finished, format, eventType, eventTypes(), config.jfrFileSnapshots,
+            config.collapsedMaxLabelSets, finishedInterval, started, ended, labels, System.nanoTime() - pauseStart);
     }
 
+    /**
+     * The finished interval of {@link #rotate(Instant, Instant)}.
+     * The settings of the recording are captured by the rotation, the profiler may be reconfigured before
+     * the snapshot is built on another thread.
+     */
+    public static final class Rotation {
+        private final Profiler profiler;
+        private final int buffer;
+        private final File file;
+        private final Format format;
+        private final EventType eventType;
+        private final Set<EventType> eventTypes;
+        private final boolean jfrFileSnapshots;
+        private final int collapsedMaxLabelSets;
+        private final Duration interval;
+        private final Instant started;
+        private final Instant ended;
+        private final JfrLabels.Snapshot labels;
+        private final long pauseNanos;
 
+        private Rotation(Profiler profiler, int buffer, File file, Format format, EventType eventType, Set<EventType> eventTypes,
+                         boolean jfrFileSnapshots, int collapsedMaxLabelSets, Duration interval, Instant started, Instant ended,
+                         JfrLabels.Snapshot labels, long pauseNanos) {
+            this.profiler = profiler;
+            this.buffer = buffer;
+            this.file = file;
+            this.format = format;
+            this.eventType = eventType;
+            this.eventTypes = eventTypes;
+            this.jfrFileSnapshots = jfrFileSnapshots;
+            this.collapsedMaxLabelSets = collapsedMaxLabelSets;
+            this.interval = interval;
+            this.started = started;
+            this.ended = ended;
+            this.labels = labels;
+            this.pauseNanos = pauseNanos;
+        }
+
+        /**
+         * Builds the snapshot of the finished interval and frees its recording buffer. Must be called exactly once,
+         * also when the snapshot is not needed, otherwise the rotation after next blocks.
+         */
+        public Snapshot snapshot() {
+            long start = System.nanoTime();
+            try {
+                final Snapshot built;
+                if (format == Format.PPROF) {
+                    built = pprofSnapshot(eventType, eventTypes, interval, started, ended, file, labels);
+                } else if (format == Format.COLLAPSED) {
+                    built = profiler.collapsedSnapshot(eventType, eventTypes, jfrFileSnapshots, collapsedMaxLabelSets,
+                        interval, started, ended, file, labels);
+                } else {
+                    built = jfrFileSnapshots
+                        ? new Snapshot(format, eventType, eventTypes, interval, started, ended, null, handOffJFR(file), labels)
+                        : new Snapshot(format, eventType, eventTypes, interval, started, ended, readJFR(file), null, labels);
+                }
+                recordDump(pauseNanos + System.nanoTime() - start, built);
+                return built;
+            } finally {
+                profiler.jfrBufferFree[buffer].release();
+            }
+        }
+    }
 
     private String createJFRCommand() {
         StringBuilder sb = new StringBuilder();
         sb.append("start,event=").append(eventType.id);
-        if (alloc != null && !alloc.isEmpty()) {
+        if (recordsAlloc()) {
             sb.append(",alloc=").append(alloc);
             if (config.allocLive) {
                 sb.append(",live");
             }
         }
-        if (lock != null && !lock.isEmpty()) {
+        if (recordsLock()) {
             sb.append(",lock=").append(lock);
         }
+        if (recordsWall()) {
+            sb.append(",wall=").append(wall);
+        }
+        if (threadFilter) {
+            // an empty filter, threads are added after the start, applies to all events
+            sb.append(",filter=");
+        }
         sb.append(",interval=").append(interval.toNanos())
             .append(",file=").append(tempJFRFile.toString());
         if (config.APLogLevel != null) {
@@ -107,30 +319,181 @@ public final class Profiler {
         return sb.toString();
     }
 
+    /**
+     * async-profiler writes wall clock samples recorded along with another event as execution samples,
+     * a pprof profile could not tell them apart from the samples of the main event.
+     */
+    private boolean recordsWall() {
+        return wall != null && !wall.isEmpty() && eventType != EventType.WALL && format == Format.JFR;
+    }
+
+    // a collapsed stack has a single value, only the main event is recorded, Config warns about the others
+    private boolean recordsAlloc() {
+        return alloc != null && !alloc.isEmpty() && (format != Format.COLLAPSED || eventType == EventType.ALLOC);
+    }
+
+    private boolean recordsLock() {
+        return lock != null && !lock.isEmpty() && (format != Format.COLLAPSED || eventType == EventType.LOCK);
+    }
+
+    /**
+     * @return the events recorded in one session, all of them end up in the same JFR recording.
+     * The JFR format uploads all of them, pprof converts every one of them into sample types of their own,
+     * collapsed stacks record only the main event.
+     */
+    private Set<EventType> eventTypes() {
+        Set<EventType> types = EnumSet.of(eventType);
+        if (recordsAlloc()) {
+            types.add(EventType.ALLOC);
+        }
+        if (recordsLock()) {
+            types.add(EventType.LOCK);
+        }
+        if (recordsWall()) {
+            types.add(EventType.WALL);
+        }
+        return types;
+    }
+
     private Snapshot dumpImpl(Instant started, Instant ended) {
         if (config.gcBeforeDump) {
             System.gc();
         }
-        final byte[] data;
-        if (format == Format.JFR) {
-            data = dumpJFR();
-        } else {
-            data = instance.dumpCollapsed(Counter.SAMPLES).getBytes(StandardCharsets.UTF_8);
+        if (format == Format.PPROF || format == Format.COLLAPSED) {
+            LongPredicate referencedContexts = config.labelsPruneUnreferenced ? referencedContexts(tempJFRFile) : null;
+            JfrLabels.Snapshot labels = dumpLabels(referencedContexts);
+            return format == Format.PPROF
+                ? pprofSnapshot(eventType, eventTypes(), recordingInterval, started, ended, tempJFRFile, labels)
+                : collapsedSnapshot(eventType, eventTypes(), config.jfrFileSnapshots, config.collapsedMaxLabelSets,
+                    recordingInterval, started, ended, tempJFRFile, labels);
+        }
+        if (config.jfrFileSnapshots) {
+            File file = handOffJFR(tempJFRFile);
+            LongPredicate referencedContexts = config.labelsPruneUnreferenced ? referencedContexts(file) : null;
+            return new Snapshot(
+                format,
+                eventType,
+                eventTypes(),
+                recordingInterval,
+                started,
+                ended,
+                null,
+                file,
+                dumpLabels(referencedContexts)
+            );
         }
+        final byte[] data = readJFR(tempJFRFile);
+        LongPredicate referencedContexts = config.labelsPruneUnreferenced ? referencedContexts(tempJFRFile) : null;
         return new Snapshot(
             format,
             eventType,
+            eventTypes(),
+            recordingInterval,
             started,
             ended,
             data,
-            Pyroscope.LabelsWrapper.dump()
+            null,
+            dumpLabels(referencedContexts)
         );
     }
 
-    private byte[] dumpJFR() {
+    private static void recordDump(long nanos, Snapshot snapshot) {
+        AgentMetrics.INSTANCE.recordDump(nanos, snapshot.size(), snapshot.labels.getSerializedSize());
+    }
+
+    /**
+     * Converts the recording to pprof, the labels of the samples are resolved with the labels dump,
+     * the snapshot carries none. The profile is small enough to be held in memory,
+     * {@link Config#jfrFileSnapshots} does not apply.
+     */
+    private static Snapshot pprofSnapshot(EventType eventType, Set<EventType> eventTypes, Duration interval,
+                                          Instant started, Instant ended, File recording, JfrLabels.Snapshot labels) {
+        try {
+            byte[] data = JfrToPprof.convert(recording, eventTypes, interval, started, ended, labels);
+            return new Snapshot(Format.PPROF, eventType, eventTypes, interval, started, ended, data, null,
+                JfrLabels.Snapshot.getDefaultInstance());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Converts the recording to collapsed stacks, one part per label set, the exporters upload every part on its own.
+     * Label sets beyond {@code maxLabelSets} ({@link Config#collapsedMaxLabelSets}) are folded into the part without
+     * labels. The stacks of every part are streamed to a file next to the recording buffers if
+     * {@code jfrFileSnapshots} ({@link Config#jfrFileSnapshots}) is enabled, to memory otherwise.
+     */
+    private Snapshot collapsedSnapshot(EventType eventType, Set<EventType> eventTypes, boolean jfrFileSnapshots,
+                                       int maxLabelSets, Duration interval, Instant started, Instant ended,
+                                       File recording, JfrLabels.Snapshot labels) {
+        final Map<Long, File> files = new LinkedHashMap<>();
+        final Map<Long, Buffer> buffers = new LinkedHashMap<>();
+        try {
+            JfrToCollapsed.convert(recording, eventType, maxLabelSets, contextId -> {
+                if (!jfrFileSnapshots) {
+                    Buffer buffer = new Buffer();
+                    buffers.put(contextId, buffer);
+                    return buffer.outputStream();
+                }
+                File file = File.createTempFile("pyroscope-snapshot", ".collapsed", recording.getParentFile());
+                files.put(contextId, file);
+                return new FileOutputStream(file);
+            });
+        } catch (IOException e) {
+            for (File file : files.values()) {
+                file.delete();
+            }
+            throw new IllegalStateException(e);
+        }
+        List<Snapshot> parts = new ArrayList<>();
+        for (Map.Entry<Long, File> e : files.entrySet()) {
+            parts.add(new Snapshot(Format.COLLAPSED, eventType, eventTypes, interval, started, ended, null, e.getValue(),
+                SnapshotBatch.contextLabels(labels, e.getKey())));
+        }
+        for (Map.Entry<Long, Buffer> e : buffers.entrySet()) {
+            // the segments of a buffer are recycled while it is read, only one part at a time is held twice
+            parts.add(new Snapshot(Format.COLLAPSED, eventType, eventTypes, interval, started, ended, e.getValue().readByteArray(), null,
+                SnapshotBatch.contextLabels(labels, e.getKey())));
+        }
+        return new Snapshot(Format.COLLAPSED, eventType, eventTypes, interval, started, ended, parts, labels);
+    }
+
+    private JfrLabels.Snapshot dumpLabels(LongPredicate referencedContexts) {
+        return Pyroscope.LabelsWrapper.dump(false, referencedContexts);
+    }
+
+    private LongPredicate referencedContexts(File jfr) {
+        try {
+            return ContextIds.read(jfr);
+        } catch (IOException e) {
+            // not fatal, upload all the labels instead
+            return null;
+        }
+    }
+
+    /**
+     * Moves the finished recording out of the way of the next one, so it can be uploaded from disk.
+     * async-profiler creates the temp file again on the next start.
+     */
+    private static File handOffJFR(File recording) {
+        try {
+            File file = File.createTempFile("pyroscope-snapshot", ".jfr", recording.getParentFile());
+            try {
+                Files.move(recording.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+            return file;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readJFR(File recording) {
         try {
-            byte[] bytes = new byte[(int) tempJFRFile.length()];
-            try (DataInputStream ds = new DataInputStream(new FileInputStream(tempJFRFile))) {
+            byte[] bytes = new byte[(int) recording.length()];
+            try (DataInputStream ds = new DataInputStream(new FileInputStream(recording))) {
                 ds.readFully(bytes);
             }
             return bytes;
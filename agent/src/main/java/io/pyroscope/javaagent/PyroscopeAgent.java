@@ -5,6 +5,7 @@ import io.pyroscope.javaagent.api.Logger;
 import io.pyroscope.javaagent.api.ProfilingScheduler;
 import io.pyroscope.javaagent.config.Config;
 import io.pyroscope.javaagent.impl.*;
+import io.pyroscope.labels.Pyroscope;
 
 import java.lang.instrument.Instrumentation;
 
@@ -49,7 +50,13 @@ public class PyroscopeAgent {
             sOptions = options;
             logger.log(Logger.Level.DEBUG, "Config: %s", options.config);
             try {
+                Pyroscope.setTransitionCacheEnabled(options.config.labelsTransitionCache);
+                Pyroscope.setPackedContextsEnabled(options.config.labelsPackedContexts);
+                Pyroscope.setGcBudget(Math.max(1, options.config.labelsGcBudget));
                 options.scheduler.start(options.profiler);
+                if (options.config.metricsJmx) {
+                    registerMetrics(logger);
+                }
                 logger.log(Logger.Level.INFO, "Profiling started");
             } catch (final Throwable e) {
                 logger.log(Logger.Level.ERROR, "Error starting profiler %s", e);
@@ -66,6 +73,12 @@ public class PyroscopeAgent {
             }
             try {
                 sOptions.scheduler.stop();
+                if (sOptions.exporter != null) {
+                    sOptions.exporter.stop();
+                }
+                if (sOptions.config.metricsJmx) {
+                    AgentMetrics.unregisterMBean();
+                }
                 sOptions.logger.log(Logger.Level.INFO, "Profiling stopped");
             } catch (Throwable e) {
                 sOptions.logger.log(Logger.Level.ERROR, "Error stopping profiler %s", e);
@@ -75,12 +88,44 @@ public class PyroscopeAgent {
         }
     }
 
+    private static void registerMetrics(Logger logger) {
+        try {
+            AgentMetrics.registerMBean();
+        } catch (final Exception e) {
+            // profiling works without the MBean
+            logger.log(Logger.Level.ERROR, "Error registering %s: %s", AgentMetrics.OBJECT_NAME, e);
+        }
+    }
+
     public static boolean isStarted() {
         synchronized (sLock) {
             return sOptions != null;
         }
     }
 
+    /**
+     * Adds the thread to the profiled threads, see {@link Config#profilingThreadFilter}.
+     * Does nothing if the agent is not started.
+     */
+    public static void addThread(Thread thread) {
+        synchronized (sLock) {
+            if (sOptions != null) {
+                sOptions.profiler.addThread(thread);
+            }
+        }
+    }
+
+    /**
+     * Removes a thread added with {@link #addThread(Thread)}.
+     */
+    public static void removeThread(Thread thread) {
+        synchronized (sLock) {
+            if (sOptions != null) {
+                sOptions.profiler.removeThread(thread);
+            }
+        }
+    }
+
     /**
      * Options allow to swap pyroscope components:
      * - io.pyroscope.javaagent.api.ProfilingScheduler
@@ -135,7 +180,18 @@ public class PyroscopeAgent {
                 }
                 if (scheduler == null) {
                     if (exporter == null) {
-                        exporter = new QueuedExporter(config, new PyroscopeExporter(config, logger), logger);
+                        if (config.spoolDirectory != null) {
+                            if (config.ingestMaxInFlight > 0) {
+                                logger.log(Logger.Level.WARN, "ingestMaxInFlight is ignored, spooled snapshots are uploaded one at a time");
+                            }
+                            warnBatchingIgnored("spooled");
+                            exporter = new SpoolingExporter(config, new PyroscopeExporter(config, logger), logger);
+                        } else if (config.ingestMaxInFlight > 0) {
+                            warnBatchingIgnored("concurrent");
+                            exporter = new AsyncExporter(config, new PyroscopeExporter(config, logger), logger);
+                        } else {
+                            exporter = new QueuedExporter(config, new PyroscopeExporter(config, logger), logger);
+                        }
                     }
                     if (config.samplingDuration == null) {
                         scheduler = new ContinuousProfilingScheduler(config, exporter, logger);
@@ -145,6 +201,12 @@ public class PyroscopeAgent {
                 }
                 return new Options(this);
             }
+
+            private void warnBatchingIgnored(String uploads) {
+                if (config.ingestBatchMaxSnapshots > 1) {
+                    logger.log(Logger.Level.WARN, "ingestBatchMaxSnapshots is ignored, %s uploads are not batched", uploads);
+                }
+            }
         }
 
     }
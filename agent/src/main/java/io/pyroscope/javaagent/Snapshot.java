@@ -3,22 +3,104 @@ package io.pyroscope.javaagent;
 import io.pyroscope.http.Format;
 import io.pyroscope.labels.pb.*;
 
+import java.io.File;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
 
 public final class Snapshot {
     public final Format format;
+    /**
+     * The main profiling event, its units and aggregation type describe the upload.
+     */
     public final EventType eventType;
+    /**
+     * All events recorded in the profiling data, including {@link #eventType}. A JFR recording holds every event
+     * of the session, e.g. cpu samples along with allocations, locks and wall clock samples.
+     */
+    public final Set<EventType> eventTypes;
+    /**
+     * Sampling interval the data was recorded with, null if it is {@link io.pyroscope.javaagent.config.Config#profilingInterval}.
+     * Differs from the configured one when the interval is adapted to the overhead budget.
+     */
+    public final Duration profilingInterval;
     public final Instant started;
     public final Instant ended;
+    /**
+     * Profiling data, null if the snapshot is backed by {@link #file} or made of {@link #parts}.
+     */
     public final byte[] data;
+    /**
+     * File holding the profiling data if {@link io.pyroscope.javaagent.config.Config#jfrFileSnapshots} is enabled,
+     * null otherwise. The file is owned by the snapshot, exporters call {@link #release()} once they are done with it.
+     */
+    public final File file;
     public final JfrLabels.Snapshot labels;
+    /**
+     * The stacks of every label set of a {@link Format#COLLAPSED} snapshot, uploaded one by one, empty for
+     * other formats. The labels of a part hold the labels of its label set as context 0, the parts are owned
+     * by the snapshot.
+     */
+    public final List<Snapshot> parts;
 
     Snapshot(Format format, final EventType eventType, final Instant started, final Instant ended,final byte[] data, JfrLabels.Snapshot labels) {
+        this(format, eventType, EnumSet.of(eventType), null, started, ended, data, null, labels);
+    }
+
+    Snapshot(Format format, final EventType eventType, final Instant started, final Instant ended, final File file, JfrLabels.Snapshot labels) {
+        this(format, eventType, EnumSet.of(eventType), null, started, ended, null, file, labels);
+    }
+
+    Snapshot(Format format, EventType eventType, Set<EventType> eventTypes, Duration profilingInterval, Instant started, Instant ended, byte[] data, File file, JfrLabels.Snapshot labels) {
+        this(format, eventType, eventTypes, profilingInterval, started, ended, data, file, labels, Collections.emptyList());
+    }
+
+    Snapshot(Format format, EventType eventType, Set<EventType> eventTypes, Duration profilingInterval, Instant started, Instant ended, List<Snapshot> parts, JfrLabels.Snapshot labels) {
+        this(format, eventType, eventTypes, profilingInterval, started, ended, null, null, labels, Collections.unmodifiableList(parts));
+    }
+
+    private Snapshot(Format format, EventType eventType, Set<EventType> eventTypes, Duration profilingInterval, Instant started, Instant ended, byte[] data, File file, JfrLabels.Snapshot labels, List<Snapshot> parts) {
         this.format = format;
         this.eventType = eventType;
+        this.eventTypes = Collections.unmodifiableSet(EnumSet.copyOf(eventTypes));
+        this.profilingInterval = profilingInterval;
         this.started = started;
         this.ended = ended;
         this.data = data;
+        this.file = file;
         this.labels = labels;
+        this.parts = parts;
+    }
+
+    /**
+     * @return size of the profiling data in bytes
+     */
+    public long size() {
+        if (file != null) {
+            return file.length();
+        }
+        if (data != null) {
+            return data.length;
+        }
+        long size = 0;
+        for (Snapshot part : parts) {
+            size += part.size();
+        }
+        return size;
+    }
+
+    /**
+     * Deletes the file backing this snapshot and its parts, if any. Safe to call more than once.
+     */
+    public void release() {
+        if (file != null) {
+            file.delete();
+        }
+        for (Snapshot part : parts) {
+            part.release();
+        }
     }
 }
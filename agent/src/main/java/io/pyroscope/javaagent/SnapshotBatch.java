@@ -0,0 +1,131 @@
+package io.pyroscope.javaagent;
+
+import io.pyroscope.http.Format;
+import io.pyroscope.labels.pb.JfrLabels;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Coalesces consecutive snapshots of the same profile type into one, so that they are uploaded in a single request.
+ * <p>
+ * A JFR recording is a sequence of self-contained chunks, so the recordings are concatenated as they are.
+ * Other formats can not be concatenated, they are uploaded one by one.
+ * Context and string ids are unique across snapshots, the labels are a union of the labels of all snapshots.
+ * The merged snapshot covers the time range from the start of the first snapshot to the end of the last one,
+ * the server sees it as a single profile of that range. Only back to back snapshots are merged, so that a gap,
+ * e.g. while the profiler was stopped, is not reported as profiled time.
+ * <p>
+ * The other way round, a collapsed snapshot is uploaded as one snapshot per label set, as collapsed stacks
+ * can not carry labels.
+ */
+public final class SnapshotBatch {
+    private SnapshotBatch() {
+    }
+
+    /**
+     * @return true if both snapshots can be uploaded as one, i.e. they are of the same profile type
+     * and b starts where a ended
+     */
+    public static boolean canMerge(Snapshot a, Snapshot b) {
+        return a.format == Format.JFR && b.format == Format.JFR
+            && a.eventType == b.eventType && a.eventTypes.equals(b.eventTypes)
+            && Objects.equals(a.profilingInterval, b.profilingInterval)
+            && a.ended.equals(b.started);
+    }
+
+    /**
+     * Merges the snapshots into a new one. Each snapshot must be mergeable with the one before it, see
+     * {@link #canMerge(Snapshot, Snapshot)}.
+     * The snapshots stay owned by the caller, the merged snapshot is file backed if any of them is.
+     */
+    public static Snapshot merge(List<Snapshot> snapshots) throws IOException {
+        if (snapshots.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to merge");
+        }
+        Snapshot first = snapshots.get(0);
+        Snapshot last = snapshots.get(snapshots.size() - 1);
+        JfrLabels.Snapshot.Builder labels = JfrLabels.Snapshot.newBuilder();
+        File dir = null;
+        long size = 0;
+        for (Snapshot s : snapshots) {
+            labels.mergeFrom(s.labels);
+            size += s.size();
+            if (s.file != null && dir == null) {
+                dir = s.file.getParentFile();
+            }
+        }
+        if (dir != null) {
+            File file = File.createTempFile("pyroscope-snapshot", ".jfr", dir);
+            try (OutputStream out = new FileOutputStream(file)) {
+                byte[] buf = new byte[64 * 1024];
+                for (Snapshot s : snapshots) {
+                    if (s.file == null) {
+                        out.write(s.data);
+                        continue;
+                    }
+                    try (InputStream in = new FileInputStream(s.file)) {
+                        int n;
+                        while ((n = in.read(buf)) >= 0) {
+                            out.write(buf, 0, n);
+                        }
+                    }
+                }
+            } catch (final IOException e) {
+                file.delete();
+                throw e;
+            }
+            return new Snapshot(first.format, first.eventType, first.eventTypes, first.profilingInterval, first.started, last.ended, null, file, labels.build());
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Batch is too large: " + size);
+        }
+        byte[] data = new byte[(int) size];
+        int off = 0;
+        for (Snapshot s : snapshots) {
+            System.arraycopy(s.data, 0, data, off, s.data.length);
+            off += s.data.length;
+        }
+        return new Snapshot(first.format, first.eventType, first.eventTypes, first.profilingInterval, first.started, last.ended, data, null, labels.build());
+    }
+
+    /**
+     * @return the {@link Snapshot#parts} of a {@link Format#COLLAPSED} snapshot, or the snapshot itself
+     * if it is of another format. The parts stay owned by the snapshot.
+     */
+    public static List<Snapshot> split(Snapshot snapshot) {
+        if (snapshot.format != Format.COLLAPSED) {
+            return Collections.singletonList(snapshot);
+        }
+        return snapshot.parts;
+    }
+
+    /**
+     * @return the labels of a part of a collapsed snapshot: the labels of the context as context 0,
+     * no labels at all for the stacks of samples without labels
+     */
+    static JfrLabels.Snapshot contextLabels(JfrLabels.Snapshot labels, long contextId) {
+        JfrLabels.Context context = contextId != 0 ? labels.getContextsMap().get(contextId) : null;
+        if (context == null) {
+            return JfrLabels.Snapshot.getDefaultInstance();
+        }
+        JfrLabels.Snapshot.Builder res = JfrLabels.Snapshot.newBuilder().putContexts(0, context);
+        for (Map.Entry<Long, Long> label : context.getLabelsMap().entrySet()) {
+            for (long id : new long[]{label.getKey(), label.getValue()}) {
+                String s = labels.getStringsMap().get(id);
+                if (s != null) {
+                    res.putStrings(id, s);
+                }
+            }
+        }
+        return res.build();
+    }
+}
@@ -22,4 +22,12 @@ public interface Exporter {
      *
      */
     void export(Snapshot snapshot);
+
+    /**
+     * Called by {@link io.pyroscope.javaagent.PyroscopeAgent#stop()} after the scheduler has exported its last
+     * snapshot, releases the threads and other resources of the exporter. Snapshots still queued may be uploaded
+     * after that.
+     */
+    default void stop() {
+    }
 }
@@ -16,6 +16,8 @@ import java.lang.reflect.Type;
 import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.Deflater;
@@ -48,10 +50,37 @@ public final class Config {
     private static final String PYROSCOPE_INGEST_MAX_TRIES = "PYROSCOPE_INGEST_MAX_TRIES";
     private static final String PYROSCOPE_EXPORT_COMPRESSION_LEVEL_JFR = "PYROSCOPE_EXPORT_COMPRESSION_LEVEL_JFR";
     private static final String PYROSCOPE_EXPORT_COMPRESSION_LEVEL_LABELS = "PYROSCOPE_EXPORT_COMPRESSION_LEVEL_LABELS";
+    private static final String PYROSCOPE_EXPORT_COMPRESSION_THREADS = "PYROSCOPE_EXPORT_COMPRESSION_THREADS";
+    private static final String PYROSCOPE_EXPORT_CONTENT_ENCODING = "PYROSCOPE_EXPORT_CONTENT_ENCODING";
+    private static final String PYROSCOPE_COLLAPSED_MAX_LABEL_SETS = "PYROSCOPE_COLLAPSED_MAX_LABEL_SETS";
     private static final String PYROSCOPE_ALLOC_LIVE = "PYROSCOPE_ALLOC_LIVE";
     private static final String PYROSCOPE_GC_BEFORE_DUMP = "PYROSCOPE_GC_BEFORE_DUMP";
     private static final String PYROSCOPE_HTTP_HEADERS = "PYROSCOPE_HTTP_HEADERS";
     private static final String PYROSCOPE_TENANT_ID = "PYROSCOPE_TENANT_ID";
+    private static final String PYROSCOPE_LABELS_TRANSITION_CACHE = "PYROSCOPE_LABELS_TRANSITION_CACHE";
+    private static final String PYROSCOPE_LABELS_PACKED_CONTEXTS = "PYROSCOPE_LABELS_PACKED_CONTEXTS";
+    private static final String PYROSCOPE_LABELS_PRUNE_UNREFERENCED = "PYROSCOPE_LABELS_PRUNE_UNREFERENCED";
+    private static final String PYROSCOPE_LABELS_GC_BUDGET = "PYROSCOPE_LABELS_GC_BUDGET";
+    private static final String PYROSCOPE_JFR_FILE_SNAPSHOTS = "PYROSCOPE_JFR_FILE_SNAPSHOTS";
+    private static final String PYROSCOPE_INGEST_MAX_IN_FLIGHT = "PYROSCOPE_INGEST_MAX_IN_FLIGHT";
+    private static final String PYROSCOPE_SPOOL_MAX_TRIES = "PYROSCOPE_SPOOL_MAX_TRIES";
+    private static final String PYROSCOPE_SPOOL_DIRECTORY = "PYROSCOPE_SPOOL_DIRECTORY";
+    private static final String PYROSCOPE_SPOOL_MAX_SIZE = "PYROSCOPE_SPOOL_MAX_SIZE";
+    private static final String PYROSCOPE_INGEST_BATCH_MAX_SNAPSHOTS = "PYROSCOPE_INGEST_BATCH_MAX_SNAPSHOTS";
+    private static final String PYROSCOPE_INGEST_BATCH_MAX_SIZE = "PYROSCOPE_INGEST_BATCH_MAX_SIZE";
+    private static final String PYROSCOPE_INGEST_CONNECT_TIMEOUT = "PYROSCOPE_INGEST_CONNECT_TIMEOUT";
+    private static final String PYROSCOPE_INGEST_READ_TIMEOUT = "PYROSCOPE_INGEST_READ_TIMEOUT";
+    private static final String PYROSCOPE_INGEST_CALL_TIMEOUT = "PYROSCOPE_INGEST_CALL_TIMEOUT";
+    private static final String PYROSCOPE_INGEST_KEEP_ALIVE = "PYROSCOPE_INGEST_KEEP_ALIVE";
+    private static final String PYROSCOPE_INGEST_MAX_IDLE_CONNECTIONS = "PYROSCOPE_INGEST_MAX_IDLE_CONNECTIONS";
+    private static final String PYROSCOPE_INGEST_HTTP2_PRIOR_KNOWLEDGE = "PYROSCOPE_INGEST_HTTP2_PRIOR_KNOWLEDGE";
+    private static final String PYROSCOPE_INGEST_DNS_CACHE_TTL = "PYROSCOPE_INGEST_DNS_CACHE_TTL";
+    private static final String PYROSCOPE_UPLOAD_INTERVAL_ALIGNED = "PYROSCOPE_UPLOAD_INTERVAL_ALIGNED";
+    private static final String PYROSCOPE_PROFILER_WALL = "PYROSCOPE_PROFILER_WALL";
+    private static final String PYROSCOPE_PROFILER_THREAD_FILTER = "PYROSCOPE_PROFILER_THREAD_FILTER";
+    private static final String PYROSCOPE_PROFILER_THREAD_NAMES = "PYROSCOPE_PROFILER_THREAD_NAMES";
+    private static final String PYROSCOPE_PROFILER_OVERHEAD_BUDGET = "PYROSCOPE_PROFILER_OVERHEAD_BUDGET";
+    private static final String PYROSCOPE_METRICS_JMX = "PYROSCOPE_METRICS_JMX";
 
     /**
      * Experimental feature, may be removed in the future
@@ -86,6 +115,32 @@ public final class Config {
     private static final boolean DEFAULT_ALLOC_LIVE = false;
     private static final boolean DEFAULT_GC_BEFORE_DUMP = false;
     private static final Duration DEFAULT_SAMPLING_DURATION = null;
+    private static final boolean DEFAULT_LABELS_TRANSITION_CACHE = false;
+    private static final boolean DEFAULT_LABELS_PACKED_CONTEXTS = false;
+    private static final boolean DEFAULT_LABELS_PRUNE_UNREFERENCED = false;
+    private static final int DEFAULT_LABELS_GC_BUDGET = Integer.MAX_VALUE;
+    private static final boolean DEFAULT_JFR_FILE_SNAPSHOTS = false;
+    private static final int DEFAULT_INGEST_MAX_IN_FLIGHT = 0;
+    // about an hour of retries at the longest backoff
+    private static final int DEFAULT_SPOOL_MAX_TRIES = 120;
+    private static final long DEFAULT_SPOOL_MAX_SIZE = 256L * 1024 * 1024;
+    private static final int DEFAULT_INGEST_BATCH_MAX_SNAPSHOTS = 1;
+    private static final long DEFAULT_INGEST_BATCH_MAX_SIZE = 8L * 1024 * 1024;
+    private static final Duration DEFAULT_INGEST_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration DEFAULT_INGEST_READ_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration DEFAULT_INGEST_CALL_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration DEFAULT_INGEST_KEEP_ALIVE = Duration.ofMinutes(5);
+    private static final int DEFAULT_INGEST_MAX_IDLE_CONNECTIONS = 5;
+    private static final boolean DEFAULT_UPLOAD_INTERVAL_ALIGNED = false;
+    private static final String DEFAULT_PROFILER_WALL = "";
+    private static final boolean DEFAULT_PROFILER_THREAD_FILTER = false;
+    private static final String DEFAULT_PROFILER_THREAD_NAMES = "";
+    private static final double DEFAULT_PROFILER_OVERHEAD_BUDGET = 0;
+    private static final boolean DEFAULT_METRICS_JMX = false;
+    private static final int DEFAULT_COMPRESSION_THREADS = 0;
+    private static final String DEFAULT_CONTENT_ENCODING = "gzip";
+    private static final int DEFAULT_COLLAPSED_MAX_LABEL_SETS = 16;
+    private static final boolean DEFAULT_INGEST_HTTP2_PRIOR_KNOWLEDGE = false;
 
     public final boolean agentEnabled;
     public final String applicationName;
@@ -109,6 +164,12 @@ public final class Config {
     public final int ingestMaxTries;
     public final int compressionLevelJFR;
     public final int compressionLevelLabels;
+    // block-parallel gzip of the upload parts on a pool of this many threads, serial if less than 2
+    public final int compressionThreads;
+    // name of the upload Codec, gzip unless set
+    public final String contentEncoding;
+    // label sets uploaded on their own per interval in the collapsed format, the others are uploaded without labels
+    public final int collapsedMaxLabelSets;
 
     public final boolean allocLive;
     public final boolean gcBeforeDump;
@@ -120,6 +181,31 @@ public final class Config {
     public final String APExtraArguments;
     public final String basicAuthUser;
     public final String basicAuthPassword;
+    public final boolean labelsTransitionCache;
+    public final boolean labelsPackedContexts;
+    public final boolean labelsPruneUnreferenced;
+    public final int labelsGcBudget;
+    public final boolean jfrFileSnapshots;
+    public final int ingestMaxInFlight;
+    // tries of a spooled snapshot before it is dropped, negative to retry until the server accepts it
+    public final int spoolMaxTries;
+    public final String spoolDirectory;
+    public final long spoolMaxSize;
+    public final int ingestBatchMaxSnapshots;
+    public final long ingestBatchMaxSize;
+    public final Duration ingestConnectTimeout;
+    public final Duration ingestReadTimeout;
+    public final Duration ingestCallTimeout;
+    public final Duration ingestKeepAlive;
+    public final int ingestMaxIdleConnections;
+    public final boolean ingestHttp2PriorKnowledge;
+    public final Duration ingestDnsCacheTtl;
+    public final boolean uploadIntervalAligned;
+    public final String profilingWall;
+    public final boolean profilingThreadFilter;
+    public final String profilingThreadNames;
+    public final double profilingOverheadBudget;
+    public final boolean metricsJmx;
 
     Config(final boolean agentEnabled,
            final String applicationName,
@@ -147,7 +233,34 @@ public final class Config {
            String APLogLevel,
            String APExtraArguments,
            String basicAuthUser,
-           String basicAuthPassword) {
+           String basicAuthPassword,
+           boolean labelsTransitionCache,
+           boolean labelsPackedContexts,
+           boolean labelsPruneUnreferenced,
+           int labelsGcBudget,
+           boolean jfrFileSnapshots,
+           int ingestMaxInFlight,
+           int spoolMaxTries,
+           String spoolDirectory,
+           long spoolMaxSize,
+           int ingestBatchMaxSnapshots,
+           long ingestBatchMaxSize,
+           Duration ingestConnectTimeout,
+           Duration ingestReadTimeout,
+           Duration ingestCallTimeout,
+           Duration ingestKeepAlive,
+           int ingestMaxIdleConnections,
+           boolean ingestHttp2PriorKnowledge,
+           Duration ingestDnsCacheTtl,
+           boolean uploadIntervalAligned,
+           String profilingWall,
+           boolean profilingThreadFilter,
+           String profilingThreadNames,
+           double profilingOverheadBudget,
+           boolean metricsJmx,
+           int compressionThreads,
+           String contentEncoding,
+           int collapsedMaxLabelSets) {
         this.agentEnabled = agentEnabled;
         this.applicationName = applicationName;
         this.profilingInterval = profilingInterval;
@@ -171,6 +284,33 @@ public final class Config {
         this.APExtraArguments = APExtraArguments;
         this.basicAuthUser = basicAuthUser;
         this.basicAuthPassword = basicAuthPassword;
+        this.labelsTransitionCache = labelsTransitionCache;
+        this.labelsPackedContexts = labelsPackedContexts;
+        this.labelsPruneUnreferenced = labelsPruneUnreferenced;
+        this.labelsGcBudget = labelsGcBudget;
+        this.jfrFileSnapshots = jfrFileSnapshots;
+        this.ingestMaxInFlight = ingestMaxInFlight;
+        this.spoolMaxTries = spoolMaxTries;
+        this.spoolDirectory = spoolDirectory;
+        this.spoolMaxSize = spoolMaxSize;
+        this.ingestBatchMaxSnapshots = ingestBatchMaxSnapshots;
+        this.ingestBatchMaxSize = ingestBatchMaxSize;
+        this.ingestConnectTimeout = ingestConnectTimeout;
+        this.ingestReadTimeout = ingestReadTimeout;
+        this.ingestCallTimeout = ingestCallTimeout;
+        this.ingestKeepAlive = ingestKeepAlive;
+        this.ingestMaxIdleConnections = ingestMaxIdleConnections;
+        this.ingestHttp2PriorKnowledge = ingestHttp2PriorKnowledge;
+        this.ingestDnsCacheTtl = ingestDnsCacheTtl;
+        this.uploadIntervalAligned = uploadIntervalAligned;
+        this.profilingWall = profilingWall;
+        this.profilingThreadFilter = profilingThreadFilter;
+        this.profilingThreadNames = profilingThreadNames;
+        this.profilingOverheadBudget = profilingOverheadBudget;
+        this.metricsJmx = metricsJmx;
+        this.compressionThreads = compressionThreads;
+        this.contentEncoding = contentEncoding;
+        this.collapsedMaxLabelSets = collapsedMaxLabelSets;
         this.timeseries = timeseriesName(AppName.parse(applicationName), profilingEvent, format);
         this.timeseriesName = timeseries.toString();
         this.format = format;
@@ -180,11 +320,25 @@ public final class Config {
         if (serverAddressUrl == null) {
             throw new IllegalArgumentException("invalid url " + serverAddress);
         }
+        if (profilingThreadNames != null && !profilingThreadNames.isEmpty()) {
+            try {
+                Pattern.compile(profilingThreadNames);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("invalid profilingThreadNames " + profilingThreadNames, e);
+            }
+        }
+        this.samplingEventOrder = resolve(samplingEventOrder, profilingEvent, profilingAlloc, profilingLock, this.samplingDuration);
+    }
+
+    /**
+     * Logs the settings which are ignored or expensive. Called once for the config read at startup, not for
+     * the copies made later, e.g. by the overhead controller.
+     */
+    private void warnSettings() {
         if (authToken != null && basicAuthUser != null) {
             DefaultLogger.PRECONFIG_LOGGER.log(Logger.Level.WARN,
                 "auth token is ignored (both auth token and basic auth specified)");
         }
-        this.samplingEventOrder = resolve(samplingEventOrder, profilingEvent, profilingAlloc, profilingLock, this.samplingDuration);
         if ("0".equals(this.profilingAlloc)) {
             DefaultLogger.PRECONFIG_LOGGER.log(Logger.Level.WARN,
                 "Setting PYROSCOPE_PROFILER_ALLOC to 0 registers every allocation event, causing significant overhead and results in large profiles, making it not ideal for production. We recommend a starting value of 512k, adjusting as needed.");
@@ -193,6 +347,32 @@ public final class Config {
             DefaultLogger.PRECONFIG_LOGGER.log(Logger.Level.WARN,
                 "Setting PYROSCOPE_PROFILER_LOCK to 0 registers every lock event, causing significant overhead and results in large profiles, making it not ideal for production. We recommend a starting value of 10ms, adjusting as needed.");
         }
+        if (samplingDuration == null) {
+            warnUnrecordedEvents();
+        }
+    }
+
+    /**
+     * In continuous mode the events besides the main one are recorded in the same session, but only JFR carries
+     * all of them. pprof carries alloc and lock as sample types of their own, not wall clock, collapsed stacks only
+     * the main event. The other events are not recorded at all.
+     */
+    private void warnUnrecordedEvents() {
+        if (format == null || format == Format.JFR) {
+            return;
+        }
+        if (format == Format.COLLAPSED && profilingAlloc != null && !profilingAlloc.isEmpty() && profilingEvent != EventType.ALLOC) {
+            DefaultLogger.PRECONFIG_LOGGER.log(Logger.Level.WARN, "%s is ignored, the %s format only holds %s samples, use the jfr format for several events",
+                PYROSCOPE_PROFILER_ALLOC_CONFIG, format.id, profilingEvent.id);
+        }
+        if (format == Format.COLLAPSED && profilingLock != null && !profilingLock.isEmpty() && profilingEvent != EventType.LOCK) {
+            DefaultLogger.PRECONFIG_LOGGER.log(Logger.Level.WARN, "%s is ignored, the %s format only holds %s samples, use the jfr format for several events",
+                PYROSCOPE_PROFILER_LOCK_CONFIG, format.id, profilingEvent.id);
+        }
+        if (profilingWall != null && !profilingWall.isEmpty() && profilingEvent != EventType.WALL) {
+            DefaultLogger.PRECONFIG_LOGGER.log(Logger.Level.WARN, "%s is ignored, the %s format can not tell wall clock samples from %s samples, use the jfr format",
+                PYROSCOPE_PROFILER_WALL, format.id, profilingEvent.id);
+        }
     }
 
     public long profilingIntervalInHertz() {
@@ -226,6 +406,33 @@ public final class Config {
             ", httpHeaders=" + httpHeaders +
             ", samplingDuration=" + samplingDuration +
             ", tenantID=" + tenantID +
+            ", labelsTransitionCache=" + labelsTransitionCache +
+            ", labelsPackedContexts=" + labelsPackedContexts +
+            ", labelsPruneUnreferenced=" + labelsPruneUnreferenced +
+            ", labelsGcBudget=" + labelsGcBudget +
+            ", jfrFileSnapshots=" + jfrFileSnapshots +
+            ", ingestMaxInFlight=" + ingestMaxInFlight +
+            ", spoolMaxTries=" + spoolMaxTries +
+            ", spoolDirectory=" + spoolDirectory +
+            ", spoolMaxSize=" + spoolMaxSize +
+            ", ingestBatchMaxSnapshots=" + ingestBatchMaxSnapshots +
+            ", ingestBatchMaxSize=" + ingestBatchMaxSize +
+            ", ingestConnectTimeout=" + ingestConnectTimeout +
+            ", ingestReadTimeout=" + ingestReadTimeout +
+            ", ingestCallTimeout=" + ingestCallTimeout +
+            ", ingestKeepAlive=" + ingestKeepAlive +
+            ", ingestMaxIdleConnections=" + ingestMaxIdleConnections +
+            ", ingestHttp2PriorKnowledge=" + ingestHttp2PriorKnowledge +
+            ", ingestDnsCacheTtl=" + ingestDnsCacheTtl +
+            ", uploadIntervalAligned=" + uploadIntervalAligned +
+            ", profilingWall='" + profilingWall + '\'' +
+            ", profilingThreadFilter=" + profilingThreadFilter +
+            ", profilingThreadNames='" + profilingThreadNames + '\'' +
+            ", profilingOverheadBudget=" + profilingOverheadBudget +
+            ", metricsJmx=" + metricsJmx +
+            ", compressionThreads=" + compressionThreads +
+            ", contentEncoding='" + contentEncoding + '\'' +
+            ", collapsedMaxLabelSets=" + collapsedMaxLabelSets +
             '}';
     }
 
@@ -233,7 +440,7 @@ public final class Config {
         return new Builder(this);
     }
 
-    private static long durationToHertz(Duration duration) {
+    public static long durationToHertz(Duration duration) {
         Duration oneSecond = Duration.ofSeconds(1);
         return oneSecond.toNanos() / duration.toNanos();
     }
@@ -251,7 +458,7 @@ public final class Config {
                 PYROSCOPE_ALLOC_LIVE, PYROSCOPE_PROFILER_ALLOC_CONFIG);
             allocLive = false;
         }
-        return new Config(
+        Config config = new Config(
             agentEnabled,
             applicationName(cp),
             profilingInterval(cp),
@@ -278,7 +485,36 @@ public final class Config {
             cp.get(PYROSCOPE_AP_LOG_LEVEL_CONFIG),
             cp.get(PYROSCOPE_AP_EXTRA_ARGUMENTS_CONFIG),
             cp.get(PYROSCOPE_BASIC_AUTH_USER_CONFIG),
-            cp.get(PYROSCOPE_BASIC_AUTH_PASSWORD_CONFIG));
+            cp.get(PYROSCOPE_BASIC_AUTH_PASSWORD_CONFIG),
+            bool(cp, PYROSCOPE_LABELS_TRANSITION_CACHE, DEFAULT_LABELS_TRANSITION_CACHE),
+            bool(cp, PYROSCOPE_LABELS_PACKED_CONTEXTS, DEFAULT_LABELS_PACKED_CONTEXTS),
+            bool(cp, PYROSCOPE_LABELS_PRUNE_UNREFERENCED, DEFAULT_LABELS_PRUNE_UNREFERENCED),
+            labelsGcBudget(cp),
+            bool(cp, PYROSCOPE_JFR_FILE_SNAPSHOTS, DEFAULT_JFR_FILE_SNAPSHOTS),
+            ingestMaxInFlight(cp),
+            spoolMaxTries(cp),
+            spoolDirectory(cp),
+            spoolMaxSize(cp),
+            ingestBatchMaxSnapshots(cp),
+            ingestBatchMaxSize(cp),
+            duration(cp, PYROSCOPE_INGEST_CONNECT_TIMEOUT, DEFAULT_INGEST_CONNECT_TIMEOUT),
+            duration(cp, PYROSCOPE_INGEST_READ_TIMEOUT, DEFAULT_INGEST_READ_TIMEOUT),
+            duration(cp, PYROSCOPE_INGEST_CALL_TIMEOUT, DEFAULT_INGEST_CALL_TIMEOUT),
+            duration(cp, PYROSCOPE_INGEST_KEEP_ALIVE, DEFAULT_INGEST_KEEP_ALIVE),
+            ingestMaxIdleConnections(cp),
+            bool(cp, PYROSCOPE_INGEST_HTTP2_PRIOR_KNOWLEDGE, DEFAULT_INGEST_HTTP2_PRIOR_KNOWLEDGE),
+            duration(cp, PYROSCOPE_INGEST_DNS_CACHE_TTL, null),
+            bool(cp, PYROSCOPE_UPLOAD_INTERVAL_ALIGNED, DEFAULT_UPLOAD_INTERVAL_ALIGNED),
+            profilingWall(cp),
+            bool(cp, PYROSCOPE_PROFILER_THREAD_FILTER, DEFAULT_PROFILER_THREAD_FILTER),
+            profilingThreadNames(cp),
+            profilingOverheadBudget(cp),
+            bool(cp, PYROSCOPE_METRICS_JMX, DEFAULT_METRICS_JMX),
+            compressionThreads(cp),
+            contentEncoding(cp),
+            collapsedMaxLabelSets(cp));
+        config.warnSettings();
+        return config;
     }
 
     private static String applicationName(ConfigurationProvider configurationProvider) {
@@ -322,7 +558,7 @@ public final class Config {
     }
 
     private AppName timeseriesName(AppName app, EventType eventType, Format format) {
-        if (format == Format.JFR)
+        if (format == Format.JFR || format == Format.PPROF)
             return app;
         return app.newBuilder()
             .setName(app.name + "." + eventType.id)
@@ -479,6 +715,11 @@ public final class Config {
         switch (format.trim().toLowerCase()) {
             case "jfr":
                 return Format.JFR;
+            case "pprof":
+                return Format.PPROF;
+            case "collapsed":
+            case "folded":
+                return Format.COLLAPSED;
             default:
                 DefaultLogger.PRECONFIG_LOGGER.log(Logger.Level.WARN, "Unknown format %s, using %s", format, DEFAULT_FORMAT);
                 return DEFAULT_FORMAT;
@@ -530,6 +771,19 @@ public final class Config {
         return Boolean.parseBoolean(v);
     }
 
+    public static Duration duration(ConfigurationProvider cp, String key, Duration defaultValue) {
+        final String v = cp.get(key);
+        if (v == null || v.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return IntervalParser.parse(v);
+        } catch (final NumberFormatException e) {
+            DefaultLogger.PRECONFIG_LOGGER.log(Logger.Level.WARN, "Invalid %s value %s, using %s", key, v, defaultValue);
+            return defaultValue;
+        }
+    }
+
     public static int compressionLevel(ConfigurationProvider cp, String key) {
         final String sLevel = cp.get(key);
         if (sLevel == null || sLevel.isEmpty()) {
@@ -632,6 +886,201 @@ public final class Config {
         }
     }
 
+    private static int labelsGcBudget(ConfigurationProvider configurationProvider) {
+        final String str = configurationProvider.get(PYROSCOPE_LABELS_GC_BUDGET);
+        if (str == null || str.isEmpty()) {
+            return DEFAULT_LABELS_GC_BUDGET;
+        }
+        try {
+            int budget = Integer.parseInt(str);
+            if (budget <= 0) {
+                return DEFAULT_LABELS_GC_BUDGET;
+            }
+            return budget;
+        } catch (NumberFormatException e) {
+            return DEFAULT_LABELS_GC_BUDGET;
+        }
+    }
+
+    private static int collapsedMaxLabelSets(ConfigurationProvider configurationProvider) {
+        final String str = configurationProvider.get(PYROSCOPE_COLLAPSED_MAX_LABEL_SETS);
+        if (str == null || str.isEmpty()) {
+            return DEFAULT_COLLAPSED_MAX_LABEL_SETS;
+        }
+        try {
+            int maxLabelSets = Integer.parseInt(str);
+            if (maxLabelSets < 0) {
+                return DEFAULT_COLLAPSED_MAX_LABEL_SETS;
+            }
+            return maxLabelSets;
+        } catch (NumberFormatException e) {
+            return DEFAULT_COLLAPSED_MAX_LABEL_SETS;
+        }
+    }
+
+    private static String contentEncoding(ConfigurationProvider configurationProvider) {
+        final String contentEncoding = configurationProvider.get(PYROSCOPE_EXPORT_CONTENT_ENCODING);
+        if (contentEncoding == null || contentEncoding.isEmpty()) {
+            return DEFAULT_CONTENT_ENCODING;
+        }
+        return contentEncoding.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static int compressionThreads(ConfigurationProvider configurationProvider) {
+        final String str = configurationProvider.get(PYROSCOPE_EXPORT_COMPRESSION_THREADS);
+        if (str == null || str.isEmpty()) {
+            return DEFAULT_COMPRESSION_THREADS;
+        }
+        try {
+            int threads = Integer.parseInt(str);
+            if (threads < 0) {
+                return DEFAULT_COMPRESSION_THREADS;
+            }
+            return threads;
+        } catch (NumberFormatException e) {
+            return DEFAULT_COMPRESSION_THREADS;
+        }
+    }
+
+    private static int ingestMaxInFlight(ConfigurationProvider configurationProvider) {
+        final String str = configurationProvider.get(PYROSCOPE_INGEST_MAX_IN_FLIGHT);
+        if (str == null || str.isEmpty()) {
+            return DEFAULT_INGEST_MAX_IN_FLIGHT;
+        }
+        try {
+            int maxInFlight = Integer.parseInt(str);
+            if (maxInFlight < 0) {
+                return DEFAULT_INGEST_MAX_IN_FLIGHT;
+            }
+            return maxInFlight;
+        } catch (NumberFormatException e) {
+            return DEFAULT_INGEST_MAX_IN_FLIGHT;
+        }
+    }
+
+    private static int spoolMaxTries(ConfigurationProvider configurationProvider) {
+        final String str = configurationProvider.get(PYROSCOPE_SPOOL_MAX_TRIES);
+        if (str == null || str.isEmpty()) {
+            return DEFAULT_SPOOL_MAX_TRIES;
+        }
+        try {
+            return Integer.parseInt(str);
+        } catch (NumberFormatException e) {
+            return DEFAULT_SPOOL_MAX_TRIES;
+        }
+    }
+
+    private static String spoolDirectory(ConfigurationProvider cp) {
+        final String str = cp.get(PYROSCOPE_SPOOL_DIRECTORY);
+        if (str == null || str.isEmpty()) {
+            return null;
+        }
+        return str;
+    }
+
+    private static long spoolMaxSize(ConfigurationProvider configurationProvider) {
+        final String str = configurationProvider.get(PYROSCOPE_SPOOL_MAX_SIZE);
+        if (str == null || str.isEmpty()) {
+            return DEFAULT_SPOOL_MAX_SIZE;
+        }
+        try {
+            long maxSize = Long.parseLong(str);
+            if (maxSize <= 0) {
+                return DEFAULT_SPOOL_MAX_SIZE;
+            }
+            return maxSize;
+        } catch (NumberFormatException e) {
+            return DEFAULT_SPOOL_MAX_SIZE;
+        }
+    }
+
+    private static int ingestBatchMaxSnapshots(ConfigurationProvider configurationProvider) {
+        final String str = configurationProvider.get(PYROSCOPE_INGEST_BATCH_MAX_SNAPSHOTS);
+        if (str == null || str.isEmpty()) {
+            return DEFAULT_INGEST_BATCH_MAX_SNAPSHOTS;
+        }
+        try {
+            int maxSnapshots = Integer.parseInt(str);
+            if (maxSnapshots <= 0) {
+                return DEFAULT_INGEST_BATCH_MAX_SNAPSHOTS;
+            }
+            return maxSnapshots;
+        } catch (NumberFormatException e) {
+            return DEFAULT_INGEST_BATCH_MAX_SNAPSHOTS;
+        }
+    }
+
+    private static long ingestBatchMaxSize(ConfigurationProvider configurationProvider) {
+        final String str = configurationProvider.get(PYROSCOPE_INGEST_BATCH_MAX_SIZE);
+        if (str == null || str.isEmpty()) {
+            return DEFAULT_INGEST_BATCH_MAX_SIZE;
+        }
+        try {
+            long maxSize = Long.parseLong(str);
+            if (maxSize <= 0) {
+                return DEFAULT_INGEST_BATCH_MAX_SIZE;
+            }
+            return maxSize;
+        } catch (NumberFormatException e) {
+            return DEFAULT_INGEST_BATCH_MAX_SIZE;
+        }
+    }
+
+    private static int ingestMaxIdleConnections(ConfigurationProvider configurationProvider) {
+        final String str = configurationProvider.get(PYROSCOPE_INGEST_MAX_IDLE_CONNECTIONS);
+        if (str == null || str.isEmpty()) {
+            return DEFAULT_INGEST_MAX_IDLE_CONNECTIONS;
+        }
+        try {
+            int maxIdle = Integer.parseInt(str);
+            if (maxIdle < 0) {
+                return DEFAULT_INGEST_MAX_IDLE_CONNECTIONS;
+            }
+            return maxIdle;
+        } catch (NumberFormatException e) {
+            return DEFAULT_INGEST_MAX_IDLE_CONNECTIONS;
+        }
+    }
+
+    private static String profilingWall(ConfigurationProvider configurationProvider) {
+        final String profilingWall = configurationProvider.get(PYROSCOPE_PROFILER_WALL);
+        if (profilingWall == null || profilingWall.isEmpty()) {
+            return DEFAULT_PROFILER_WALL;
+        }
+        return profilingWall.trim().toLowerCase();
+    }
+
+    private static String profilingThreadNames(ConfigurationProvider configurationProvider) {
+        final String profilingThreadNames = configurationProvider.get(PYROSCOPE_PROFILER_THREAD_NAMES);
+        if (profilingThreadNames == null || profilingThreadNames.isEmpty()) {
+            return DEFAULT_PROFILER_THREAD_NAMES;
+        }
+        try {
+            Pattern.compile(profilingThreadNames);
+        } catch (PatternSyntaxException e) {
+            DefaultLogger.PRECONFIG_LOGGER.log(Logger.Level.WARN, "Invalid %s value %s, profiling all threads: %s",
+                PYROSCOPE_PROFILER_THREAD_NAMES, profilingThreadNames, e.getDescription());
+            return DEFAULT_PROFILER_THREAD_NAMES;
+        }
+        return profilingThreadNames;
+    }
+
+    private static double profilingOverheadBudget(ConfigurationProvider configurationProvider) {
+        final String str = configurationProvider.get(PYROSCOPE_PROFILER_OVERHEAD_BUDGET);
+        if (str == null || str.isEmpty()) {
+            return DEFAULT_PROFILER_OVERHEAD_BUDGET;
+        }
+        try {
+            double budget = Double.parseDouble(str);
+            if (!(budget > 0 && budget < 1)) {
+                return DEFAULT_PROFILER_OVERHEAD_BUDGET;
+            }
+            return budget;
+        } catch (NumberFormatException e) {
+            return DEFAULT_PROFILER_OVERHEAD_BUDGET;
+        }
+    }
+
     public static class Builder {
         public boolean agentEnabled = DEFAULT_AGENT_ENABLED;
         public String applicationName = null;
@@ -661,6 +1110,33 @@ public final class Config {
         private String APExtraArguments = null;
         private String basicAuthUser;
         private String basicAuthPassword;
+        public boolean labelsTransitionCache = DEFAULT_LABELS_TRANSITION_CACHE;
+        public boolean labelsPackedContexts = DEFAULT_LABELS_PACKED_CONTEXTS;
+        public boolean labelsPruneUnreferenced = DEFAULT_LABELS_PRUNE_UNREFERENCED;
+        public int labelsGcBudget = DEFAULT_LABELS_GC_BUDGET;
+        public boolean jfrFileSnapshots = DEFAULT_JFR_FILE_SNAPSHOTS;
+        public int ingestMaxInFlight = DEFAULT_INGEST_MAX_IN_FLIGHT;
+        public int spoolMaxTries = DEFAULT_SPOOL_MAX_TRIES;
+        public String spoolDirectory = null;
+        public long spoolMaxSize = DEFAULT_SPOOL_MAX_SIZE;
+        public int ingestBatchMaxSnapshots = DEFAULT_INGEST_BATCH_MAX_SNAPSHOTS;
+        public long ingestBatchMaxSize = DEFAULT_INGEST_BATCH_MAX_SIZE;
+        public Duration ingestConnectTimeout = DEFAULT_INGEST_CONNECT_TIMEOUT;
+        public Duration ingestReadTimeout = DEFAULT_INGEST_READ_TIMEOUT;
+        public Duration ingestCallTimeout = DEFAULT_INGEST_CALL_TIMEOUT;
+        public Duration ingestKeepAlive = DEFAULT_INGEST_KEEP_ALIVE;
+        public int ingestMaxIdleConnections = DEFAULT_INGEST_MAX_IDLE_CONNECTIONS;
+        public boolean ingestHttp2PriorKnowledge = DEFAULT_INGEST_HTTP2_PRIOR_KNOWLEDGE;
+        public Duration ingestDnsCacheTtl = null;
+        public boolean uploadIntervalAligned = DEFAULT_UPLOAD_INTERVAL_ALIGNED;
+        public String profilingWall = DEFAULT_PROFILER_WALL;
+        public boolean profilingThreadFilter = DEFAULT_PROFILER_THREAD_FILTER;
+        public String profilingThreadNames = DEFAULT_PROFILER_THREAD_NAMES;
+        public double profilingOverheadBudget = DEFAULT_PROFILER_OVERHEAD_BUDGET;
+        public boolean metricsJmx = DEFAULT_METRICS_JMX;
+        public int compressionThreads = DEFAULT_COMPRESSION_THREADS;
+        public String contentEncoding = DEFAULT_CONTENT_ENCODING;
+        public int collapsedMaxLabelSets = DEFAULT_COLLAPSED_MAX_LABEL_SETS;
 
         public Builder() {
         }
@@ -680,6 +1156,8 @@ public final class Config {
             authToken = buildUpon.authToken;
             format = buildUpon.format;
             pushQueueCapacity = buildUpon.pushQueueCapacity;
+            labels = buildUpon.labels;
+            ingestMaxRetries = buildUpon.ingestMaxTries;
             compressionLevelJFR = buildUpon.compressionLevelJFR;
             compressionLevelLabels = buildUpon.compressionLevelLabels;
             allocLive = buildUpon.allocLive;
@@ -691,6 +1169,33 @@ public final class Config {
             APExtraArguments = buildUpon.APExtraArguments;
             basicAuthUser = buildUpon.basicAuthUser;
             basicAuthPassword = buildUpon.basicAuthPassword;
+            labelsTransitionCache = buildUpon.labelsTransitionCache;
+            labelsPackedContexts = buildUpon.labelsPackedContexts;
+            labelsPruneUnreferenced = buildUpon.labelsPruneUnreferenced;
+            labelsGcBudget = buildUpon.labelsGcBudget;
+            jfrFileSnapshots = buildUpon.jfrFileSnapshots;
+            ingestMaxInFlight = buildUpon.ingestMaxInFlight;
+            spoolMaxTries = buildUpon.spoolMaxTries;
+            spoolDirectory = buildUpon.spoolDirectory;
+            spoolMaxSize = buildUpon.spoolMaxSize;
+            ingestBatchMaxSnapshots = buildUpon.ingestBatchMaxSnapshots;
+            ingestBatchMaxSize = buildUpon.ingestBatchMaxSize;
+            ingestConnectTimeout = buildUpon.ingestConnectTimeout;
+            ingestReadTimeout = buildUpon.ingestReadTimeout;
+            ingestCallTimeout = buildUpon.ingestCallTimeout;
+            ingestKeepAlive = buildUpon.ingestKeepAlive;
+            ingestMaxIdleConnections = buildUpon.ingestMaxIdleConnections;
+            ingestHttp2PriorKnowledge = buildUpon.ingestHttp2PriorKnowledge;
+            ingestDnsCacheTtl = buildUpon.ingestDnsCacheTtl;
+            uploadIntervalAligned = buildUpon.uploadIntervalAligned;
+            profilingWall = buildUpon.profilingWall;
+            profilingThreadFilter = buildUpon.profilingThreadFilter;
+            profilingThreadNames = buildUpon.profilingThreadNames;
+            profilingOverheadBudget = buildUpon.profilingOverheadBudget;
+            metricsJmx = buildUpon.metricsJmx;
+            compressionThreads = buildUpon.compressionThreads;
+            contentEncoding = buildUpon.contentEncoding;
+            collapsedMaxLabelSets = buildUpon.collapsedMaxLabelSets;
         }
 
         public Builder setAgentEnabled(boolean agentEnabled) {
@@ -833,6 +1338,141 @@ public final class Config {
             return this;
         }
 
+        public Builder setLabelsTransitionCache(boolean labelsTransitionCache) {
+            this.labelsTransitionCache = labelsTransitionCache;
+            return this;
+        }
+
+        public Builder setLabelsPackedContexts(boolean labelsPackedContexts) {
+            this.labelsPackedContexts = labelsPackedContexts;
+            return this;
+        }
+
+        public Builder setLabelsPruneUnreferenced(boolean labelsPruneUnreferenced) {
+            this.labelsPruneUnreferenced = labelsPruneUnreferenced;
+            return this;
+        }
+
+        public Builder setLabelsGcBudget(int labelsGcBudget) {
+            this.labelsGcBudget = labelsGcBudget;
+            return this;
+        }
+
+        public Builder setJfrFileSnapshots(boolean jfrFileSnapshots) {
+            this.jfrFileSnapshots = jfrFileSnapshots;
+            return this;
+        }
+
+        public Builder setIngestMaxInFlight(int ingestMaxInFlight) {
+            this.ingestMaxInFlight = ingestMaxInFlight;
+            return this;
+        }
+
+        public Builder setSpoolMaxTries(int spoolMaxTries) {
+            this.spoolMaxTries = spoolMaxTries;
+            return this;
+        }
+
+        public Builder setSpoolDirectory(String spoolDirectory) {
+            this.spoolDirectory = spoolDirectory;
+            return this;
+        }
+
+        public Builder setSpoolMaxSize(long spoolMaxSize) {
+            this.spoolMaxSize = spoolMaxSize;
+            return this;
+        }
+
+        public Builder setIngestBatchMaxSnapshots(int ingestBatchMaxSnapshots) {
+            this.ingestBatchMaxSnapshots = ingestBatchMaxSnapshots;
+            return this;
+        }
+
+        public Builder setIngestBatchMaxSize(long ingestBatchMaxSize) {
+            this.ingestBatchMaxSize = ingestBatchMaxSize;
+            return this;
+        }
+
+        public Builder setIngestConnectTimeout(Duration ingestConnectTimeout) {
+            this.ingestConnectTimeout = ingestConnectTimeout;
+            return this;
+        }
+
+        public Builder setIngestReadTimeout(Duration ingestReadTimeout) {
+            this.ingestReadTimeout = ingestReadTimeout;
+            return this;
+        }
+
+        public Builder setIngestCallTimeout(Duration ingestCallTimeout) {
+            this.ingestCallTimeout = ingestCallTimeout;
+            return this;
+        }
+
+        public Builder setIngestKeepAlive(Duration ingestKeepAlive) {
+            this.ingestKeepAlive = ingestKeepAlive;
+            return this;
+        }
+
+        public Builder setIngestMaxIdleConnections(int ingestMaxIdleConnections) {
+            this.ingestMaxIdleConnections = ingestMaxIdleConnections;
+            return this;
+        }
+
+        public Builder setIngestHttp2PriorKnowledge(boolean ingestHttp2PriorKnowledge) {
+            this.ingestHttp2PriorKnowledge = ingestHttp2PriorKnowledge;
+            return this;
+        }
+
+        public Builder setIngestDnsCacheTtl(Duration ingestDnsCacheTtl) {
+            this.ingestDnsCacheTtl = ingestDnsCacheTtl;
+            return this;
+        }
+
+        public Builder setUploadIntervalAligned(boolean uploadIntervalAligned) {
+            this.uploadIntervalAligned = uploadIntervalAligned;
+            return this;
+        }
+
+        public Builder setProfilingWall(String profilingWall) {
+            this.profilingWall = profilingWall;
+            return this;
+        }
+
+        public Builder setProfilingThreadFilter(boolean profilingThreadFilter) {
+            this.profilingThreadFilter = profilingThreadFilter;
+            return this;
+        }
+
+        public Builder setProfilingThreadNames(String profilingThreadNames) {
+            this.profilingThreadNames = profilingThreadNames;
+            return this;
+        }
+
+        public Builder setProfilingOverheadBudget(double profilingOverheadBudget) {
+            this.profilingOverheadBudget = profilingOverheadBudget;
+            return this;
+        }
+
+        public Builder setMetricsJmx(boolean metricsJmx) {
+            this.metricsJmx = metricsJmx;
+            return this;
+        }
+
+        public Builder setCompressionThreads(int compressionThreads) {
+            this.compressionThreads = compressionThreads;
+            return this;
+        }
+
+        public Builder setContentEncoding(String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+            return this;
+        }
+
+        public Builder setCollapsedMaxLabelSets(int collapsedMaxLabelSets) {
+            this.collapsedMaxLabelSets = collapsedMaxLabelSets;
+            return this;
+        }
+
         public Config build() {
             if (applicationName == null || applicationName.isEmpty()) {
                 applicationName = generateApplicationName();
@@ -863,7 +1503,34 @@ public final class Config {
                 APLogLevel,
                 APExtraArguments,
                 basicAuthUser,
-                basicAuthPassword);
+                basicAuthPassword,
+                labelsTransitionCache,
+                labelsPackedContexts,
+                labelsPruneUnreferenced,
+                labelsGcBudget,
+                jfrFileSnapshots,
+                ingestMaxInFlight,
+                spoolMaxTries,
+                spoolDirectory,
+                spoolMaxSize,
+                ingestBatchMaxSnapshots,
+                ingestBatchMaxSize,
+                ingestConnectTimeout,
+                ingestReadTimeout,
+                ingestCallTimeout,
+                ingestKeepAlive,
+                ingestMaxIdleConnections,
+                ingestHttp2PriorKnowledge,
+                ingestDnsCacheTtl,
+                uploadIntervalAligned,
+                profilingWall,
+                profilingThreadFilter,
+                profilingThreadNames,
+                profilingOverheadBudget,
+                metricsJmx,
+                compressionThreads,
+                contentEncoding,
+                collapsedMaxLabelSets);
         }
     }
 }
@@ -0,0 +1,249 @@
+package io.pyroscope.javaagent.impl;
+
+import io.pyroscope.javaagent.AgentMetrics;
+import io.pyroscope.javaagent.OverfillQueue;
+import io.pyroscope.javaagent.Snapshot;
+import io.pyroscope.javaagent.SnapshotBatch;
+import io.pyroscope.javaagent.api.Exporter;
+import io.pyroscope.javaagent.api.Logger;
+import io.pyroscope.javaagent.config.Config;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Alternative to {@link QueuedExporter} which keeps up to {@link Config#ingestMaxInFlight} uploads in flight.
+ * <p>
+ * Snapshots are queued like in {@link QueuedExporter}. A dispatcher thread encodes them and starts their uploads
+ * with OkHttp's asynchronous calls. Retries are scheduled on a timer after the backoff instead of sleeping,
+ * so one slow or failing upload does not hold back the following ones.
+ * An upload occupies its in-flight slot until it succeeds or is given up, including while waiting for a retry.
+ */
+public class AsyncExporter implements Exporter {
+    private static final ThreadFactory RETRY_THREAD_FACTORY = r -> {
+        Thread t = Executors.defaultThreadFactory().newThread(r);
+        t.setName("PyroscopeUploadRetry");
+        t.setDaemon(true);
+        return t;
+    };
+
+    final Config config;
+    final PyroscopeExporter impl;
+    final Logger logger;
+    private final Thread thread;
+    private final OverfillQueue<Snapshot> queue;
+    private final Semaphore inFlight;
+    private final ScheduledExecutorService retryExecutor;
+    // uploads waiting for their retry, whoever removes one first either retries it or gives it up
+    private final Set<Upload> waiting = ConcurrentHashMap.newKeySet();
+
+    public AsyncExporter(Config config, PyroscopeExporter impl, Logger logger) {
+        if (config.ingestMaxInFlight < 1) {
+            throw new IllegalArgumentException("ingestMaxInFlight must be >= 1");
+        }
+        this.config = config;
+        this.impl = impl;
+        this.logger = logger;
+        this.inFlight = new Semaphore(config.ingestMaxInFlight);
+        impl.client.dispatcher().setMaxRequests(config.ingestMaxInFlight);
+        impl.client.dispatcher().setMaxRequestsPerHost(config.ingestMaxInFlight);
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor(RETRY_THREAD_FACTORY);
+        // dropped snapshots are never exported, clean up their files here
+        this.queue = new OverfillQueue<>(config.pushQueueCapacity, Snapshot::release);
+        AgentMetrics.INSTANCE.setQueue(queue);
+        this.thread = new Thread(this::dispatchLoop);
+        this.thread.setName("PyroscopeUploadDispatcher");
+        this.thread.setDaemon(true);
+
+        this.thread.start();
+    }
+
+    private void dispatchLoop() {
+        logger.log(Logger.Level.DEBUG, "Uploading started");
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final Snapshot snapshot = queue.take();
+                final List<Snapshot> parts = SnapshotBatch.split(snapshot);
+                for (int i = 0; i < parts.size(); i++) {
+                    try {
+                        // every part is released once its upload is done
+                        dispatch(parts.get(i));
+                    } catch (final InterruptedException e) {
+                        for (Snapshot part : parts.subList(i + 1, parts.size())) {
+                            part.release();
+                        }
+                        throw e;
+                    }
+                }
+            }
+        } catch (final InterruptedException e) {
+            logger.log(Logger.Level.DEBUG, "Uploading interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dispatch(final Snapshot snapshot) throws InterruptedException {
+        try {
+            inFlight.acquire();
+        } catch (final InterruptedException e) {
+            snapshot.release();
+            throw e;
+        }
+        final PyroscopeExporter.EncodedSnapshot encoded;
+        try {
+            encoded = impl.encode(snapshot);
+        } catch (final Throwable e) {
+            logger.log(Logger.Level.ERROR, "Error encoding snapshot: %s", e.getMessage());
+            snapshot.release();
+            inFlight.release();
+            return;
+        }
+        new Upload(encoded).attempt();
+    }
+
+    /**
+     * Stops the dispatcher and gives up the uploads waiting for a retry. Uploads in flight complete,
+     * but are not retried anymore.
+     */
+    @Override
+    public void stop() {
+        thread.interrupt();
+        retryExecutor.shutdownNow();
+        for (Upload upload : waiting) {
+            if (waiting.remove(upload)) {
+                upload.done();
+            }
+        }
+        impl.stop();
+    }
+
+    @Override
+    public void export(Snapshot snapshot) {
+        try {
+            queue.put(snapshot);
+        } catch (final InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Upload implements Callback {
+        private PyroscopeExporter.EncodedSnapshot encoded;
+        private final ExponentialBackoff backoff = PyroscopeExporter.newBackoff();
+        private int tries = 0;
+        private long attemptStart;
+
+        Upload(PyroscopeExporter.EncodedSnapshot encoded) {
+            this.encoded = encoded;
+        }
+
+        void attempt() {
+            tries++;
+            impl.logAttempt(encoded, tries);
+            attemptStart = System.nanoTime();
+            try {
+                impl.client.newCall(impl.request(encoded)).enqueue(this);
+            } catch (final Throwable e) {
+                logger.log(Logger.Level.ERROR, "Error uploading snapshot: %s", e.getMessage());
+                done();
+            }
+        }
+
+        @Override
+        public void onFailure(@NotNull Call call, @NotNull IOException e) {
+            logger.log(Logger.Level.ERROR, "Error uploading snapshot: %s", e.getMessage());
+            AgentMetrics.INSTANCE.recordUpload(System.nanoTime() - attemptStart, encoded.size, false);
+            retry();
+        }
+
+        @Override
+        public void onResponse(@NotNull Call call, @NotNull Response response) {
+            boolean retry;
+            boolean accepted = response.isSuccessful();
+            try (Response r = response) {
+                if (impl.rejectsEncoding(r, encoded.contentEncoding)) {
+                    reencode();
+                    return;
+                }
+                retry = impl.shouldRetry(r);
+            } catch (final IOException e) {
+                logger.log(Logger.Level.ERROR, "Error uploading snapshot: %s", e.getMessage());
+                retry = true;
+                accepted = false;
+            }
+            AgentMetrics.INSTANCE.recordUpload(System.nanoTime() - attemptStart, encoded.size, accepted);
+            if (retry) {
+                retry();
+            } else {
+                if (!accepted) {
+                    AgentMetrics.INSTANCE.recordUploadFailure();
+                }
+                done();
+            }
+        }
+
+        /**
+         * Encodes the snapshot again with the fallback codec and resends it right away, on the retry thread
+         * rather than OkHttp's.
+         */
+        private void reencode() {
+            try {
+                retryExecutor.execute(() -> {
+                    encoded.release();
+                    try {
+                        encoded = impl.encode(encoded.snapshot);
+                    } catch (final Throwable e) {
+                        logger.log(Logger.Level.ERROR, "Error encoding snapshot: %s", e.getMessage());
+                        done();
+                        return;
+                    }
+                    tries--;
+                    attempt();
+                });
+            } catch (final RejectedExecutionException e) {
+                done();
+            }
+        }
+
+        private void retry() {
+            if (config.ingestMaxTries >= 0 && tries >= config.ingestMaxTries) {
+                logger.log(Logger.Level.ERROR, "Gave up uploading profiling snapshot after %d tries", tries);
+                AgentMetrics.INSTANCE.recordUploadFailure();
+                done();
+                return;
+            }
+            AgentMetrics.INSTANCE.recordUploadRetry();
+            final int backoffMillis = backoff.error();
+            logger.log(Logger.Level.DEBUG, "Backing off for %s ms", backoffMillis);
+            waiting.add(this);
+            try {
+                retryExecutor.schedule(() -> {
+                    if (waiting.remove(this)) {
+                        attempt();
+                    }
+                }, backoffMillis, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                if (waiting.remove(this)) {
+                    done();
+                }
+            }
+        }
+
+        private void done() {
+            encoded.release();
+            encoded.snapshot.release();
+            inFlight.release();
+        }
+    }
+}
@@ -6,10 +6,15 @@ import io.pyroscope.javaagent.api.Exporter;
 import io.pyroscope.javaagent.api.Logger;
 import io.pyroscope.javaagent.api.ProfilingScheduler;
 import io.pyroscope.javaagent.config.Config;
-import kotlin.random.Random;
+import io.pyroscope.labels.Pyroscope;
 
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.*;
 
 
@@ -20,9 +25,17 @@ public class ContinuousProfilingScheduler implements ProfilingScheduler {
         t.setDaemon(true);
         return t;
     };
+    private static final ThreadFactory ROTATION_THREAD_FACTORY = r -> {
+        Thread t = Executors.defaultThreadFactory().newThread(r);
+        t.setName("PyroscopeProfilingRotation");
+        t.setDaemon(true);
+        return t;
+    };
     private final Config config;
 
-    private ScheduledExecutorService executor;
+    private ScheduledThreadPoolExecutor executor;
+    // builds and exports the snapshots of finished intervals while the next one is being profiled
+    private ExecutorService rotationExecutor;
     private final Exporter exporter;
     private final Logger logger;
     private final Object lock = new Object();
@@ -30,6 +43,13 @@ public class ContinuousProfilingScheduler implements ProfilingScheduler {
     private ScheduledFuture<?> job;
     private boolean started;
     private Profiler profiler;
+    // Aligned mode: the boundary the next tick is scheduled for, and snapshots waiting for the upload offset.
+    private long nextBoundaryMillis;
+    private long uploadOffsetMillis;
+    private final ArrayDeque<Snapshot> delayedExports = new ArrayDeque<>();
+    // adapts the profiler settings to the overhead budget, null if there is no budget
+    private OverheadController overhead;
+    private long overheadPeriodStartNanos;
 
     public ContinuousProfilingScheduler(Config config, Exporter exporter, Logger logger) {
         this.config = config;
@@ -52,10 +72,22 @@ public class ContinuousProfilingScheduler implements ProfilingScheduler {
                 throw new IllegalStateException(throwable);
             }
             this.profiler = profiler;
-            this.executor = Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
-            this.job = executor.scheduleAtFixedRate(this::schedulerTick,
-                firstProfilingDuration.toMillis(), config.uploadInterval.toMillis(), TimeUnit.MILLISECONDS);
+            if (config.profilingOverheadBudget > 0) {
+                this.overhead = new OverheadController(config);
+                this.overheadPeriodStartNanos = System.nanoTime();
+            }
+            this.executor = new ScheduledThreadPoolExecutor(1, THREAD_FACTORY);
+            // delayed exports are flushed by stop(), do not wait for their offset
+            this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            this.rotationExecutor = Executors.newSingleThreadExecutor(ROTATION_THREAD_FACTORY);
             this.started = true;
+            if (config.uploadIntervalAligned) {
+                uploadOffsetMillis = uploadOffsetMillis(config);
+                scheduleAlignedTickLocked(System.currentTimeMillis() + firstProfilingDuration.toMillis());
+            } else {
+                this.job = executor.scheduleAtFixedRate(this::schedulerTick,
+                    firstProfilingDuration.toMillis(), config.uploadInterval.toMillis(), TimeUnit.MILLISECONDS);
+            }
             logger.log(Logger.Level.DEBUG, "ContinuousProfilingScheduler started");
         }
     }
@@ -63,6 +95,7 @@ public class ContinuousProfilingScheduler implements ProfilingScheduler {
     @Override
     public void stop() {
         ScheduledExecutorService svc = null;
+        ExecutorService rotationSvc = null;
         try {
             synchronized (lock) {
                 try {
@@ -70,6 +103,8 @@ public class ContinuousProfilingScheduler implements ProfilingScheduler {
                 } finally {
                     svc = this.executor;
                     this.executor = null;
+                    rotationSvc = this.rotationExecutor;
+                    this.rotationExecutor = null;
                 }
             }
             this.logger.log(Logger.Level.DEBUG, "ContinuousProfilingScheduler stopped");
@@ -79,10 +114,15 @@ public class ContinuousProfilingScheduler implements ProfilingScheduler {
             // There is still synchronization happens from the PyroscopeAgent class,
             // so there are no concurrent calls to start/stop. So there is no lock here
             awaitTermination(svc);
+            // rotations in progress still export their snapshots
+            if (rotationSvc != null) {
+                rotationSvc.shutdown();
+                awaitTermination(rotationSvc);
+            }
         }
     }
 
-    private static void awaitTermination(ScheduledExecutorService svc) {
+    private static void awaitTermination(ExecutorService svc) {
         try {
             boolean terminated = svc.awaitTermination(10, TimeUnit.SECONDS);
             if (!terminated) {
@@ -104,42 +144,190 @@ public class ContinuousProfilingScheduler implements ProfilingScheduler {
         } catch (Throwable throwable) {
             throw new IllegalStateException(throwable);
         } finally {
-            job.cancel(true);
+            if (job != null) {
+                job.cancel(true);
+            }
             executor.shutdown();
             this.started = false;
+            flushDelayedExportsLocked();
         }
     }
 
 
     private void schedulerTick() {
+        synchronized (lock) {
+            Profiler.Rotation rotation = rotateLocked();
+            if (rotation != null) {
+                rotationExecutor.execute(() -> finishRotation(rotation, 0));
+            }
+        }
+    }
 
+    private void alignedTick() {
         synchronized (lock) {
-            if (!started) {
+            Profiler.Rotation rotation = rotateLocked();
+            if (rotation == null) {
                 return;
             }
-            logger.log(Logger.Level.DEBUG, "ContinuousProfilingScheduler#schedulerTick");
-            Snapshot snapshot;
-            Instant now;
-            try {
-                profiler.stop();
-                now = Instant.now();
-                snapshot = profiler.dumpProfile(this.profilingIntervalStartTime, now);
-                profiler.start();
-            } catch (Throwable throwable) {
-                logger.log(Logger.Level.ERROR, "Error dumping profiler %s", throwable);
-                stopSchedulerLocked();
-                return;
+            scheduleAlignedTickLocked(Math.max(System.currentTimeMillis(), nextBoundaryMillis));
+            long offsetMillis = uploadOffsetMillis;
+            rotationExecutor.execute(() -> finishRotation(rotation, offsetMillis));
+        }
+    }
+
+    /**
+     * Builds the snapshot of a finished interval off the scheduler lock and exports it,
+     * {@code offsetMillis} after the end of the interval.
+     */
+    private void finishRotation(Profiler.Rotation rotation, long offsetMillis) {
+        final OverheadController overhead = this.overhead;
+        final long cpuStart = overhead != null ? OverheadController.cpuNanos() : 0;
+        final Snapshot snapshot;
+        try {
+            snapshot = rotation.snapshot();
+        } catch (Throwable throwable) {
+            logger.log(Logger.Level.ERROR, "Error dumping profiler %s", throwable);
+            return;
+        }
+        try {
+            export(snapshot, offsetMillis);
+        } finally {
+            if (overhead != null) {
+                overhead.record(OverheadController.cpuNanos() - cpuStart, snapshot.size());
+            }
+        }
+    }
+
+    private void export(Snapshot snapshot, long offsetMillis) {
+        if (offsetMillis > 0) {
+            synchronized (lock) {
+                // once stopped, pending snapshots are exported right away
+                if (started) {
+                    long delayMillis = snapshot.ended.toEpochMilli() + offsetMillis - System.currentTimeMillis();
+                    delayedExports.add(snapshot);
+                    executor.schedule(this::delayedExport, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+                    return;
+                }
             }
-            profilingIntervalStartTime = now;
+        }
+        exporter.export(snapshot);
+    }
+
+    private void delayedExport() {
+        final Snapshot snapshot;
+        synchronized (lock) {
+            snapshot = delayedExports.poll();
+        }
+        if (snapshot != null) {
+            exporter.export(snapshot);
+        }
+    }
+
+    private void flushDelayedExportsLocked() {
+        Snapshot snapshot;
+        while ((snapshot = delayedExports.poll()) != null) {
             exporter.export(snapshot);
         }
     }
 
+    /**
+     * Schedules the next tick at the first wall clock multiple of uploadInterval after {@code afterMillis}.
+     * Every tick is scheduled on its own, so the boundaries do not drift with the scheduling delays of previous ticks.
+     */
+    private void scheduleAlignedTickLocked(long afterMillis) {
+        long intervalMillis = config.uploadInterval.toMillis();
+        nextBoundaryMillis = (afterMillis / intervalMillis + 1) * intervalMillis;
+        long delayMillis = Math.max(0, nextBoundaryMillis - System.currentTimeMillis());
+        job = executor.schedule(this::alignedTick, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Switches the profiler to the next interval, the profiler is only paused for the switch.
+     *
+     * @return the interval that just ended, null if the scheduler is stopped or failed
+     */
+    private Profiler.Rotation rotateLocked() {
+        if (!started) {
+            return null;
+        }
+        logger.log(Logger.Level.DEBUG, "ContinuousProfilingScheduler#schedulerTick");
+        final long cpuStart = overhead != null ? OverheadController.cpuNanos() : 0;
+        Profiler.Rotation rotation;
+        Instant now;
+        try {
+            adjustOverheadLocked();
+            now = Instant.now();
+            rotation = profiler.rotate(this.profilingIntervalStartTime, now);
+        } catch (Throwable throwable) {
+            logger.log(Logger.Level.ERROR, "Error dumping profiler %s", throwable);
+            stopSchedulerLocked();
+            return null;
+        }
+        profilingIntervalStartTime = now;
+        if (overhead != null) {
+            overhead.record(OverheadController.cpuNanos() - cpuStart, 0);
+        }
+        return rotation;
+    }
+
+    /**
+     * Applies the settings for the overhead measured since the last adjustment to the next interval.
+     * The measurement lags behind by an interval, as the previous interval is still being dumped and exported.
+     */
+    private void adjustOverheadLocked() {
+        if (overhead == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        Config next = overhead.adjust(now - overheadPeriodStartNanos);
+        overheadPeriodStartNanos = now;
+        if (next != null) {
+            logger.log(Logger.Level.DEBUG, "Overhead budget: profiling interval %s, alloc %s",
+                next.profilingInterval, next.profilingAlloc);
+            profiler.reset(next);
+        }
+    }
+
+    /**
+     * Delay between the end of an aligned profiling interval and its export, stable for an instance and spread
+     * over uploadInterval across instances. Derived from a hash of the application name, the labels and the host name,
+     * so instances of one application which are only told apart by their host still get different offsets.
+     */
+    static long uploadOffsetMillis(Config config) {
+        StringBuilder key = new StringBuilder(config.timeseries.toString());
+        Map<String, String> labels = new TreeMap<>(Pyroscope.getStaticLabels());
+        labels.putAll(config.labels);
+        key.append(labels).append('@').append(hostName());
+        // FNV-1a over the key, then a 64 bit finalizer so similar keys land far apart
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.toString().getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return Math.floorMod(h, config.uploadInterval.toMillis());
+    }
+
+    private static String hostName() {
+        String host = System.getenv("HOSTNAME");
+        if (host != null && !host.isEmpty()) {
+            return host;
+        }
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return "";
+        }
+    }
 
     /**
      * Starts the first profiling interval.
      * profilingIntervalStartTime is set to now
      * Duration of the first profiling interval is a random fraction of uploadInterval not smaller than 2000ms.
+     * In aligned mode the first interval ends on the first wall clock boundary at least 2000ms away,
+     * the returned duration is that minimum.
      *
      * @return Duration of the first profiling interval
      */
@@ -147,8 +335,12 @@ public class ContinuousProfilingScheduler implements ProfilingScheduler {
         Instant now = Instant.now();
 
         long uploadIntervalMillis = config.uploadInterval.toMillis();
-        float randomOffset = Random.Default.nextFloat();
-        uploadIntervalMillis = (long) ((float) uploadIntervalMillis * randomOffset);
+        if (config.uploadIntervalAligned) {
+            uploadIntervalMillis = 0;
+        } else {
+            float randomOffset = ThreadLocalRandom.current().nextFloat();
+            uploadIntervalMillis = (long) ((float) uploadIntervalMillis * randomOffset);
+        }
         if (uploadIntervalMillis < 2000) {
             uploadIntervalMillis = 2000;
         }
@@ -0,0 +1,116 @@
+package io.pyroscope.javaagent.impl;
+
+import io.pyroscope.javaagent.config.Config;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+
+/**
+ * Adapts the sampling interval and the allocation sampling threshold to {@link Config#profilingOverheadBudget}.
+ * <p>
+ * The cost of an interval is the CPU time the agent threads spend on rotating, dumping and exporting it, plus
+ * an estimate of compressing and uploading its bytes. The sampling itself runs in signal handlers on the
+ * application threads and cannot be measured, but it grows with the number of samples like the cost above does.
+ * Both settings are scaled by the same factor, between 1 (the configured values) and {@link #MAX_SCALE}.
+ * The cost shrinks roughly linearly with the factor, the factor moves by the square root of the ratio
+ * of the measured overhead to the budget, so it converges without overshooting on noisy intervals.
+ */
+final class OverheadController {
+    static final double MAX_SCALE = 10;
+    // deflating and uploading a recording runs at roughly 100MB/s at the default compression level
+    static final long UPLOAD_NANOS_PER_BYTE = 10;
+    // scale changes below this fraction are ignored, so consecutive snapshots keep the same sample rate
+    private static final double MIN_CHANGE = 0.1;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final Config config;
+    private double scale = 1;
+    private long costNanos;
+    private long bytes;
+
+    OverheadController(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Adds to the cost of the current measurement period, may be called from any thread.
+     */
+    synchronized void record(long cpuNanos, long bytes) {
+        this.costNanos += Math.max(0, cpuNanos);
+        this.bytes += bytes;
+    }
+
+    /**
+     * Ends the measurement period.
+     *
+     * @param wallNanos the length of the period
+     * @return the config to apply to the next recording, null if the current settings stay
+     */
+    synchronized Config adjust(long wallNanos) {
+        long cost = costNanos + bytes * UPLOAD_NANOS_PER_BYTE;
+        costNanos = 0;
+        bytes = 0;
+        if (wallNanos <= 0) {
+            return null;
+        }
+        double overhead = (double) cost / wallNanos;
+        double next = scale * Math.sqrt(overhead / config.profilingOverheadBudget);
+        next = Math.max(1, Math.min(MAX_SCALE, next));
+        if (Math.abs(next - scale) < scale * MIN_CHANGE) {
+            return null;
+        }
+        scale = next;
+        return scaled(config, scale);
+    }
+
+    double scale() {
+        return scale;
+    }
+
+    static Config scaled(Config config, double scale) {
+        long intervalMicros = Math.round(config.profilingInterval.toNanos() * scale / 1000);
+        Config.Builder builder = config.newBuilder()
+            .setProfilingInterval(Duration.ofNanos(intervalMicros * 1000));
+        long alloc = parseSize(config.profilingAlloc);
+        if (alloc > 0) {
+            builder.setProfilingAlloc(Long.toString(Math.round(alloc * scale)));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Parses an async-profiler size argument, bytes with an optional k, m or g suffix.
+     *
+     * @return the size in bytes, -1 if the argument is empty or invalid
+     */
+    static long parseSize(String size) {
+        if (size == null || size.isEmpty()) {
+            return -1;
+        }
+        long unit = 1;
+        switch (Character.toLowerCase(size.charAt(size.length() - 1))) {
+            case 'k':
+                unit = 1024;
+                break;
+            case 'm':
+                unit = 1024 * 1024;
+                break;
+            case 'g':
+                unit = 1024 * 1024 * 1024;
+                break;
+        }
+        try {
+            return Long.parseLong(unit == 1 ? size : size.substring(0, size.length() - 1)) * unit;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the CPU time of the current thread, 0 if the JVM does not measure it
+     */
+    static long cpuNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+}
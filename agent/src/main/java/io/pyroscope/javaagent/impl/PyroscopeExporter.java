@@ -1,112 +1,351 @@
 package io.pyroscope.javaagent.impl;
 
 import io.pyroscope.http.Format;
+import io.pyroscope.javaagent.AgentMetrics;
 import io.pyroscope.javaagent.EventType;
 import io.pyroscope.javaagent.Snapshot;
+import io.pyroscope.javaagent.SnapshotBatch;
 import io.pyroscope.javaagent.api.Exporter;
 import io.pyroscope.javaagent.api.Logger;
+import io.pyroscope.javaagent.config.AppName;
 import io.pyroscope.javaagent.config.Config;
-import io.pyroscope.javaagent.util.zip.GzipSink;
+import io.pyroscope.javaagent.util.CachingDns;
+import io.pyroscope.javaagent.util.pprof.JfrToPprof;
+import io.pyroscope.javaagent.util.zip.Codec;
+import io.pyroscope.javaagent.util.zip.Codecs;
+import io.pyroscope.javaagent.util.zip.GzipRequestBody;
+import io.pyroscope.javaagent.util.zip.ParallelGzip;
 import io.pyroscope.labels.Pyroscope;
+import io.pyroscope.labels.pb.JfrLabels;
 import okhttp3.*;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.time.Duration;
+import java.io.OutputStream;
 import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.Deflater;
 
 public class PyroscopeExporter implements Exporter {
-    private static final Duration TIMEOUT = Duration.ofSeconds(10);//todo allow configuration
     private static final MediaType PROTOBUF = MediaType.parse("application/x-protobuf");
+    private static final MediaType JSON = MediaType.parse("application/json");
+    private static final int UNSUPPORTED_MEDIA_TYPE = 415;
 
     final Config config;
     final Logger logger;
     final OkHttpClient client;
+    // null if the parts are compressed serially
+    final ParallelGzip parallelGzip;
+    // codec of the following uploads, falls back to gzip once the server rejects it
+    private volatile Codec codec;
 
     public PyroscopeExporter(Config config, Logger logger) {
         this.config = config;
         this.logger = logger;
-        this.client = new OkHttpClient.Builder()
-            .connectTimeout(TIMEOUT)
-            .readTimeout(TIMEOUT)
-            .callTimeout(TIMEOUT)
-            .build();
+        this.client = newClient(config);
+        this.parallelGzip = config.compressionThreads > 1 ? new ParallelGzip(config.compressionThreads) : null;
+        Codec codec = Codecs.forName(config.contentEncoding);
+        if (codec == null) {
+            logger.log(Logger.Level.WARN, "Unknown content encoding %s, using gzip", config.contentEncoding);
+            codec = Codecs.GZIP;
+        }
+        this.codec = codec;
+    }
 
+    /**
+     * @return a client with the timeouts, connection pool, protocols and DNS cache of {@link Config}
+     */
+    public static OkHttpClient newClient(final Config config) {
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+            .connectTimeout(config.ingestConnectTimeout)
+            .readTimeout(config.ingestReadTimeout)
+            .callTimeout(config.ingestCallTimeout)
+            .connectionPool(new ConnectionPool(config.ingestMaxIdleConnections,
+                config.ingestKeepAlive.toMillis(), TimeUnit.MILLISECONDS));
+        HttpUrl server = HttpUrl.parse(config.serverAddress);
+        // https negotiates HTTP/2 over ALPN regardless of this setting
+        if (config.ingestHttp2PriorKnowledge && server != null && !server.isHttps()) {
+            // cleartext HTTP/2 without an upgrade
+            builder.protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        }
+        if (config.ingestDnsCacheTtl != null) {
+            builder.dns(new CachingDns(Dns.SYSTEM, config.ingestDnsCacheTtl));
+        }
+        return builder.build();
+    }
+
+    @Override
+    public void stop() {
+        if (parallelGzip != null) {
+            parallelGzip.shutdown();
+        }
     }
 
     @Override
     public void export(Snapshot snapshot) {
         try {
-            uploadSnapshot(snapshot);
+            for (Snapshot part : SnapshotBatch.split(snapshot)) {
+                uploadSnapshot(part);
+            }
         } catch (final InterruptedException ignored) {
             Thread.currentThread().interrupt();
+        } finally {
+            snapshot.release();
         }
     }
 
     private void uploadSnapshot(final Snapshot snapshot) throws InterruptedException {
-        final HttpUrl url = urlForSnapshot(snapshot);
-        final ExponentialBackoff exponentialBackoff = new ExponentialBackoff(1_000, 30_000, new Random());
+        final ExponentialBackoff exponentialBackoff = newBackoff();
         boolean retry = true;
         int tries = 0;
-        while (retry) {
-            tries++;
-            final RequestBody requestBody;
-            byte[] labels = snapshot.labels.toByteArray();
-            logger.log(Logger.Level.DEBUG, "Upload attempt %d to %s. %s %s JFR: %s, labels: %s", tries, url.toString(),
-                snapshot.started.toString(), snapshot.ended.toString(), snapshot.data.length, labels.length);
-            MultipartBody.Builder bodyBuilder = new MultipartBody.Builder()
-                .setType(MultipartBody.FORM);
-            RequestBody jfrBody = RequestBody.create(snapshot.data);
-            if (config.compressionLevelJFR != Deflater.NO_COMPRESSION) {
-                jfrBody = GzipSink.gzip(jfrBody, config.compressionLevelJFR);
-            }
-            bodyBuilder.addFormDataPart("jfr", "jfr", jfrBody);
-            if (labels.length > 0) {
-                RequestBody labelsBody = RequestBody.create(labels, PROTOBUF);
-                if (config.compressionLevelLabels != Deflater.NO_COMPRESSION) {
-                    labelsBody = GzipSink.gzip(labelsBody, config.compressionLevelLabels);
+        EncodedSnapshot encoded;
+        try {
+            encoded = encode(snapshot);
+        } catch (final IOException e) {
+            logger.log(Logger.Level.ERROR, "Error encoding snapshot: %s", e.getMessage());
+            return;
+        }
+        try {
+            while (retry) {
+                tries++;
+                logAttempt(encoded, tries);
+                final long start = System.nanoTime();
+                boolean accepted = false;
+                boolean reencode = false;
+                try (Response response = client.newCall(request(encoded)).execute()) {
+                    reencode = rejectsEncoding(response, encoded.contentEncoding);
+                    retry = reencode || shouldRetry(response);
+                    accepted = response.isSuccessful();
+                } catch (final IOException e) {
+                    logger.log(Logger.Level.ERROR, "Error uploading snapshot: %s", e.getMessage());
+                    retry = true;
+                }
+                if (reencode) {
+                    // resent right away with gzip, not counted as a try
+                    tries--;
+                    encoded.release();
+                    try {
+                        encoded = encode(snapshot);
+                    } catch (final IOException e) {
+                        logger.log(Logger.Level.ERROR, "Error encoding snapshot: %s", e.getMessage());
+                        return;
+                    }
+                    continue;
+                }
+                AgentMetrics.INSTANCE.recordUpload(System.nanoTime() - start, encoded.size, accepted);
+                if (!accepted && !retry) {
+                    AgentMetrics.INSTANCE.recordUploadFailure();
+                }
+                if (retry) {
+                    if (config.ingestMaxTries >= 0 && tries >= config.ingestMaxTries) {
+                        logger.log(Logger.Level.ERROR, "Gave up uploading profiling snapshot after %d tries", tries);
+                        AgentMetrics.INSTANCE.recordUploadFailure();
+                        break;
+                    }
+                    AgentMetrics.INSTANCE.recordUploadRetry();
+                    final int backoff = exponentialBackoff.error();
+                    logger.log(Logger.Level.DEBUG, "Backing off for %s ms", backoff);
+                    Thread.sleep(backoff);
                 }
-                bodyBuilder.addFormDataPart("labels", "labels", labelsBody);
             }
-            requestBody = bodyBuilder.build();
-            Request.Builder request = new Request.Builder()
-                .post(requestBody)
-                .url(url);
+        } finally {
+            encoded.release();
+        }
+    }
 
-            config.httpHeaders.forEach((k, v) -> request.header(k, v));
+    static ExponentialBackoff newBackoff() {
+        return new ExponentialBackoff(1_000, 30_000, new Random());
+    }
 
-            addAuthHeader(request, url, config);
+    /**
+     * A snapshot compressed and encoded once, every upload attempt resends the same bytes.
+     */
+    static final class EncodedSnapshot {
+        final Snapshot snapshot;
+        final HttpUrl url;
+        final RequestBody body;
+        final long size;
+        final int labelsSize;
+        // Content-Encoding of the body, null if only its parts are compressed
+        final String contentEncoding;
+        // not null if the body is spooled to disk
+        private final File spool;
 
+        EncodedSnapshot(Snapshot snapshot, HttpUrl url, RequestBody body, long size, int labelsSize,
+                        String contentEncoding, File spool) {
+            this.snapshot = snapshot;
+            this.url = url;
+            this.body = body;
+            this.size = size;
+            this.labelsSize = labelsSize;
+            this.contentEncoding = contentEncoding;
+            this.spool = spool;
+        }
 
-            try (Response response = client.newCall(request.build()).execute()) {
-                int status = response.code();
-                if (status >= 400) {
-                    ResponseBody body = response.body();
-                    final String responseBody;
-                    if (body == null) {
-                        responseBody = "";
-                    } else {
-                        responseBody = body.string();
-                    }
-                    logger.log(Logger.Level.ERROR, "Error uploading snapshot: %s %s", status, responseBody);
-                    retry = shouldRetry(status);
-                } else {
-                    retry = false;
-                }
+        void release() {
+            if (spool != null) {
+                spool.delete();
+            }
+        }
+    }
+
+    EncodedSnapshot encode(final Snapshot snapshot) throws IOException {
+        final HttpUrl url = urlForSnapshot(snapshot);
+        final byte[] labels = snapshot.labels.toByteArray();
+        final Codec codec = this.codec;
+        MultipartBody multipartBody = multipartBody(snapshot, labels, codec);
+        final String contentEncoding = contentEncoding(codec);
+        if (snapshot.file != null) {
+            // the heap never holds a file backed snapshot, neither does it hold its body
+            File spool = File.createTempFile("pyroscope-upload", ".tmp", snapshot.file.getParentFile());
+            try (BufferedSink sink = Okio.buffer(Okio.sink(encodeBody(codec, new FileOutputStream(spool))))) {
+                multipartBody.writeTo(sink);
             } catch (final IOException e) {
-                logger.log(Logger.Level.ERROR, "Error uploading snapshot: %s", e.getMessage());
+                spool.delete();
+                throw e;
             }
-            if (retry) {
-                if (config.ingestMaxTries >= 0 && tries >= config.ingestMaxTries) {
-                    logger.log(Logger.Level.ERROR, "Gave up uploading profiling snapshot after %d tries", tries);
-                    break;
-                }
-                final int backoff = exponentialBackoff.error();
-                logger.log(Logger.Level.DEBUG, "Backing off for %s ms", backoff);
-                Thread.sleep(backoff);
+            RequestBody body = RequestBody.create(spool, multipartBody.contentType());
+            return new EncodedSnapshot(snapshot, url, body, spool.length(), labels.length, contentEncoding, spool);
+        }
+        Buffer buffer = new Buffer();
+        if (contentEncoding != null) {
+            try (BufferedSink sink = Okio.buffer(Okio.sink(encodeBody(codec, buffer.outputStream())))) {
+                multipartBody.writeTo(sink);
+            }
+        } else {
+            multipartBody.writeTo(buffer);
+        }
+        long size = buffer.size();
+        RequestBody body = RequestBody.create(buffer.readByteArray(), multipartBody.contentType());
+        return new EncodedSnapshot(snapshot, url, body, size, labels.length, contentEncoding, null);
+    }
+
+    /**
+     * @return the codec of the following uploads
+     */
+    Codec codec() {
+        return codec;
+    }
+
+    /**
+     * @return the Content-Encoding header of bodies encoded with the codec, null if the codec compresses the parts
+     */
+    @Nullable
+    static String contentEncoding(final Codec codec) {
+        return Codecs.encodesBody(codec) ? codec.name() : null;
+    }
+
+    /**
+     * @return a stream compressing a multipart body into {@code out} if the codec encodes whole bodies
+     */
+    OutputStream encodeBody(final Codec codec, final OutputStream out) throws IOException {
+        return Codecs.encodesBody(codec) ? codec.encode(out, config.compressionLevelJFR) : out;
+    }
+
+    /**
+     * Falls back to gzip if the server does not accept the Content-Encoding of an upload.
+     *
+     * @return true if the upload has to be encoded again and resent
+     */
+    boolean rejectsEncoding(final Response response, @Nullable final String contentEncoding) {
+        if (response.code() != UNSUPPORTED_MEDIA_TYPE || contentEncoding == null) {
+            return false;
+        }
+        if (codec != Codecs.GZIP) {
+            logger.log(Logger.Level.WARN, "Server does not accept %s uploads, falling back to gzip", contentEncoding);
+            codec = Codecs.GZIP;
+        }
+        return true;
+    }
+
+    void logAttempt(final EncodedSnapshot encoded, final int tries) {
+        logger.log(Logger.Level.DEBUG, "Upload attempt %d to %s. %s %s JFR: %s, labels: %s, body: %s", tries, encoded.url.toString(),
+            encoded.snapshot.started.toString(), encoded.snapshot.ended.toString(), encoded.snapshot.size(), encoded.labelsSize, encoded.size);
+    }
+
+    /**
+     * @param codec the parts are gzipped for {@link Codecs#GZIP} only, other codecs leave them to the whole body
+     */
+    MultipartBody multipartBody(final Snapshot snapshot, final byte[] labels, final Codec codec) {
+        MultipartBody.Builder bodyBuilder = new MultipartBody.Builder()
+            .setType(MultipartBody.FORM);
+        final boolean gzipParts = codec == Codecs.GZIP;
+        // a file backed snapshot is streamed from disk
+        final RequestBody jfrBody;
+        if (gzipParts && config.compressionLevelJFR != Deflater.NO_COMPRESSION) {
+            jfrBody = snapshot.file != null
+                ? GzipRequestBody.create(snapshot.file, config.compressionLevelJFR, null, parallelGzip)
+                : GzipRequestBody.create(snapshot.data, config.compressionLevelJFR, null, parallelGzip);
+        } else {
+            jfrBody = snapshot.file != null
+                ? RequestBody.create(snapshot.file, null)
+                : RequestBody.create(snapshot.data);
+        }
+        if (snapshot.format == Format.PPROF) {
+            bodyBuilder.addFormDataPart("profile", "profile", jfrBody);
+            bodyBuilder.addFormDataPart("sample_type_config", "sample_type_config.json",
+                RequestBody.create(JfrToPprof.SampleType.config(JfrToPprof.SampleType.of(snapshot.eventTypes)), JSON));
+        } else if (snapshot.format == Format.COLLAPSED) {
+            bodyBuilder.addFormDataPart("profile", "profile", jfrBody);
+        } else {
+            bodyBuilder.addFormDataPart("jfr", "jfr", jfrBody);
+        }
+        // the labels of other formats are part of the profile or the name
+        if (labels.length > 0 && snapshot.format == Format.JFR) {
+            final RequestBody labelsBody;
+            if (gzipParts && config.compressionLevelLabels != Deflater.NO_COMPRESSION) {
+                labelsBody = GzipRequestBody.create(labels, config.compressionLevelLabels, PROTOBUF, parallelGzip);
+            } else {
+                labelsBody = RequestBody.create(labels, PROTOBUF);
             }
+            bodyBuilder.addFormDataPart("labels", "labels", labelsBody);
         }
+        return bodyBuilder.build();
+    }
+
+    Request request(final EncodedSnapshot encoded) {
+        return request(encoded.url, encoded.body, encoded.contentEncoding);
+    }
+
+    Request request(final HttpUrl url, final RequestBody body, @Nullable final String contentEncoding) {
+        Request.Builder request = new Request.Builder()
+            .post(body)
+            .url(url);
+
+        config.httpHeaders.forEach((k, v) -> request.header(k, v));
+        if (contentEncoding != null) {
+            request.header("Content-Encoding", contentEncoding);
+        }
+
+        addAuthHeader(request, url, config);
+        return request.build();
+    }
+
+    /**
+     * @return true if the upload should be retried
+     */
+    boolean shouldRetry(final Response response) throws IOException {
+        int status = response.code();
+        if (status >= 400) {
+            ResponseBody body = response.body();
+            final String responseBody;
+            if (body == null) {
+                responseBody = "";
+            } else {
+                responseBody = body.string();
+            }
+            logger.log(Logger.Level.ERROR, "Error uploading snapshot: %s %s", status, responseBody);
+            return shouldRetry(status);
+        }
+        return false;
     }
 
     private static boolean shouldRetry(int status) {
@@ -134,29 +373,42 @@ public class PyroscopeExporter implements Exporter {
         }
     }
 
-    private HttpUrl urlForSnapshot(final Snapshot snapshot) {
+    HttpUrl urlForSnapshot(final Snapshot snapshot) {
         Instant started = snapshot.started;
         Instant finished = snapshot.ended;
         HttpUrl.Builder builder = HttpUrl.parse(config.serverAddress)
             .newBuilder()
             .addPathSegment("ingest")
-            .addQueryParameter("name", nameWithStaticLabels())
+            .addQueryParameter("name", nameWithStaticLabels(snapshot))
             .addQueryParameter("units", snapshot.eventType.units.id)
             .addQueryParameter("aggregationType", snapshot.eventType.aggregationType.id)
             .addQueryParameter("from", Long.toString(started.getEpochSecond()))
             .addQueryParameter("until", Long.toString(finished.getEpochSecond()))
             .addQueryParameter("spyName", Config.DEFAULT_SPY_NAME);
         if (EventType.CPU == snapshot.eventType || EventType.ITIMER == snapshot.eventType || EventType.WALL == snapshot.eventType)
-            builder.addQueryParameter("sampleRate", Long.toString(config.profilingIntervalInHertz()));
-        builder.addQueryParameter("format", "jfr");
+            builder.addQueryParameter("sampleRate", Long.toString(snapshot.profilingInterval != null
+                ? Config.durationToHertz(snapshot.profilingInterval)
+                : config.profilingIntervalInHertz()));
+        builder.addQueryParameter("format", snapshot.format.id);
         return builder.build();
     }
 
-    private String nameWithStaticLabels() {
-        return config.timeseries.newBuilder()
+    private String nameWithStaticLabels(final Snapshot snapshot) {
+        AppName.Builder name = config.timeseries.newBuilder()
             .addLabels(config.labels)
-            .addLabels(Pyroscope.getStaticLabels())
-            .build()
-            .toString();
+            .addLabels(Pyroscope.getStaticLabels());
+        if (snapshot.format == Format.COLLAPSED) {
+            // the labels of a part of a collapsed snapshot, see Snapshot.parts
+            JfrLabels.Context context = snapshot.labels.getContextsMap().get(0L);
+            if (context != null) {
+                Map<Long, String> strings = snapshot.labels.getStringsMap();
+                context.getLabelsMap().forEach((k, v) -> {
+                    if (strings.containsKey(k) && strings.containsKey(v)) {
+                        name.addLabel(strings.get(k), strings.get(v));
+                    }
+                });
+            }
+        }
+        return name.build().toString();
     }
 }
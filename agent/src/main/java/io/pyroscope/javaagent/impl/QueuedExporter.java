@@ -1,23 +1,40 @@
 package io.pyroscope.javaagent.impl;
 
+import io.pyroscope.javaagent.AgentMetrics;
 import io.pyroscope.javaagent.OverfillQueue;
 import io.pyroscope.javaagent.Snapshot;
+import io.pyroscope.javaagent.SnapshotBatch;
 import io.pyroscope.javaagent.api.Exporter;
 import io.pyroscope.javaagent.api.Logger;
 import io.pyroscope.javaagent.config.Config;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exports snapshots on a background thread. Snapshots that pile up in the queue, e.g. while the server is
+ * unavailable, are merged into batches of up to {@link Config#ingestBatchMaxSnapshots} snapshots and
+ * {@link Config#ingestBatchMaxSize} bytes and exported as one, see {@link SnapshotBatch}.
+ */
 public class QueuedExporter implements Exporter {
+    final Config config;
     final Exporter impl;
     final Logger logger;
     private final Thread thread;
     private final OverfillQueue<Snapshot> queue;
+    // taken from the queue but not mergeable into the previous batch, starts the next one
+    private Snapshot carried;
 
     public QueuedExporter(Config config, Exporter impl, Logger logger) {
+        this.config = config;
         this.impl = impl;
         this.logger = logger;
         this.thread = new Thread(this::exportLoop);
         this.thread.setDaemon(true);
-        this.queue = new OverfillQueue<>(config.pushQueueCapacity);
+        // dropped snapshots are never exported, clean up their files here
+        this.queue = new OverfillQueue<>(config.pushQueueCapacity, Snapshot::release);
+        AgentMetrics.INSTANCE.setQueue(queue);
 
         this.thread.start();
     }
@@ -26,8 +43,14 @@ public class QueuedExporter implements Exporter {
         logger.log(Logger.Level.DEBUG, "Uploading started");
         try {
             while (!Thread.currentThread().isInterrupted()) {
-                final Snapshot snapshot = queue.take();
-                impl.export(snapshot);
+                final List<Snapshot> batch = takeBatch();
+                try {
+                    exportBatch(batch);
+                } finally {
+                    for (Snapshot snapshot : batch) {
+                        snapshot.release();
+                    }
+                }
             }
         } catch (final InterruptedException e) {
             logger.log(Logger.Level.DEBUG, "Uploading interrupted");
@@ -35,6 +58,60 @@ public class QueuedExporter implements Exporter {
         }
     }
 
+    private List<Snapshot> takeBatch() throws InterruptedException {
+        final List<Snapshot> batch = new ArrayList<>(1);
+        Snapshot first = carried;
+        carried = null;
+        if (first == null) {
+            first = queue.take();
+        }
+        batch.add(first);
+        Snapshot last = first;
+        long size = first.size();
+        while (batch.size() < config.ingestBatchMaxSnapshots) {
+            final Snapshot next = queue.poll();
+            if (next == null) {
+                break;
+            }
+            if (!SnapshotBatch.canMerge(last, next) || size + next.size() > config.ingestBatchMaxSize) {
+                carried = next;
+                break;
+            }
+            batch.add(next);
+            last = next;
+            size += next.size();
+        }
+        return batch;
+    }
+
+    private void exportBatch(final List<Snapshot> batch) {
+        if (batch.size() == 1) {
+            impl.export(batch.get(0));
+            return;
+        }
+        final Snapshot merged;
+        try {
+            merged = SnapshotBatch.merge(batch);
+        } catch (final IOException e) {
+            logger.log(Logger.Level.ERROR, "Error merging %d snapshots, exporting them one by one: %s", batch.size(), e.getMessage());
+            for (Snapshot snapshot : batch) {
+                impl.export(snapshot);
+            }
+            return;
+        }
+        logger.log(Logger.Level.DEBUG, "Exporting %d queued snapshots as one", batch.size());
+        try {
+            impl.export(merged);
+        } finally {
+            merged.release();
+        }
+    }
+
+    @Override
+    public void stop() {
+        impl.stop();
+    }
+
     @Override
     public void export(Snapshot snapshot) {
         try {
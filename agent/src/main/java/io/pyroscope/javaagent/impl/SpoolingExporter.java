@@ -0,0 +1,404 @@
+package io.pyroscope.javaagent.impl;
+
+import io.pyroscope.javaagent.AgentMetrics;
+import io.pyroscope.javaagent.OverfillQueue;
+import io.pyroscope.javaagent.Snapshot;
+import io.pyroscope.javaagent.SnapshotBatch;
+import io.pyroscope.javaagent.api.Exporter;
+import io.pyroscope.javaagent.api.Logger;
+import io.pyroscope.javaagent.config.Config;
+import io.pyroscope.javaagent.util.zip.Codec;
+import io.pyroscope.javaagent.util.zip.Codecs;
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Alternative to {@link QueuedExporter} which keeps pending snapshots on disk instead of the heap.
+ * <p>
+ * Every snapshot is encoded once and written to {@link Config#spoolDirectory} as a segment file holding
+ * the ingest URL, the content type, the content encoding and the request body. Segments encoded with a codec the
+ * server turned out not to accept are decoded and sent uncompressed. A drain thread uploads the segments oldest first
+ * and deletes them once the server has accepted or rejected them. While the server is unavailable the drain thread
+ * keeps retrying the oldest segment with a backoff, up to {@link Config#spoolMaxTries} times instead of
+ * {@link Config#ingestMaxTries}, so the spool rides out longer outages. A segment which still fails then is dropped,
+ * so it does not block the segments behind it.
+ * <p>
+ * The segments form a ring bounded by {@link Config#spoolMaxSize}: when a new segment pushes the spool over
+ * the limit, the oldest segments are deleted. The segment being uploaded and the newest one are never evicted.
+ * Segments left over by a previous run are uploaded on start.
+ */
+public class SpoolingExporter implements Exporter {
+    private static final int MAGIC = 0x50535032; // PSP2
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    final Config config;
+    final PyroscopeExporter impl;
+    final Logger logger;
+    private final File directory;
+    private final OverfillQueue<Snapshot> queue;
+    private final Thread spoolThread;
+    private final Thread drainThread;
+
+    // guards segment selection, deletion and eviction
+    private final Object lock = new Object();
+    private long nextSequence;
+    private File uploading;
+    private boolean spooled;
+    // the upload of the drain thread, canceled by stop
+    private volatile Call call;
+
+    public SpoolingExporter(Config config, PyroscopeExporter impl, Logger logger) {
+        if (config.spoolDirectory == null) {
+            throw new IllegalArgumentException("spoolDirectory is not set");
+        }
+        this.config = config;
+        this.impl = impl;
+        this.logger = logger;
+        this.directory = new File(config.spoolDirectory);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create spool directory " + directory);
+        }
+        this.nextSequence = recover();
+        // snapshots stay on heap only until they are spooled
+        this.queue = new OverfillQueue<>(config.pushQueueCapacity, Snapshot::release);
+        AgentMetrics.INSTANCE.setQueue(queue);
+        this.spoolThread = new Thread(this::spoolLoop);
+        this.spoolThread.setName("PyroscopeSpool");
+        this.spoolThread.setDaemon(true);
+        this.drainThread = new Thread(this::drainLoop);
+        this.drainThread.setName("PyroscopeSpoolDrain");
+        this.drainThread.setDaemon(true);
+
+        this.spoolThread.start();
+        this.drainThread.start();
+    }
+
+    /**
+     * Stops the spool and drain threads and waits for them to exit, so that another exporter can take over
+     * the directory. Snapshots which are not spooled yet are lost, spooled ones are uploaded by the next exporter
+     * on the directory.
+     */
+    @Override
+    public void stop() {
+        spoolThread.interrupt();
+        drainThread.interrupt();
+        final Call c = call;
+        if (c != null) {
+            c.cancel();
+        }
+        try {
+            spoolThread.join();
+            drainThread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        impl.stop();
+    }
+
+    @Override
+    public void export(Snapshot snapshot) {
+        try {
+            queue.put(snapshot);
+        } catch (final InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long recover() {
+        File[] tmp = directory.listFiles((dir, name) -> name.endsWith(TMP_SUFFIX));
+        if (tmp != null) {
+            // incomplete segments of a previous run
+            for (File f : tmp) {
+                f.delete();
+            }
+        }
+        File[] segments = segments();
+        if (segments.length == 0) {
+            return 0;
+        }
+        logger.log(Logger.Level.INFO, "Found %d spooled snapshots", segments.length);
+        return sequence(segments[segments.length - 1]) + 1;
+    }
+
+    private void spoolLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final Snapshot snapshot = queue.take();
+                try {
+                    for (Snapshot part : SnapshotBatch.split(snapshot)) {
+                        spool(part);
+                    }
+                } catch (final Throwable e) {
+                    logger.log(Logger.Level.ERROR, "Error spooling snapshot: %s", e.getMessage());
+                } finally {
+                    snapshot.release();
+                }
+            }
+        } catch (final InterruptedException e) {
+            logger.log(Logger.Level.DEBUG, "Spooling interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void spool(final Snapshot snapshot) throws IOException {
+        final HttpUrl url = impl.urlForSnapshot(snapshot);
+        final Codec codec = impl.codec();
+        final MultipartBody body = impl.multipartBody(snapshot, snapshot.labels.toByteArray(), codec);
+        final String contentEncoding = PyroscopeExporter.contentEncoding(codec);
+        final long sequence;
+        synchronized (lock) {
+            sequence = nextSequence++;
+        }
+        final File tmp = new File(directory, name(sequence, TMP_SUFFIX));
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeUTF(url.toString());
+            header.writeUTF(body.contentType().toString());
+            header.writeUTF(contentEncoding != null ? contentEncoding : "");
+            header.flush();
+            try (BufferedSink sink = Okio.buffer(Okio.sink(impl.encodeBody(codec, out)))) {
+                body.writeTo(sink);
+            }
+        } catch (final IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        final File segment = new File(directory, name(sequence, SEGMENT_SUFFIX));
+        // a segment is visible to the drain thread only once it is complete
+        if (!tmp.renameTo(segment)) {
+            tmp.delete();
+            throw new IOException("Unable to rename " + tmp + " to " + segment);
+        }
+        synchronized (lock) {
+            evict(segment);
+            spooled = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void evict(final File newest) {
+        File[] segments = segments();
+        long total = 0;
+        for (File f : segments) {
+            total += f.length();
+        }
+        for (int i = 0; i < segments.length && total > config.spoolMaxSize; i++) {
+            File f = segments[i];
+            if (f.equals(newest) || f.equals(uploading)) {
+                continue;
+            }
+            long size = f.length();
+            if (f.delete()) {
+                total -= size;
+                logger.log(Logger.Level.WARN, "Spool is full, dropped snapshot %s", f.getName());
+            }
+        }
+    }
+
+    private void drainLoop() {
+        logger.log(Logger.Level.DEBUG, "Uploading started");
+        final ExponentialBackoff backoff = PyroscopeExporter.newBackoff();
+        // failed tries of the oldest segment
+        File failing = null;
+        int tries = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final File segment;
+                synchronized (lock) {
+                    File[] segments = segments();
+                    while (segments.length == 0) {
+                        spooled = false;
+                        while (!spooled) {
+                            lock.wait();
+                        }
+                        segments = segments();
+                    }
+                    segment = segments[0];
+                    uploading = segment;
+                }
+                try {
+                    if (upload(segment)) {
+                        backoff.reset();
+                        synchronized (lock) {
+                            segment.delete();
+                        }
+                    } else {
+                        if (!segment.equals(failing)) {
+                            failing = segment;
+                            tries = 0;
+                        }
+                        tries++;
+                        if (config.spoolMaxTries >= 0 && tries >= config.spoolMaxTries) {
+                            logger.log(Logger.Level.ERROR, "Dropping spooled snapshot %s after %d tries", segment.getName(), tries);
+                            AgentMetrics.INSTANCE.recordUploadFailure();
+                            synchronized (lock) {
+                                segment.delete();
+                            }
+                            continue;
+                        }
+                        AgentMetrics.INSTANCE.recordUploadRetry();
+                        final int backoffMillis = backoff.error();
+                        logger.log(Logger.Level.DEBUG, "Backing off for %s ms", backoffMillis);
+                        Thread.sleep(backoffMillis);
+                    }
+                } finally {
+                    synchronized (lock) {
+                        uploading = null;
+                    }
+                }
+            }
+        } catch (final InterruptedException e) {
+            logger.log(Logger.Level.DEBUG, "Uploading interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return false if the upload should be retried
+     */
+    private boolean upload(final File segment) {
+        final HttpUrl url;
+        final MediaType contentType;
+        String contentEncoding;
+        final long offset;
+        try (FileInputStream in = new FileInputStream(segment)) {
+            DataInputStream header = new DataInputStream(in);
+            if (header.readInt() != MAGIC) {
+                throw new IOException("bad magic");
+            }
+            url = HttpUrl.parse(header.readUTF());
+            contentType = MediaType.parse(header.readUTF());
+            String s = header.readUTF();
+            contentEncoding = s.isEmpty() ? null : s;
+            // the header is read unbuffered, the body starts right after it
+            offset = in.getChannel().position();
+        } catch (final IOException e) {
+            logger.log(Logger.Level.ERROR, "Dropping unreadable spooled snapshot %s: %s", segment.getName(), e.getMessage());
+            return true;
+        }
+        if (url == null) {
+            logger.log(Logger.Level.ERROR, "Dropping spooled snapshot %s with invalid url", segment.getName());
+            return true;
+        }
+        Codec decoder = null;
+        if (contentEncoding != null && !contentEncoding.equals(PyroscopeExporter.contentEncoding(impl.codec()))) {
+            // encoded before the exporter fell back to gzip, or by a previous run with another codec
+            decoder = Codecs.forName(contentEncoding);
+            if (decoder == null) {
+                logger.log(Logger.Level.ERROR, "Dropping spooled snapshot %s with unknown content encoding %s", segment.getName(), contentEncoding);
+                return true;
+            }
+            contentEncoding = null;
+        }
+        final long size = segment.length() - offset;
+        boolean resent = false;
+        while (true) {
+            logger.log(Logger.Level.DEBUG, "Uploading spooled snapshot %s to %s, body: %s", segment.getName(), url, size);
+            final SegmentBody body = new SegmentBody(segment, offset, contentType, decoder);
+            final long start = System.nanoTime();
+            call = impl.client.newCall(impl.request(url, body, contentEncoding));
+            try (Response response = call.execute()) {
+                if (!resent && impl.rejectsEncoding(response, contentEncoding)) {
+                    // sent once more decoded, the exporter has fallen back to gzip meanwhile
+                    decoder = Codecs.forName(contentEncoding);
+                    contentEncoding = null;
+                    resent = true;
+                    continue;
+                }
+                final boolean retry = impl.shouldRetry(response);
+                final boolean accepted = response.isSuccessful();
+                AgentMetrics.INSTANCE.recordUpload(System.nanoTime() - start, size, accepted);
+                if (!accepted && !retry) {
+                    logger.log(Logger.Level.ERROR, "Dropping spooled snapshot %s rejected with %d", segment.getName(), response.code());
+                    AgentMetrics.INSTANCE.recordUploadFailure();
+                }
+                return !retry;
+            } catch (final IOException e) {
+                logger.log(Logger.Level.ERROR, "Error uploading snapshot: %s", e.getMessage());
+                AgentMetrics.INSTANCE.recordUpload(System.nanoTime() - start, size, false);
+                return false;
+            } finally {
+                call = null;
+            }
+        }
+    }
+
+    private File[] segments() {
+        File[] segments = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (segments == null) {
+            return new File[0];
+        }
+        // fixed width names sort by sequence
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static String name(final long sequence, final String suffix) {
+        return String.format("%019d%s", sequence, suffix);
+    }
+
+    private static long sequence(final File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Request body streamed from a segment file, past its header, decoded if a decoder is given.
+     */
+    private static final class SegmentBody extends RequestBody {
+        private final File file;
+        private final long offset;
+        private final MediaType contentType;
+        private final Codec decoder;
+
+        SegmentBody(File file, long offset, MediaType contentType, @Nullable Codec decoder) {
+            this.file = file;
+            this.offset = offset;
+            this.contentType = contentType;
+            this.decoder = decoder;
+        }
+
+        @Nullable
+        @Override
+        public MediaType contentType() {
+            return contentType;
+        }
+
+        @Override
+        public long contentLength() {
+            return decoder != null ? -1 : file.length() - offset;
+        }
+
+        @Override
+        public void writeTo(@NotNull BufferedSink sink) throws IOException {
+            try (FileInputStream in = new FileInputStream(file)) {
+                in.getChannel().position(offset);
+                InputStream body = decoder != null ? decoder.decode(in) : in;
+                try (Source source = Okio.source(body)) {
+                    sink.writeAll(source);
+                }
+            }
+        }
+    }
+}
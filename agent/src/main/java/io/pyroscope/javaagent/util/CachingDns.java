@@ -0,0 +1,48 @@
+package io.pyroscope.javaagent.util;
+
+import okhttp3.Dns;
+import org.jetbrains.annotations.NotNull;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link Dns} which keeps successful lookups for a fixed time, independently of the JVM wide
+ * {@code networkaddress.cache.ttl}. Failed lookups are not cached.
+ */
+public final class CachingDns implements Dns {
+    private final Dns delegate;
+    private final long ttlNanos;
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+    public CachingDns(Dns delegate, Duration ttl) {
+        this.delegate = delegate;
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    @NotNull
+    @Override
+    public List<InetAddress> lookup(@NotNull String hostname) throws UnknownHostException {
+        long now = System.nanoTime();
+        Entry e = cache.get(hostname);
+        if (e != null && now - e.resolvedAt < ttlNanos) {
+            return e.addresses;
+        }
+        List<InetAddress> addresses = delegate.lookup(hostname);
+        cache.put(hostname, new Entry(addresses, now));
+        return addresses;
+    }
+
+    private static final class Entry {
+        final List<InetAddress> addresses;
+        final long resolvedAt;
+
+        Entry(List<InetAddress> addresses, long resolvedAt) {
+            this.addresses = addresses;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+}
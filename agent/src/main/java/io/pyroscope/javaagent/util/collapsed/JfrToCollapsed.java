@@ -0,0 +1,196 @@
+package io.pyroscope.javaagent.util.collapsed;
+
+import io.pyroscope.javaagent.EventType;
+import io.pyroscope.javaagent.util.jfr.JfrReader;
+import io.pyroscope.javaagent.util.jfr.StackTraces;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Converts an async-profiler JFR recording into collapsed stacks, one output per context id.
+ * <p>
+ * Events of the main profiling event are counted per stack trace and context id, like
+ * {@code dumpCollapsed(Counter.SAMPLES)} does for the whole process. At the end of every chunk the stacks are
+ * resolved and written out right away as {@code frame;frame count} lines, root frame first, to the output of their
+ * context id, 0 for samples without labels. The lines of each label set can so be uploaded as a profile of its own
+ * without reading the stacks again.
+ * <p>
+ * The number of label sets, and so of uploads per interval, is capped: contexts seen after the first
+ * {@code maxLabelSets} ones are folded into context 0.
+ */
+public final class JfrToCollapsed implements JfrReader.EventHandler {
+    /**
+     * Opens the output of a context id, called once per context id of the recording.
+     */
+    public interface Outputs {
+        OutputStream open(long contextId) throws IOException;
+    }
+
+    private final Set<String> events;
+    private final Outputs outputs;
+    private final int maxLabelSets;
+    private final StackTraces stackTraces = new StackTraces();
+    private final Map<Long, Writer> writers = new LinkedHashMap<>();
+    // context ids with an output of their own
+    private final Set<Long> labelSets = new HashSet<>();
+    // chunk state: indices of the stackTrace and contextId fields of counted event types, counts by context and stack
+    private final Map<JfrReader.Type, int[]> layouts = new IdentityHashMap<>();
+    private final Map<Long, Map<Long, long[]>> counts = new LinkedHashMap<>();
+
+    private JfrToCollapsed(EventType eventType, Outputs outputs, int maxLabelSets) {
+        switch (eventType) {
+            case ALLOC:
+                events = new HashSet<>(Arrays.asList("jdk.ObjectAllocationInNewTLAB", "jdk.ObjectAllocationOutsideTLAB"));
+                break;
+            case LOCK:
+                events = new HashSet<>(Arrays.asList("jdk.JavaMonitorEnter", "jdk.ThreadPark"));
+                break;
+            default:
+                events = new HashSet<>(Arrays.asList("jdk.ExecutionSample"));
+        }
+        this.outputs = outputs;
+        this.maxLabelSets = maxLabelSets;
+    }
+
+    /**
+     * Writes the collapsed stacks of the main event of the recording, the other events are ignored.
+     * The outputs are closed once the recording is converted, also if the conversion fails.
+     *
+     * @param maxLabelSets the number of context ids with an output of their own, besides context 0
+     */
+    public static void convert(File jfr, EventType eventType, int maxLabelSets, Outputs outputs) throws IOException {
+        JfrToCollapsed converter = new JfrToCollapsed(eventType, outputs, maxLabelSets);
+        try (JfrReader reader = new JfrReader(jfr)) {
+            reader.read(converter);
+        } finally {
+            converter.close();
+        }
+    }
+
+    private void close() throws IOException {
+        IOException failure = null;
+        for (Writer writer : writers.values()) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private Writer writer(long contextId) throws IOException {
+        Writer writer = writers.get(contextId);
+        if (writer == null) {
+            writer = new BufferedWriter(new OutputStreamWriter(outputs.open(contextId), StandardCharsets.UTF_8));
+            writers.put(contextId, writer);
+        }
+        return writer;
+    }
+
+    @Override
+    public void chunk(Map<Long, JfrReader.Type> types) {
+        for (JfrReader.Type type : types.values()) {
+            if (!events.contains(type.name)) {
+                continue;
+            }
+            int stackTrace = -1;
+            int contextId = -1;
+            for (int i = 0; i < type.fields.size(); i++) {
+                String name = type.fields.get(i).name;
+                if (name.equals("stackTrace")) {
+                    stackTrace = i;
+                } else if (name.equals("contextId")) {
+                    contextId = i;
+                }
+            }
+            if (stackTrace >= 0) {
+                layouts.put(type, new int[]{stackTrace, contextId});
+            }
+        }
+    }
+
+    @Override
+    public void event(JfrReader.Type type, JfrReader reader) throws IOException {
+        int[] layout = layouts.get(type);
+        if (layout == null) {
+            return;
+        }
+        long stackTrace = 0;
+        long contextId = 0;
+        int last = Math.max(layout[0], layout[1]);
+        for (int i = 0; i <= last; i++) {
+            JfrReader.Field f = type.fields.get(i);
+            if (i == layout[0]) {
+                stackTrace = reader.readLong(f);
+            } else if (i == layout[1]) {
+                contextId = reader.readLong(f);
+            } else {
+                reader.skip(f);
+            }
+        }
+        if (contextId != 0 && !labelSets.contains(contextId)) {
+            if (labelSets.size() < maxLabelSets) {
+                labelSets.add(contextId);
+            } else {
+                // over the cap, folded into the stacks without labels
+                contextId = 0;
+            }
+        }
+        long[] count = counts.computeIfAbsent(contextId, id -> new HashMap<>())
+            .computeIfAbsent(stackTrace, id -> new long[1]);
+        count[0]++;
+    }
+
+    @Override
+    public boolean readsConstantPools() {
+        return true;
+    }
+
+    @Override
+    public void constant(JfrReader.Type type, long key, JfrReader reader) throws IOException {
+        stackTraces.constant(type, key, reader);
+    }
+
+    @Override
+    public void chunkEnd() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Long, Map<Long, long[]>> context : counts.entrySet()) {
+            Writer out = writer(context.getKey());
+            for (Map.Entry<Long, long[]> stack : context.getValue().entrySet()) {
+                long[] frames = stackTraces.frames(stack.getKey());
+                if (frames.length == 0) {
+                    continue;
+                }
+                sb.setLength(0);
+                // frames are leaf first
+                for (int i = frames.length - 2; i >= 0; i -= 2) {
+                    if (sb.length() > 0) {
+                        sb.append(';');
+                    }
+                    sb.append(stackTraces.methodName(frames[i]));
+                }
+                sb.append(' ').append(stack.getValue()[0]).append('\n');
+                out.append(sb);
+            }
+        }
+        layouts.clear();
+        counts.clear();
+        stackTraces.clear();
+    }
+}
@@ -0,0 +1,63 @@
+package io.pyroscope.javaagent.util.jfr;
+
+import io.pyroscope.javaagent.util.LongHashSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the non-zero values of the {@code contextId} field of all events in a recording.
+ */
+public final class ContextIds implements JfrReader.EventHandler {
+    private static final String CONTEXT_ID_FIELD = "contextId";
+
+    private final LongHashSet ids;
+    // index of the contextId field in the event types of the current chunk which have one
+    private final Map<JfrReader.Type, Integer> contextIdFields = new IdentityHashMap<>();
+
+    private ContextIds(LongHashSet ids) {
+        this.ids = ids;
+    }
+
+    public static LongHashSet read(File jfr) throws IOException {
+        LongHashSet ids = new LongHashSet();
+        try (JfrReader reader = new JfrReader(jfr)) {
+            reader.read(new ContextIds(ids));
+        }
+        return ids;
+    }
+
+    @Override
+    public void chunk(Map<Long, JfrReader.Type> types) {
+        contextIdFields.clear();
+        for (JfrReader.Type type : types.values()) {
+            List<JfrReader.Field> fields = type.fields;
+            for (int i = 0; i < fields.size(); i++) {
+                JfrReader.Field f = fields.get(i);
+                if (f.name.equals(CONTEXT_ID_FIELD) && f.type.name.equals("long") && !f.array) {
+                    contextIdFields.put(type, i);
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void event(JfrReader.Type type, JfrReader reader) throws IOException {
+        Integer index = contextIdFields.get(type);
+        if (index == null) {
+            return;
+        }
+        List<JfrReader.Field> fields = type.fields;
+        for (int i = 0; i < index; i++) {
+            reader.skip(fields.get(i));
+        }
+        long id = reader.readLong(fields.get(index));
+        if (id != 0) {
+            ids.add(id);
+        }
+    }
+}
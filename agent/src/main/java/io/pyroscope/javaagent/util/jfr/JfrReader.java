@@ -0,0 +1,488 @@
+package io.pyroscope.javaagent.util.jfr;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal streaming JFR reader.
+ * <p>
+ * Reads a recording chunk by chunk through a small window over a {@link FileChannel}, so the recording is never
+ * loaded into memory as a whole. For every chunk the metadata is parsed first, then events are passed to
+ * an {@link EventHandler} one by one. Events the handler does not consume are skipped by their size.
+ * Constant pools are only parsed for handlers which ask for them, their entries are passed to the handler as well.
+ * async-profiler writes the constant pool after the events, so handlers resolve constants at the end of the chunk.
+ * <p>
+ * Only the parts of the format written by async-profiler are supported.
+ */
+public final class JfrReader implements Closeable {
+    private static final int CHUNK_HEADER_SIZE = 68;
+    private static final int CHUNK_MAGIC = 0x464c5200; // "FLR\0"
+    private static final int FEATURE_COMPRESSED_INTS = 1;
+    private static final long EVENT_METADATA = 0;
+    private static final long EVENT_CONSTANT_POOL = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+    // file position of buf[0]
+    private long bufStart = 0;
+    private boolean compressedInts = true;
+    private long ticksPerSecond;
+
+    public JfrReader(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        buf.limit(0);
+    }
+
+    /**
+     * Reads all chunks of the recording.
+     */
+    public void read(EventHandler handler) throws IOException {
+        long size = channel.size();
+        long chunkStart = 0;
+        while (chunkStart + CHUNK_HEADER_SIZE <= size) {
+            seek(chunkStart);
+            if (i32() != CHUNK_MAGIC) {
+                throw new IOException("Not a JFR chunk at " + chunkStart);
+            }
+            i32(); // version
+            long chunkSize = i64();
+            i64(); // constant pool offset
+            long metadataOffset = i64();
+            skip(3 * 8); // start nanos, duration nanos, start ticks
+            ticksPerSecond = i64();
+            compressedInts = (i32() & FEATURE_COMPRESSED_INTS) != 0;
+            if (chunkSize <= 0 || chunkStart + chunkSize > size) {
+                // the chunk is still being written
+                break;
+            }
+
+            seek(chunkStart + metadataOffset);
+            Map<Long, Type> types = readMetadata();
+            handler.chunk(types);
+
+            long chunkEnd = chunkStart + chunkSize;
+            long pos = chunkStart + CHUNK_HEADER_SIZE;
+            while (pos < chunkEnd) {
+                seek(pos);
+                int eventSize = varint();
+                if (eventSize <= 0) {
+                    throw new IOException("Invalid event size at " + pos);
+                }
+                long typeId = varlong();
+                if (typeId == EVENT_CONSTANT_POOL) {
+                    if (handler.readsConstantPools()) {
+                        readConstantPool(types, handler);
+                    }
+                } else if (typeId != EVENT_METADATA) {
+                    Type type = types.get(typeId);
+                    if (type != null) {
+                        handler.event(type, this);
+                    }
+                }
+                pos += eventSize;
+            }
+            handler.chunkEnd();
+            chunkStart = chunkEnd;
+        }
+    }
+
+    private void readConstantPool(Map<Long, Type> types, EventHandler handler) throws IOException {
+        varlong(); // start time
+        varlong(); // duration
+        varlong(); // delta to the previous constant pool
+        u1(); // flush
+        int pools = varint();
+        for (int i = 0; i < pools; i++) {
+            long typeId = varlong();
+            Type type = types.get(typeId);
+            if (type == null) {
+                throw new IOException("Unknown constant pool type " + typeId);
+            }
+            int n = varint();
+            for (int j = 0; j < n; j++) {
+                handler.constant(type, varlong(), this);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return the frequency of the ticks of timestamps and durations in the current chunk
+     */
+    public long ticksPerSecond() {
+        return ticksPerSecond;
+    }
+
+    /**
+     * Skips a single value of the given field.
+     */
+    public void skip(Field field) throws IOException {
+        if (field.array) {
+            int n = varint();
+            for (int i = 0; i < n; i++) {
+                skipValue(field);
+            }
+        } else {
+            skipValue(field);
+        }
+    }
+
+    private void skipValue(Field field) throws IOException {
+        if (field.constantPool) {
+            varlong();
+            return;
+        }
+        skip(field.type);
+    }
+
+    /**
+     * Skips a single value of the given type, e.g. an entry of a constant pool.
+     */
+    public void skip(Type type) throws IOException {
+        switch (type.name) {
+            case "boolean":
+            case "byte":
+                skip(1);
+                break;
+            case "short":
+            case "char":
+            case "int":
+                if (compressedInts) {
+                    varint();
+                } else {
+                    skip(type.name.equals("int") ? 4 : 2);
+                }
+                break;
+            case "long":
+                if (compressedInts) {
+                    varlong();
+                } else {
+                    skip(8);
+                }
+                break;
+            case "float":
+                skip(4);
+                break;
+            case "double":
+                skip(8);
+                break;
+            case "java.lang.String":
+                skipString();
+                break;
+            default:
+                for (Field f : type.fields) {
+                    skip(f);
+                }
+        }
+    }
+
+    /**
+     * Reads a value of an integral field.
+     */
+    public long readLong(Field field) throws IOException {
+        if (field.constantPool || compressedInts) {
+            return varlong();
+        }
+        switch (field.type.name) {
+            case "int":
+                return i32();
+            case "long":
+                return i64();
+            default:
+                throw new IOException("Unsupported uncompressed field type " + field.type.name);
+        }
+    }
+
+    public boolean readBoolean() throws IOException {
+        return u1() != 0;
+    }
+
+    /**
+     * Reads the length of an array field, followed by its elements.
+     */
+    public int readArrayLength() throws IOException {
+        return varint();
+    }
+
+    /**
+     * Reads a string written in place, strings referring to a constant pool are not supported.
+     */
+    public String readString() throws IOException {
+        byte encoding = (byte) u1();
+        switch (encoding) {
+            case 0:
+                return null;
+            case 1:
+                return "";
+            case 3:
+                return new String(bytes(varint()), StandardCharsets.UTF_8);
+            case 4: {
+                int n = varint();
+                char[] chars = new char[n];
+                for (int i = 0; i < n; i++) {
+                    chars[i] = (char) varint();
+                }
+                return new String(chars);
+            }
+            case 5:
+                return new String(bytes(varint()), StandardCharsets.ISO_8859_1);
+            default:
+                throw new IOException("Unsupported string encoding " + encoding);
+        }
+    }
+
+    private Map<Long, Type> readMetadata() throws IOException {
+        varint(); // size
+        if (varlong() != EVENT_METADATA) {
+            throw new IOException("Metadata event expected");
+        }
+        varlong(); // start time
+        varlong(); // duration
+        varlong(); // metadata id
+        int n = varint();
+        String[] strings = new String[n];
+        for (int i = 0; i < n; i++) {
+            strings[i] = readString();
+        }
+        Element root = readElement(strings);
+
+        Map<Long, Type> types = new HashMap<>();
+        List<Element> classes = new ArrayList<>();
+        for (Element e : root.children) {
+            if (e.name.equals("metadata")) {
+                for (Element c : e.children) {
+                    if (c.name.equals("class")) {
+                        Type t = new Type(Long.parseLong(c.attributes.get("id")), c.attributes.get("name"));
+                        types.put(t.id, t);
+                        classes.add(c);
+                    }
+                }
+            }
+        }
+        for (Element c : classes) {
+            Type t = types.get(Long.parseLong(c.attributes.get("id")));
+            for (Element f : c.children) {
+                if (f.name.equals("field")) {
+                    Type ft = types.get(Long.parseLong(f.attributes.get("class")));
+                    if (ft == null) {
+                        throw new IOException("Unknown type of field " + t.name + "." + f.attributes.get("name"));
+                    }
+                    t.fields.add(new Field(
+                        f.attributes.get("name"),
+                        ft,
+                        "true".equals(f.attributes.get("constantPool")),
+                        f.attributes.get("dimension") != null
+                    ));
+                }
+            }
+        }
+        return types;
+    }
+
+    private Element readElement(String[] strings) throws IOException {
+        Element e = new Element(strings[varint()]);
+        int attributes = varint();
+        for (int i = 0; i < attributes; i++) {
+            String key = strings[varint()];
+            e.attributes.put(key, strings[varint()]);
+        }
+        int children = varint();
+        for (int i = 0; i < children; i++) {
+            e.children.add(readElement(strings));
+        }
+        return e;
+    }
+
+    private void skipString() throws IOException {
+        byte encoding = (byte) u1();
+        switch (encoding) {
+            case 0:
+            case 1:
+                break;
+            case 2:
+                varlong();
+                break;
+            case 3:
+            case 5:
+                skip(varint());
+                break;
+            case 4: {
+                int n = varint();
+                for (int i = 0; i < n; i++) {
+                    varint();
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unsupported string encoding " + encoding);
+        }
+    }
+
+    private void seek(long pos) {
+        if (pos >= bufStart && pos <= bufStart + buf.limit()) {
+            buf.position((int) (pos - bufStart));
+        } else {
+            bufStart = pos;
+            buf.clear().limit(0);
+        }
+    }
+
+    private void skip(long n) throws IOException {
+        seek(bufStart + buf.position() + n);
+    }
+
+    // makes at least n bytes available in buf, n must not exceed BUFFER_SIZE
+    private void fill(int n) throws IOException {
+        if (buf.remaining() >= n) {
+            return;
+        }
+        bufStart += buf.position();
+        buf.compact();
+        while (buf.position() < n) {
+            if (channel.read(buf, bufStart + buf.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buf.flip();
+    }
+
+    private int u1() throws IOException {
+        fill(1);
+        return buf.get() & 0xff;
+    }
+
+    private int i32() throws IOException {
+        fill(4);
+        return buf.getInt();
+    }
+
+    private long i64() throws IOException {
+        fill(8);
+        return buf.getLong();
+    }
+
+    private int varint() throws IOException {
+        return (int) varlong();
+    }
+
+    private long varlong() throws IOException {
+        long result = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = u1();
+            if (shift == 56) {
+                return result | (long) b << 56;
+            }
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+    }
+
+    private byte[] bytes(int n) throws IOException {
+        byte[] res = new byte[n];
+        int off = 0;
+        while (off < n) {
+            fill(1);
+            int len = Math.min(n - off, buf.remaining());
+            buf.get(res, off, len);
+            off += len;
+        }
+        return res;
+    }
+
+    public interface EventHandler {
+        /**
+         * Called before the events of every chunk, type ids are only valid within a chunk.
+         */
+        default void chunk(Map<Long, Type> types) {
+        }
+
+        /**
+         * Called for every event with the reader positioned at its first field.
+         * The handler may read a prefix of the fields, the rest is skipped.
+         */
+        void event(Type type, JfrReader reader) throws IOException;
+
+        /**
+         * @return true if {@link #constant(Type, long, JfrReader)} should be called for constant pool entries
+         */
+        default boolean readsConstantPools() {
+            return false;
+        }
+
+        /**
+         * Called for every constant pool entry with the reader positioned at its value,
+         * the handler must read or skip the whole value.
+         */
+        default void constant(Type type, long key, JfrReader reader) throws IOException {
+            reader.skip(type);
+        }
+
+        /**
+         * Called after the events and the constant pools of every chunk.
+         */
+        default void chunkEnd() throws IOException {
+        }
+    }
+
+    public static final class Type {
+        public final long id;
+        public final String name;
+        public final List<Field> fields = new ArrayList<>();
+
+        Type(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public Field field(String name) {
+            for (Field f : fields) {
+                if (f.name.equals(name)) {
+                    return f;
+                }
+            }
+            return null;
+        }
+    }
+
+    public static final class Field {
+        public final String name;
+        public final Type type;
+        public final boolean constantPool;
+        public final boolean array;
+
+        Field(String name, Type type, boolean constantPool, boolean array) {
+            this.name = name;
+            this.type = type;
+            this.constantPool = constantPool;
+            this.array = array;
+        }
+    }
+
+    private static final class Element {
+        final String name;
+        final Map<String, String> attributes = new HashMap<>();
+        final List<Element> children = new ArrayList<>();
+
+        Element(String name) {
+            this.name = name;
+        }
+    }
+}
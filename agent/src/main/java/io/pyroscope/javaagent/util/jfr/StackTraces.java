@@ -0,0 +1,134 @@
+package io.pyroscope.javaagent.util.jfr;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stack traces of a chunk, read from its constant pools.
+ * <p>
+ * Handlers pass the constant pool entries of a chunk to {@link #constant(JfrReader.Type, long, JfrReader)} and
+ * resolve the stack trace ids of their events once the chunk has ended, then {@link #clear()} for the next chunk.
+ * Frame names are resolved once per chunk, not for every sample.
+ */
+public final class StackTraces {
+    private final Map<Long, String> symbols = new HashMap<>();
+    // resolved names by method id
+    private final Map<Long, String> names = new HashMap<>();
+    private final Map<Long, Long> classNames = new HashMap<>();
+    // class id and name symbol id of every method
+    private final Map<Long, long[]> methods = new HashMap<>();
+    // method ids and line numbers of the frames of every stack trace, alternating
+    private final Map<Long, long[]> stackTraces = new HashMap<>();
+
+    /**
+     * Reads a constant pool entry, entries of types unrelated to stack traces are skipped.
+     */
+    public void constant(JfrReader.Type type, long key, JfrReader reader) throws IOException {
+        switch (type.name) {
+            case "jdk.types.Symbol":
+                symbols.put(key, reader.readString());
+                break;
+            case "java.lang.Class": {
+                long name = 0;
+                for (JfrReader.Field f : type.fields) {
+                    if (f.name.equals("name")) {
+                        name = reader.readLong(f);
+                    } else {
+                        reader.skip(f);
+                    }
+                }
+                classNames.put(key, name);
+                break;
+            }
+            case "jdk.types.Method": {
+                long[] method = new long[2];
+                for (JfrReader.Field f : type.fields) {
+                    if (f.name.equals("type")) {
+                        method[0] = reader.readLong(f);
+                    } else if (f.name.equals("name")) {
+                        method[1] = reader.readLong(f);
+                    } else {
+                        reader.skip(f);
+                    }
+                }
+                methods.put(key, method);
+                break;
+            }
+            case "jdk.types.StackTrace": {
+                long[] frames = new long[0];
+                for (JfrReader.Field f : type.fields) {
+                    if (f.name.equals("frames") && f.array) {
+                        frames = readFrames(f.type, reader);
+                    } else {
+                        reader.skip(f);
+                    }
+                }
+                stackTraces.put(key, frames);
+                break;
+            }
+            default:
+                reader.skip(type);
+        }
+    }
+
+    private static long[] readFrames(JfrReader.Type frameType, JfrReader reader) throws IOException {
+        int n = reader.readArrayLength();
+        long[] frames = new long[n * 2];
+        for (int i = 0; i < n; i++) {
+            for (JfrReader.Field f : frameType.fields) {
+                if (f.name.equals("method")) {
+                    frames[i * 2] = reader.readLong(f);
+                } else if (f.name.equals("lineNumber")) {
+                    frames[i * 2 + 1] = reader.readLong(f);
+                } else {
+                    reader.skip(f);
+                }
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * @return method ids and line numbers of the frames, alternating and leaf first, empty if the stack trace is unknown
+     */
+    public long[] frames(long stackTraceId) {
+        long[] frames = stackTraces.get(stackTraceId);
+        return frames != null ? frames : new long[0];
+    }
+
+    /**
+     * @return the name of the method as {@code package.Class.method}, just the method name for native frames
+     */
+    public String methodName(long methodId) {
+        String name = names.get(methodId);
+        if (name == null) {
+            name = resolve(methodId);
+            names.put(methodId, name);
+        }
+        return name;
+    }
+
+    private String resolve(long methodId) {
+        long[] method = methods.get(methodId);
+        if (method == null) {
+            return "unknown";
+        }
+        String name = symbols.get(method[1]);
+        Long classNameId = classNames.get(method[0]);
+        String className = classNameId != null ? symbols.get(classNameId) : null;
+        if (className == null || className.isEmpty()) {
+            // native and kernel frames
+            return name != null ? name : "unknown";
+        }
+        return className.replace('/', '.') + "." + name;
+    }
+
+    public void clear() {
+        symbols.clear();
+        names.clear();
+        classNames.clear();
+        methods.clear();
+        stackTraces.clear();
+    }
+}
@@ -0,0 +1,391 @@
+package io.pyroscope.javaagent.util.pprof;
+
+import io.pyroscope.http.AggregationType;
+import io.pyroscope.http.Units;
+import io.pyroscope.javaagent.EventType;
+import io.pyroscope.javaagent.util.jfr.JfrReader;
+import io.pyroscope.javaagent.util.jfr.StackTraces;
+import io.pyroscope.labels.pb.JfrLabels;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Converts an async-profiler JFR recording into a pprof profile.
+ * <p>
+ * Events with the same stack trace and context id are aggregated while the recording is streamed, the constant pools
+ * are only resolved once per chunk for the aggregated stacks. Frames become functions named
+ * {@code package.Class.method}, the labels of the context become string labels of the sample,
+ * so the profile needs no separate labels snapshot.
+ * <p>
+ * Every recorded event type adds its sample types: {@link SampleType#CPU} or {@link SampleType#WALL}
+ * for execution samples, {@link SampleType#ALLOC_OBJECTS} and {@link SampleType#ALLOC_BYTES} for allocations,
+ * {@link SampleType#LOCK_COUNT} and {@link SampleType#LOCK_DURATION} for monitor contention and parking.
+ */
+public final class JfrToPprof implements JfrReader.EventHandler {
+    public enum SampleType {
+        CPU("cpu", "count", Units.SAMPLES),
+        WALL("wall", "count", Units.SAMPLES),
+        ALLOC_OBJECTS("alloc_in_new_tlab_objects", "count", Units.OBJECTS),
+        ALLOC_BYTES("alloc_in_new_tlab_bytes", "bytes", Units.BYTES),
+        LOCK_COUNT("lock_count", "count", Units.LOCK_SAMPLES),
+        LOCK_DURATION("lock_duration", "nanoseconds", Units.LOCK_NANOSECONDS);
+
+        /**
+         * Sample type name, the server names the series of the sample type after it.
+         */
+        public final String id;
+        /**
+         * Unit of the values in the profile.
+         */
+        public final String unit;
+        /**
+         * Unit of the series, as expected by Pyroscope's HTTP API.
+         */
+        public final Units units;
+
+        SampleType(String id, String unit, Units units) {
+            this.id = id;
+            this.unit = unit;
+            this.units = units;
+        }
+
+        /**
+         * @return the sample types of a recording of the events, in the order of the values of the samples
+         */
+        public static List<SampleType> of(Set<EventType> eventTypes) {
+            List<SampleType> types = new ArrayList<>();
+            for (EventType eventType : eventTypes) {
+                switch (eventType) {
+                    case ALLOC:
+                        types.add(ALLOC_OBJECTS);
+                        types.add(ALLOC_BYTES);
+                        break;
+                    case LOCK:
+                        types.add(LOCK_COUNT);
+                        types.add(LOCK_DURATION);
+                        break;
+                    case WALL:
+                        types.add(WALL);
+                        break;
+                    default:
+                        types.add(CPU);
+                }
+            }
+            return types;
+        }
+
+        /**
+         * @return the {@code sample_type_config} of Pyroscope's HTTP API for the sample types, as JSON
+         */
+        public static String config(List<SampleType> types) {
+            StringBuilder sb = new StringBuilder("{");
+            for (SampleType type : types) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                sb.append('"').append(type.id).append("\":{\"units\":\"").append(type.units.id)
+                    .append("\",\"aggregation\":\"").append(AggregationType.SUM.id)
+                    .append("\",\"display-name\":\"").append(type.id).append("\"}");
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    private static final String EXECUTION_SAMPLE = "jdk.ExecutionSample";
+    private static final String ALLOCATION_IN_NEW_TLAB = "jdk.ObjectAllocationInNewTLAB";
+    private static final String ALLOCATION_OUTSIDE_TLAB = "jdk.ObjectAllocationOutsideTLAB";
+    private static final String MONITOR_ENTER = "jdk.JavaMonitorEnter";
+    private static final String THREAD_PARK = "jdk.ThreadPark";
+
+    private final PprofBuilder pprof = new PprofBuilder();
+    private final int columns;
+    private final int sampleColumn;
+    private final int allocColumn;
+    private final int lockColumn;
+    private final JfrLabels.Snapshot labels;
+    // label string indices of every context id seen so far
+    private final Map<Long, long[]> contextLabels = new HashMap<>();
+    // values of resolved samples, aggregated over all chunks
+    private final Map<Sample, long[]> samples = new LinkedHashMap<>();
+
+    // chunk state: event types with a known layout, values by (stack trace id, context id)
+    private final Map<JfrReader.Type, EventLayout> layouts = new IdentityHashMap<>();
+    private final Map<StackKey, long[]> events = new HashMap<>();
+    private final StackTraces stackTraces = new StackTraces();
+
+    private JfrToPprof(List<SampleType> types, JfrLabels.Snapshot labels) {
+        this.columns = types.size();
+        int sample = types.indexOf(SampleType.CPU);
+        this.sampleColumn = sample >= 0 ? sample : types.indexOf(SampleType.WALL);
+        this.allocColumn = types.indexOf(SampleType.ALLOC_OBJECTS);
+        this.lockColumn = types.indexOf(SampleType.LOCK_COUNT);
+        this.labels = labels;
+        for (SampleType type : types) {
+            pprof.sampleType(type.id, type.unit);
+        }
+    }
+
+    /**
+     * @param eventTypes the events of the recording, they determine the sample types
+     * @param interval   the sampling interval of execution samples, null if there are none
+     * @param labels     a full labels dump covering the contexts referenced by the recording
+     * @return the encoded pprof profile, not compressed
+     */
+    public static byte[] convert(File jfr, Set<EventType> eventTypes, Duration interval, Instant started, Instant ended,
+                                 JfrLabels.Snapshot labels) throws IOException {
+        List<SampleType> types = SampleType.of(eventTypes);
+        JfrToPprof converter = new JfrToPprof(types, labels);
+        try (JfrReader reader = new JfrReader(jfr)) {
+            reader.read(converter);
+        }
+        PprofBuilder pprof = converter.pprof;
+        for (Map.Entry<Sample, long[]> e : converter.samples.entrySet()) {
+            pprof.sample(e.getKey().locations, e.getValue(), e.getKey().labels);
+        }
+        long startNanos = started.getEpochSecond() * 1_000_000_000L + started.getNano();
+        pprof.time(startNanos, Math.max(0, Duration.between(started, ended).toNanos()));
+        if (converter.sampleColumn >= 0 && interval != null) {
+            SampleType period = types.get(converter.sampleColumn);
+            pprof.period(period.id, "nanoseconds", interval.toNanos());
+        }
+        return pprof.build();
+    }
+
+    @Override
+    public void chunk(Map<Long, JfrReader.Type> types) {
+        for (JfrReader.Type type : types.values()) {
+            int column;
+            switch (type.name) {
+                case EXECUTION_SAMPLE:
+                    column = sampleColumn;
+                    break;
+                case ALLOCATION_IN_NEW_TLAB:
+                case ALLOCATION_OUTSIDE_TLAB:
+                    column = allocColumn;
+                    break;
+                case MONITOR_ENTER:
+                case THREAD_PARK:
+                    column = lockColumn;
+                    break;
+                default:
+                    column = -1;
+            }
+            if (column >= 0) {
+                layouts.put(type, new EventLayout(type, column));
+            }
+        }
+    }
+
+    @Override
+    public void event(JfrReader.Type type, JfrReader reader) throws IOException {
+        EventLayout layout = layouts.get(type);
+        if (layout == null) {
+            return;
+        }
+        long stackTrace = 0;
+        long contextId = 0;
+        long value = 0;
+        List<JfrReader.Field> fields = type.fields;
+        for (int i = 0; i <= layout.last; i++) {
+            JfrReader.Field f = fields.get(i);
+            if (i == layout.stackTrace) {
+                stackTrace = reader.readLong(f);
+            } else if (i == layout.contextId) {
+                contextId = reader.readLong(f);
+            } else if (i == layout.value) {
+                value = reader.readLong(f);
+            } else {
+                reader.skip(f);
+            }
+        }
+        if (layout.ticks) {
+            value = (long) (value * 1e9 / reader.ticksPerSecond());
+        }
+        StackKey key = new StackKey(stackTrace, contextId);
+        long[] values = events.get(key);
+        if (values == null) {
+            values = new long[columns];
+            events.put(key, values);
+        }
+        values[layout.column]++;
+        if (layout.value >= 0) {
+            values[layout.column + 1] += value;
+        }
+    }
+
+    @Override
+    public boolean readsConstantPools() {
+        return true;
+    }
+
+    @Override
+    public void constant(JfrReader.Type type, long key, JfrReader reader) throws IOException {
+        stackTraces.constant(type, key, reader);
+    }
+
+    @Override
+    public void chunkEnd() {
+        Map<Long, long[]> locations = new HashMap<>();
+        for (Map.Entry<StackKey, long[]> e : events.entrySet()) {
+            long stackTrace = e.getKey().stackTrace;
+            long[] stack = locations.get(stackTrace);
+            if (stack == null) {
+                stack = resolveStack(stackTrace);
+                locations.put(stackTrace, stack);
+            }
+            Sample sample = new Sample(stack, labels(e.getKey().contextId));
+            long[] values = samples.get(sample);
+            if (values == null) {
+                samples.put(sample, e.getValue());
+            } else {
+                for (int i = 0; i < columns; i++) {
+                    values[i] += e.getValue()[i];
+                }
+            }
+        }
+        layouts.clear();
+        events.clear();
+        stackTraces.clear();
+    }
+
+    private long[] resolveStack(long stackTrace) {
+        long[] frames = stackTraces.frames(stackTrace);
+        // async-profiler writes the leaf frame first, like pprof expects
+        long[] stack = new long[frames.length / 2];
+        for (int i = 0; i < stack.length; i++) {
+            stack[i] = pprof.location(stackTraces.methodName(frames[i * 2]), (int) frames[i * 2 + 1]);
+        }
+        return stack;
+    }
+
+    private long[] labels(long contextId) {
+        long[] res = contextLabels.get(contextId);
+        if (res != null) {
+            return res;
+        }
+        res = new long[0];
+        JfrLabels.Context context = contextId != 0 ? labels.getContextsMap().get(contextId) : null;
+        if (context != null) {
+            Map<Long, String> strings = labels.getStringsMap();
+            List<long[]> pairs = new ArrayList<>();
+            for (Map.Entry<Long, Long> label : context.getLabelsMap().entrySet()) {
+                String key = strings.get(label.getKey());
+                String value = strings.get(label.getValue());
+                if (key != null && value != null) {
+                    pairs.add(new long[]{pprof.string(key), pprof.string(value)});
+                }
+            }
+            res = new long[pairs.size() * 2];
+            for (int i = 0; i < pairs.size(); i++) {
+                res[i * 2] = pairs.get(i)[0];
+                res[i * 2 + 1] = pairs.get(i)[1];
+            }
+        }
+        contextLabels.put(contextId, res);
+        return res;
+    }
+
+    /**
+     * Indices of the fields of an event type the converter reads.
+     */
+    private static final class EventLayout {
+        final int column;
+        final int stackTrace;
+        final int contextId;
+        // the field summed up into the second column of the event, -1 if the event only has a count
+        final int value;
+        // true if the value is a duration in ticks
+        final boolean ticks;
+        final int last;
+
+        EventLayout(JfrReader.Type type, int column) {
+            this.column = column;
+            this.stackTrace = indexOf(type, "stackTrace");
+            this.contextId = indexOf(type, "contextId");
+            switch (type.name) {
+                case ALLOCATION_IN_NEW_TLAB:
+                    this.value = indexOf(type, "tlabSize");
+                    break;
+                case ALLOCATION_OUTSIDE_TLAB:
+                    this.value = indexOf(type, "allocationSize");
+                    break;
+                case MONITOR_ENTER:
+                case THREAD_PARK:
+                    this.value = indexOf(type, "duration");
+                    break;
+                default:
+                    this.value = -1;
+            }
+            this.ticks = value >= 0 && (type.name.equals(MONITOR_ENTER) || type.name.equals(THREAD_PARK));
+            this.last = Math.max(stackTrace, Math.max(contextId, value));
+        }
+
+        private static int indexOf(JfrReader.Type type, String name) {
+            for (int i = 0; i < type.fields.size(); i++) {
+                if (type.fields.get(i).name.equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static final class StackKey {
+        final long stackTrace;
+        final long contextId;
+
+        StackKey(long stackTrace, long contextId) {
+            this.stackTrace = stackTrace;
+            this.contextId = contextId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof StackKey)) {
+                return false;
+            }
+            StackKey k = (StackKey) o;
+            return stackTrace == k.stackTrace && contextId == k.contextId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(stackTrace * 31 + contextId);
+        }
+    }
+
+    private static final class Sample {
+        final long[] locations;
+        final long[] labels;
+
+        Sample(long[] locations, long[] labels) {
+            this.locations = locations;
+            this.labels = labels;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Sample)) {
+                return false;
+            }
+            Sample s = (Sample) o;
+            return Arrays.equals(locations, s.locations) && Arrays.equals(labels, s.labels);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(locations) * 31 + Arrays.hashCode(labels);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package io.pyroscope.javaagent.util.pprof;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a pprof {@code Profile} message (see profile.proto of google/pprof) with interned strings,
+ * functions and locations, and encodes it without generated protobuf classes.
+ * <p>
+ * Only the fields the Pyroscope ingester reads are written: sample types, samples with string labels,
+ * locations with a single line, functions, the string table, the time range and the period.
+ */
+public final class PprofBuilder {
+    private static final int LENGTH_DELIMITED = WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    // Profile
+    private static final int PROFILE_SAMPLE_TYPE = 1;
+    private static final int PROFILE_SAMPLE = 2;
+    private static final int PROFILE_LOCATION = 4;
+    private static final int PROFILE_FUNCTION = 5;
+    private static final int PROFILE_STRING_TABLE = 6;
+    private static final int PROFILE_TIME_NANOS = 9;
+    private static final int PROFILE_DURATION_NANOS = 10;
+    private static final int PROFILE_PERIOD_TYPE = 11;
+    private static final int PROFILE_PERIOD = 12;
+    // ValueType
+    private static final int VALUE_TYPE_TYPE = 1;
+    private static final int VALUE_TYPE_UNIT = 2;
+    // Sample
+    private static final int SAMPLE_LOCATION_ID = 1;
+    private static final int SAMPLE_VALUE = 2;
+    private static final int SAMPLE_LABEL = 3;
+    // Label
+    private static final int LABEL_KEY = 1;
+    private static final int LABEL_STR = 2;
+    // Location
+    private static final int LOCATION_ID = 1;
+    private static final int LOCATION_LINE = 4;
+    // Line
+    private static final int LINE_FUNCTION_ID = 1;
+    private static final int LINE_LINE = 2;
+    // Function
+    private static final int FUNCTION_ID = 1;
+    private static final int FUNCTION_NAME = 2;
+    private static final int FUNCTION_SYSTEM_NAME = 3;
+
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> stringIndex = new HashMap<>();
+    private final List<long[]> sampleTypes = new ArrayList<>();
+    private final Map<String, Long> functionIds = new HashMap<>();
+    // name string index of every function, function ids start at 1
+    private final List<Integer> functions = new ArrayList<>();
+    private final Map<Long, Long> locationIds = new HashMap<>();
+    // (function id, line) of every location, location ids start at 1
+    private final List<long[]> locations = new ArrayList<>();
+    private final List<Sample> samples = new ArrayList<>();
+    private long[] periodType;
+    private long period;
+    private long timeNanos;
+    private long durationNanos;
+
+    public PprofBuilder() {
+        string("");
+    }
+
+    /**
+     * @return the index of the string in the string table, 0 for the empty string
+     */
+    public int string(String s) {
+        Integer index = stringIndex.get(s);
+        if (index == null) {
+            index = strings.size();
+            strings.add(s);
+            stringIndex.put(s, index);
+        }
+        return index;
+    }
+
+    /**
+     * Adds a sample type, the values of every sample are in the order of the sample types.
+     */
+    public PprofBuilder sampleType(String type, String unit) {
+        sampleTypes.add(new long[]{string(type), string(unit)});
+        return this;
+    }
+
+    public PprofBuilder period(String type, String unit, long period) {
+        this.periodType = new long[]{string(type), string(unit)};
+        this.period = period;
+        return this;
+    }
+
+    public PprofBuilder time(long timeNanos, long durationNanos) {
+        this.timeNanos = timeNanos;
+        this.durationNanos = durationNanos;
+        return this;
+    }
+
+    /**
+     * @return the id of the location of the function at the line, interned
+     */
+    public long location(String function, int line) {
+        Long functionId = functionIds.get(function);
+        if (functionId == null) {
+            functions.add(string(function));
+            functionId = (long) functions.size();
+            functionIds.put(function, functionId);
+        }
+        long key = functionId << 32 | (line & 0xffffffffL);
+        Long locationId = locationIds.get(key);
+        if (locationId == null) {
+            locations.add(new long[]{functionId, line});
+            locationId = (long) locations.size();
+            locationIds.put(key, locationId);
+        }
+        return locationId;
+    }
+
+    /**
+     * @param locationIds the stack, leaf first
+     * @param values      one value per sample type
+     * @param labels      string table indices of label keys and values, alternating
+     */
+    public void sample(long[] locationIds, long[] values, long[] labels) {
+        if (values.length != sampleTypes.size()) {
+            throw new IllegalArgumentException("Expected " + sampleTypes.size() + " values, got " + values.length);
+        }
+        samples.add(new Sample(locationIds, values, labels));
+    }
+
+    public int sampleCount() {
+        return samples.size();
+    }
+
+    public byte[] build() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        for (long[] sampleType : sampleTypes) {
+            writeValueType(out, PROFILE_SAMPLE_TYPE, sampleType);
+        }
+        for (Sample sample : samples) {
+            out.writeTag(PROFILE_SAMPLE, LENGTH_DELIMITED);
+            out.writeUInt32NoTag(sample.size());
+            sample.writeTo(out);
+        }
+        for (int i = 0; i < locations.size(); i++) {
+            long[] location = locations.get(i);
+            int lineSize = CodedOutputStream.computeUInt64Size(LINE_FUNCTION_ID, location[0])
+                + CodedOutputStream.computeInt64Size(LINE_LINE, location[1]);
+            int size = CodedOutputStream.computeUInt64Size(LOCATION_ID, i + 1)
+                + CodedOutputStream.computeTagSize(LOCATION_LINE)
+                + CodedOutputStream.computeUInt32SizeNoTag(lineSize) + lineSize;
+            out.writeTag(PROFILE_LOCATION, LENGTH_DELIMITED);
+            out.writeUInt32NoTag(size);
+            out.writeUInt64(LOCATION_ID, i + 1);
+            out.writeTag(LOCATION_LINE, LENGTH_DELIMITED);
+            out.writeUInt32NoTag(lineSize);
+            out.writeUInt64(LINE_FUNCTION_ID, location[0]);
+            out.writeInt64(LINE_LINE, location[1]);
+        }
+        for (int i = 0; i < functions.size(); i++) {
+            int name = functions.get(i);
+            int size = CodedOutputStream.computeUInt64Size(FUNCTION_ID, i + 1)
+                + CodedOutputStream.computeInt64Size(FUNCTION_NAME, name)
+                + CodedOutputStream.computeInt64Size(FUNCTION_SYSTEM_NAME, name);
+            out.writeTag(PROFILE_FUNCTION, LENGTH_DELIMITED);
+            out.writeUInt32NoTag(size);
+            out.writeUInt64(FUNCTION_ID, i + 1);
+            out.writeInt64(FUNCTION_NAME, name);
+            out.writeInt64(FUNCTION_SYSTEM_NAME, name);
+        }
+        for (String s : strings) {
+            out.writeString(PROFILE_STRING_TABLE, s);
+        }
+        out.writeInt64(PROFILE_TIME_NANOS, timeNanos);
+        out.writeInt64(PROFILE_DURATION_NANOS, durationNanos);
+        if (periodType != null) {
+            writeValueType(out, PROFILE_PERIOD_TYPE, periodType);
+            out.writeInt64(PROFILE_PERIOD, period);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeValueType(CodedOutputStream out, int field, long[] valueType) throws IOException {
+        int size = CodedOutputStream.computeInt64Size(VALUE_TYPE_TYPE, valueType[0])
+            + CodedOutputStream.computeInt64Size(VALUE_TYPE_UNIT, valueType[1]);
+        out.writeTag(field, LENGTH_DELIMITED);
+        out.writeUInt32NoTag(size);
+        out.writeInt64(VALUE_TYPE_TYPE, valueType[0]);
+        out.writeInt64(VALUE_TYPE_UNIT, valueType[1]);
+    }
+
+    private static final class Sample {
+        final long[] locationIds;
+        final long[] values;
+        final long[] labels;
+
+        Sample(long[] locationIds, long[] values, long[] labels) {
+            this.locationIds = locationIds;
+            this.values = values;
+            this.labels = labels;
+        }
+
+        int locationIdsSize() {
+            int size = 0;
+            for (long id : locationIds) {
+                size += CodedOutputStream.computeUInt64SizeNoTag(id);
+            }
+            return size;
+        }
+
+        int valuesSize() {
+            int size = 0;
+            for (long v : values) {
+                size += CodedOutputStream.computeInt64SizeNoTag(v);
+            }
+            return size;
+        }
+
+        int labelSize(int i) {
+            return CodedOutputStream.computeInt64Size(LABEL_KEY, labels[i])
+                + CodedOutputStream.computeInt64Size(LABEL_STR, labels[i + 1]);
+        }
+
+        int size() {
+            int locationIdsSize = locationIdsSize();
+            int valuesSize = valuesSize();
+            int size = CodedOutputStream.computeTagSize(SAMPLE_LOCATION_ID)
+                + CodedOutputStream.computeUInt32SizeNoTag(locationIdsSize) + locationIdsSize
+                + CodedOutputStream.computeTagSize(SAMPLE_VALUE)
+                + CodedOutputStream.computeUInt32SizeNoTag(valuesSize) + valuesSize;
+            for (int i = 0; i < labels.length; i += 2) {
+                int labelSize = labelSize(i);
+                size += CodedOutputStream.computeTagSize(SAMPLE_LABEL)
+                    + CodedOutputStream.computeUInt32SizeNoTag(labelSize) + labelSize;
+            }
+            return size;
+        }
+
+        void writeTo(CodedOutputStream out) throws IOException {
+            // packed repeated fields
+            out.writeTag(SAMPLE_LOCATION_ID, LENGTH_DELIMITED);
+            out.writeUInt32NoTag(locationIdsSize());
+            for (long id : locationIds) {
+                out.writeUInt64NoTag(id);
+            }
+            out.writeTag(SAMPLE_VALUE, LENGTH_DELIMITED);
+            out.writeUInt32NoTag(valuesSize());
+            for (long v : values) {
+                out.writeInt64NoTag(v);
+            }
+            for (int i = 0; i < labels.length; i += 2) {
+                out.writeTag(SAMPLE_LABEL, LENGTH_DELIMITED);
+                out.writeUInt32NoTag(labelSize(i));
+                out.writeInt64(LABEL_KEY, labels[i]);
+                out.writeInt64(LABEL_STR, labels[i + 1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package io.pyroscope.javaagent.util.zip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression of upload bodies, selected by its {@code Content-Encoding} token.
+ * <p>
+ * Besides the built-in {@link Codecs#GZIP}, {@link Codecs#DEFLATE} and {@link Codecs#IDENTITY}, codecs are looked
+ * up with {@link java.util.ServiceLoader}, so a deployment can add e.g. zstd or lz4 by putting a jar with
+ * an implementation and a {@code META-INF/services/io.pyroscope.javaagent.util.zip.Codec} entry on the class path.
+ * Such codecs compress the whole request body and are announced with a {@code Content-Encoding} header,
+ * like {@link Codecs#DEFLATE}.
+ * <p>
+ * The agent jar bundles no other codec and carries no service files, they are stripped from the shaded jar along
+ * with those of the relocated dependencies. Codecs are looked up with the class loader of the agent, for
+ * {@code -javaagent} the system class loader, so the codec jar goes on the class path of the application
+ * ({@code -cp}), not into the class loader of a web application or plugin.
+ * The interface only uses {@code java.io} types, as the HTTP client is relocated in the agent jar.
+ */
+public interface Codec {
+    /**
+     * @return the {@code Content-Encoding} token of the codec
+     */
+    String name();
+
+    /**
+     * @param level compression level, a codec maps the 1-9 range of {@link java.util.zip.Deflater} to its own levels
+     * @return a stream compressing into {@code out}, closing it finishes the encoding and closes {@code out}
+     */
+    OutputStream encode(OutputStream out, int level) throws IOException;
+
+    /**
+     * @return a stream decompressing {@code in}
+     */
+    InputStream decode(InputStream in) throws IOException;
+}
@@ -0,0 +1,141 @@
+package io.pyroscope.javaagent.util.zip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Built-in {@link Codec}s and the lookup of the others.
+ */
+public final class Codecs {
+    /**
+     * The default. Parts of the multipart body are gzipped one by one, the server recognizes them by their magic
+     * bytes, no {@code Content-Encoding} header is sent.
+     */
+    public static final Codec GZIP = new Codec() {
+        @Override
+        public String name() {
+            return "gzip";
+        }
+
+        @Override
+        public OutputStream encode(OutputStream out, int level) throws IOException {
+            return new GZIPOutputStream(out, 64 * 1024) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            return new GZIPInputStream(in, 64 * 1024);
+        }
+    };
+
+    /**
+     * The whole body compressed with zlib as {@code Content-Encoding: deflate}, the parts are left as they are.
+     * Compresses the labels and the profile with one dictionary, and needs a server which decodes the header.
+     */
+    public static final Codec DEFLATE = new Codec() {
+        @Override
+        public String name() {
+            return "deflate";
+        }
+
+        @Override
+        public OutputStream encode(OutputStream out, int level) {
+            return new DeflaterOutputStream(out, new Deflater(level), 64 * 1024) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        def.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decode(InputStream in) {
+            return new InflaterInputStream(in, new Inflater(), 64 * 1024) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                    }
+                }
+            };
+        }
+    };
+
+    /**
+     * No compression at all, neither of the parts nor of the body.
+     */
+    public static final Codec IDENTITY = new Codec() {
+        @Override
+        public String name() {
+            return "identity";
+        }
+
+        @Override
+        public OutputStream encode(OutputStream out, int level) {
+            return out;
+        }
+
+        @Override
+        public InputStream decode(InputStream in) {
+            return in;
+        }
+    };
+
+    private Codecs() {
+    }
+
+    /**
+     * @param name a {@code Content-Encoding} token, case insensitive, {@code none} stands for {@code identity}
+     * @return the codec, null if there is none of that name
+     */
+    public static Codec forName(String name) {
+        String token = name.trim().toLowerCase(Locale.ROOT);
+        if (token.equals(GZIP.name())) {
+            return GZIP;
+        }
+        if (token.equals(DEFLATE.name())) {
+            return DEFLATE;
+        }
+        if (token.equals(IDENTITY.name()) || token.equals("none")) {
+            return IDENTITY;
+        }
+        try {
+            for (Codec codec : ServiceLoader.load(Codec.class, Codecs.class.getClassLoader())) {
+                if (codec.name().equalsIgnoreCase(token)) {
+                    return codec;
+                }
+            }
+        } catch (ServiceConfigurationError e) {
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the codec compresses the whole request body and is announced with a {@code Content-Encoding}
+     * header, false for {@link #GZIP} and {@link #IDENTITY}
+     */
+    public static boolean encodesBody(Codec codec) {
+        return codec != GZIP && codec != IDENTITY;
+    }
+}
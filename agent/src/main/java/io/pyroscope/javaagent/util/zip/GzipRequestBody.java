@@ -0,0 +1,166 @@
+package io.pyroscope.javaagent.util.zip;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compressed {@link RequestBody} of a file or a byte array.
+ * <p>
+ * Unlike {@link GzipSink#gzip(RequestBody, int)}, the source is read in large chunks straight into
+ * the {@link Deflater}, the CRC is computed on the same pass and compressed chunks are written to the request
+ * sink directly. The {@link Deflater}, the CRC and both chunk buffers are reused across requests of the same thread.
+ * <p>
+ * With a {@link ParallelGzip}, sources larger than a block are deflated block-parallel on its threads instead,
+ * the output is still a single standard gzip member.
+ */
+public final class GzipRequestBody extends RequestBody {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final byte[] HEADER = {
+        0x1f, (byte) 0x8b, // gzip ID
+        8, // deflate compression method
+        0, // no flags
+        0, 0, 0, 0, // no modification time
+        0, // no extra flags
+        0, // no OS
+    };
+
+    private static final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
+    private final File file;
+    private final byte[] data;
+    private final int compressionLevel;
+    private final MediaType contentType;
+    private final ParallelGzip parallel;
+
+    private GzipRequestBody(File file, byte[] data, int compressionLevel, MediaType contentType, ParallelGzip parallel) {
+        this.file = file;
+        this.data = data;
+        this.compressionLevel = compressionLevel;
+        this.contentType = contentType;
+        this.parallel = parallel;
+    }
+
+    public static GzipRequestBody create(File file, int compressionLevel, @Nullable MediaType contentType) {
+        return create(file, compressionLevel, contentType, null);
+    }
+
+    public static GzipRequestBody create(byte[] data, int compressionLevel, @Nullable MediaType contentType) {
+        return create(data, compressionLevel, contentType, null);
+    }
+
+    public static GzipRequestBody create(File file, int compressionLevel, @Nullable MediaType contentType,
+                                         @Nullable ParallelGzip parallel) {
+        return new GzipRequestBody(file, null, compressionLevel, contentType, parallel);
+    }
+
+    public static GzipRequestBody create(byte[] data, int compressionLevel, @Nullable MediaType contentType,
+                                         @Nullable ParallelGzip parallel) {
+        return new GzipRequestBody(null, data, compressionLevel, contentType, parallel);
+    }
+
+    @Nullable
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public long contentLength() {
+        return -1; // We don't know the compressed length in advance!
+    }
+
+    @Override
+    public void writeTo(@NotNull BufferedSink sink) throws IOException {
+        long size = file != null ? file.length() : data.length;
+        if (parallel != null && !parallel.isShutdown() && size > ParallelGzip.BLOCK_SIZE) {
+            writeParallel(sink);
+            return;
+        }
+        State s = state.get();
+        s.deflater.reset();
+        s.deflater.setLevel(compressionLevel);
+        s.crc.reset();
+        sink.write(HEADER);
+        if (file != null) {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer in = ByteBuffer.wrap(s.in);
+                int n;
+                while ((n = ch.read(in)) >= 0) {
+                    if (n > 0) {
+                        deflate(s, s.in, 0, n, sink);
+                    }
+                    in.clear();
+                }
+            }
+        } else {
+            // the deflater copies its input, feeding it in chunks keeps each copy small
+            for (int off = 0; off < data.length; off += CHUNK_SIZE) {
+                deflate(s, data, off, Math.min(CHUNK_SIZE, data.length - off), sink);
+            }
+        }
+        s.deflater.finish();
+        while (!s.deflater.finished()) {
+            int n = s.deflater.deflate(s.out);
+            sink.write(s.out, 0, n);
+        }
+        sink.writeIntLe((int) s.crc.getValue());
+        sink.writeIntLe((int) s.deflater.getBytesRead());
+    }
+
+    private void writeParallel(BufferedSink sink) throws IOException {
+        sink.write(HEADER);
+        long crc;
+        long length;
+        if (file != null) {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long[] res = parallel.deflate(buf -> readFully(ch, buf), compressionLevel, sink);
+                crc = res[0];
+                length = res[1];
+            }
+        } else {
+            crc = parallel.deflate(data, 0, data.length, compressionLevel, sink);
+            length = data.length;
+        }
+        sink.writeIntLe((int) crc);
+        sink.writeIntLe((int) length);
+    }
+
+    private static int readFully(FileChannel ch, byte[] buf) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(buf);
+        while (in.hasRemaining()) {
+            if (ch.read(in) < 0) {
+                break;
+            }
+        }
+        return in.position();
+    }
+
+    private static void deflate(State s, byte[] buf, int off, int len, BufferedSink sink) throws IOException {
+        s.crc.update(buf, off, len);
+        s.deflater.setInput(buf, off, len);
+        while (!s.deflater.needsInput()) {
+            int n = s.deflater.deflate(s.out);
+            if (n > 0) {
+                sink.write(s.out, 0, n);
+            }
+        }
+    }
+
+    private static final class State {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final CRC32 crc = new CRC32();
+        final byte[] in = new byte[CHUNK_SIZE];
+        final byte[] out = new byte[CHUNK_SIZE];
+    }
+}
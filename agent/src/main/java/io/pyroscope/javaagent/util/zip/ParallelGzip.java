@@ -0,0 +1,209 @@
+package io.pyroscope.javaagent.util.zip;
+
+import okio.Buffer;
+import okio.BufferedSink;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Block-parallel deflate over a fixed pool of daemon threads, in the manner of pigz.
+ * <p>
+ * The input is cut into {@value #BLOCK_SIZE} byte blocks, the workers compress them independently, each with
+ * the last {@value #DICTIONARY_SIZE} bytes of the previous block as the dictionary, so the ratio stays close to
+ * a serial deflate. Every block ends with a sync flush on a byte boundary, so the compressed blocks are concatenated
+ * in order into a single standard deflate stream, terminated by an empty final block. The caller computes the CRC
+ * while the workers compress.
+ * <p>
+ * At most two blocks per thread are in flight, which bounds the memory of a compression regardless of the input
+ * size. The pool is shared by all compressions, concurrent uploads queue their blocks on the same threads.
+ */
+public final class ParallelGzip {
+    static final int BLOCK_SIZE = 128 * 1024;
+    static final int DICTIONARY_SIZE = 32 * 1024;
+    // a fixed Huffman block with BFINAL set and no data
+    private static final byte[] FINAL_BLOCK = {0x03, 0x00};
+    private static final AtomicInteger poolNumber = new AtomicInteger();
+    private static final ThreadLocal<Worker> worker = ThreadLocal.withInitial(Worker::new);
+
+    private final ExecutorService executor;
+    private final int maxInFlight;
+
+    public ParallelGzip(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1");
+        }
+        int pool = poolNumber.incrementAndGet();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = Executors.defaultThreadFactory().newThread(r);
+            t.setName("PyroscopeCompression-" + pool + "-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.maxInFlight = threads * 2;
+    }
+
+    /**
+     * Source of the blocks of a compression, read on the calling thread.
+     */
+    interface Input {
+        /**
+         * @return the number of bytes read into the buffer, less than its length only at the end of the input
+         */
+        int read(byte[] buf) throws IOException;
+    }
+
+    /**
+     * Compresses {@code len} bytes of {@code data} into raw deflate blocks on the sink.
+     *
+     * @return the CRC32 of the data
+     */
+    long deflate(byte[] data, int off, int len, int level, BufferedSink sink) throws IOException {
+        CRC32 crc = new CRC32();
+        ArrayDeque<Future<Buffer>> pending = new ArrayDeque<>();
+        try {
+            for (int pos = off; pos < off + len; pos += BLOCK_SIZE) {
+                drain(pending, maxInFlight - 1, sink);
+                int blockLen = Math.min(BLOCK_SIZE, off + len - pos);
+                int dictLen = Math.min(DICTIONARY_SIZE, pos - off);
+                crc.update(data, pos, blockLen);
+                pending.add(submit(data, pos, blockLen, data, pos - dictLen, dictLen, level));
+            }
+            drain(pending, 0, sink);
+        } finally {
+            cancel(pending);
+        }
+        sink.write(FINAL_BLOCK);
+        return crc.getValue();
+    }
+
+    /**
+     * Compresses everything read from {@code in} into raw deflate blocks on the sink.
+     *
+     * @return the CRC32 and the length of the input
+     */
+    long[] deflate(Input in, int level, BufferedSink sink) throws IOException {
+        CRC32 crc = new CRC32();
+        ArrayDeque<Future<Buffer>> pending = new ArrayDeque<>();
+        // a block buffer is reused once neither its own task nor the task of the next block can be pending
+        byte[][] buffers = new byte[maxInFlight + 1][];
+        long total = 0;
+        try {
+            byte[] prev = null;
+            int prevLen = 0;
+            for (int i = 0; ; i++) {
+                drain(pending, maxInFlight - 1, sink);
+                int slot = i % buffers.length;
+                if (buffers[slot] == null) {
+                    buffers[slot] = new byte[BLOCK_SIZE];
+                }
+                byte[] block = buffers[slot];
+                int n = in.read(block);
+                if (n <= 0) {
+                    break;
+                }
+                crc.update(block, 0, n);
+                total += n;
+                int dictLen = Math.min(DICTIONARY_SIZE, prevLen);
+                pending.add(submit(block, 0, n, prev, prevLen - dictLen, dictLen, level));
+                if (n < BLOCK_SIZE) {
+                    break;
+                }
+                prev = block;
+                prevLen = n;
+            }
+            drain(pending, 0, sink);
+        } finally {
+            cancel(pending);
+        }
+        sink.write(FINAL_BLOCK);
+        return new long[]{crc.getValue(), total};
+    }
+
+    private Future<Buffer> submit(byte[] buf, int off, int len, byte[] dict, int dictOff, int dictLen, int level)
+        throws IOException {
+        try {
+            return executor.submit(() -> worker.get().deflate(buf, off, len, dict, dictOff, dictLen, level));
+        } catch (RejectedExecutionException e) {
+            // shut down while compressing, the upload is retried without the pool
+            throw new IOException("compression pool is shut down", e);
+        }
+    }
+
+    private static void drain(ArrayDeque<Future<Buffer>> pending, int max, BufferedSink sink) throws IOException {
+        while (pending.size() > max) {
+            Future<Buffer> next = pending.poll();
+            try {
+                sink.writeAll(next.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while compressing");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("compression failed", cause);
+            }
+        }
+    }
+
+    private static void cancel(ArrayDeque<Future<Buffer>> pending) {
+        for (Future<Buffer> f : pending) {
+            f.cancel(false);
+        }
+    }
+
+    /**
+     * Lets the compressions in progress finish and stops the threads, {@link GzipRequestBody} compresses on
+     * the calling thread from then on.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    private static final class Worker {
+        final byte[] out = new byte[BLOCK_SIZE];
+        Deflater deflater;
+        int level;
+
+        Buffer deflate(byte[] buf, int off, int len, byte[] dict, int dictOff, int dictLen, int level) {
+            // a level change only applies on the next deflate call, after the dictionary is set
+            if (deflater == null || this.level != level) {
+                if (deflater != null) {
+                    deflater.end();
+                }
+                deflater = new Deflater(level, true);
+                this.level = level;
+            } else {
+                deflater.reset();
+            }
+            if (dictLen > 0) {
+                deflater.setDictionary(dict, dictOff, dictLen);
+            }
+            deflater.setInput(buf, off, len);
+            Buffer res = new Buffer();
+            int n;
+            // a full output buffer may leave pending output behind
+            do {
+                n = deflater.deflate(out, 0, out.length, Deflater.SYNC_FLUSH);
+                res.write(out, 0, n);
+            } while (n == out.length);
+            return res;
+        }
+    }
+}
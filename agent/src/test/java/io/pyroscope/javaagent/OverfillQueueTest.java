@@ -2,7 +2,13 @@ package io.pyroscope.javaagent;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 public class OverfillQueueTest {
     @Test
@@ -65,4 +71,106 @@ public class OverfillQueueTest {
         assertEquals(8, queue.take());
         assertEquals(9, queue.take());
     }
+
+    @Test
+    void dropCallback() throws InterruptedException {
+        final List<Integer> dropped = new ArrayList<>();
+        final OverfillQueue<Integer> queue = new OverfillQueue<>(2, dropped::add);
+        queue.put(0);
+        queue.put(1);
+        queue.put(2);
+        queue.put(3);
+
+        assertEquals(Arrays.asList(0, 1), dropped);
+        assertEquals(2, queue.take());
+        assertEquals(3, queue.take());
+    }
+
+    @Test
+    void counters() throws InterruptedException {
+        final OverfillQueue<Integer> queue = new OverfillQueue<>(3);
+        assertEquals(3, queue.capacity());
+        assertEquals(0, queue.size());
+        queue.put(0);
+        queue.put(1);
+        assertEquals(2, queue.size());
+        assertEquals(0, queue.dropped());
+        queue.put(2);
+        queue.put(3);
+        queue.put(4);
+        assertEquals(3, queue.size());
+        assertEquals(2, queue.dropped());
+        assertEquals(2, queue.poll());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    void pollEmpty() throws InterruptedException {
+        final OverfillQueue<Integer> queue = new OverfillQueue<>(1);
+        assertNull(queue.poll());
+        queue.put(0);
+        assertEquals(0, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void multipleProducers() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 100_000;
+        final AtomicLong droppedSum = new AtomicLong();
+        final OverfillQueue<Integer> queue = new OverfillQueue<>(8, e -> droppedSum.addAndGet(e));
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            threads[p] = new Thread(() -> {
+                try {
+                    for (int i = 1; i <= perProducer; i++) {
+                        queue.put(base + i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads[p].start();
+        }
+        long takenSum = 0;
+        long taken = 0;
+        // the queue is drained once all producers are done
+        while (true) {
+            boolean alive = false;
+            for (Thread t : threads) {
+                alive |= t.isAlive();
+            }
+            Integer e = queue.poll();
+            if (e != null) {
+                takenSum += e;
+                taken++;
+            } else if (!alive) {
+                break;
+            }
+        }
+        long expectedSum = 0;
+        for (int i = 1; i <= producers * perProducer; i++) {
+            expectedSum += i;
+        }
+        // every element was either taken or dropped, exactly once
+        assertEquals(producers * perProducer, taken + queue.dropped());
+        assertEquals(expectedSum, takenSum + droppedSum.get());
+    }
+
+    @Test
+    void takeWakesUp() throws InterruptedException {
+        final OverfillQueue<Integer> queue = new OverfillQueue<>(2);
+        final Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                queue.put(42);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        assertEquals(42, queue.take());
+        producer.join();
+    }
 }
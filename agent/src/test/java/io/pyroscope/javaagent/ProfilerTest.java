@@ -0,0 +1,200 @@
+package io.pyroscope.javaagent;
+
+import io.pyroscope.http.Format;
+import io.pyroscope.javaagent.config.Config;
+import io.pyroscope.javaagent.util.jfr.JfrReader;
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProfilerTest {
+    @Test
+    void testFileSnapshots() throws InterruptedException {
+        Config config = new Config.Builder()
+            .setApplicationName("test.app")
+            .setFormat(Format.JFR)
+            .setProfilingEvent(EventType.ITIMER)
+            .setJfrFileSnapshots(true)
+            .build();
+        Profiler profiler = new Profiler(config);
+
+        profiler.start();
+        Thread.sleep(100);
+        profiler.stop();
+        Snapshot first = profiler.dumpProfile(Instant.now(), Instant.now());
+        assertNull(first.data);
+        assertNotNull(first.file);
+        assertTrue(first.size() > 0);
+
+        // the next recording does not overwrite the handed off one
+        profiler.start();
+        Thread.sleep(100);
+        profiler.stop();
+        Snapshot second = profiler.dumpProfile(Instant.now(), Instant.now());
+        assertNotEquals(first.file, second.file);
+        assertTrue(first.file.exists());
+        assertTrue(second.size() > 0);
+
+        first.release();
+        second.release();
+        assertFalse(first.file.exists());
+        assertFalse(second.file.exists());
+    }
+
+    @Test
+    void testRotate() throws InterruptedException {
+        Config config = new Config.Builder()
+            .setApplicationName("test.app")
+            .setFormat(Format.JFR)
+            .setProfilingEvent(EventType.ITIMER)
+            .build();
+        Profiler profiler = new Profiler(config);
+
+        profiler.start();
+        Thread.sleep(100);
+        Profiler.Rotation first = profiler.rotate(Instant.now(), Instant.now());
+        Thread.sleep(100);
+
+        // the next rotation records into the buffer of the first one, it waits until that one is built
+        AtomicReference<Profiler.Rotation> second = new AtomicReference<>();
+        Thread rotating = new Thread(() -> second.set(profiler.rotate(Instant.now(), Instant.now())));
+        rotating.start();
+        rotating.join(200);
+        assertTrue(rotating.isAlive());
+        assertJFR(first.snapshot());
+        rotating.join(5000);
+        assertFalse(rotating.isAlive());
+        assertJFR(second.get().snapshot());
+        profiler.stop();
+    }
+
+    @Test
+    void testDumpMetrics() throws Exception {
+        Config config = new Config.Builder()
+            .setApplicationName("test.app")
+            .setFormat(Format.JFR)
+            .setProfilingEvent(EventType.ITIMER)
+            .build();
+        Profiler profiler = new Profiler(config);
+        AgentMetrics.registerMBean();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(AgentMetrics.OBJECT_NAME);
+            long dumps = (Long) server.getAttribute(name, "Dumps");
+            long jfrBytes = (Long) server.getAttribute(name, "JfrBytes");
+
+            profiler.start();
+            Thread.sleep(100);
+            Snapshot snapshot = profiler.rotate(Instant.now(), Instant.now()).snapshot();
+            profiler.stop();
+            assertEquals(dumps + 1, (long) (Long) server.getAttribute(name, "Dumps"));
+            assertEquals(jfrBytes + snapshot.size(), (long) (Long) server.getAttribute(name, "JfrBytes"));
+            assertTrue((Long) server.getAttribute(name, "LastDumpNanos") > 0);
+        } finally {
+            AgentMetrics.unregisterMBean();
+        }
+    }
+
+    @Test
+    void testEventTypes() throws InterruptedException {
+        Config config = new Config.Builder()
+            .setApplicationName("test.app")
+            .setFormat(Format.JFR)
+            .setProfilingEvent(EventType.ITIMER)
+            .setProfilingAlloc("512k")
+            .setProfilingLock("10ms")
+            .setProfilingWall("10ms")
+            .build();
+        Profiler profiler = new Profiler(config);
+
+        profiler.start();
+        Thread.sleep(100);
+        profiler.stop();
+        Snapshot snapshot = profiler.dumpProfile(Instant.now(), Instant.now());
+        assertEquals(EventType.ITIMER, snapshot.eventType);
+        assertEquals(EnumSet.of(EventType.ITIMER, EventType.ALLOC, EventType.LOCK, EventType.WALL), snapshot.eventTypes);
+        assertJFR(snapshot);
+    }
+
+    @Test
+    void testThreadFilter() throws Exception {
+        Config config = new Config.Builder()
+            .setApplicationName("test.app")
+            .setFormat(Format.JFR)
+            .setProfilingEvent(EventType.WALL)
+            .setProfilingThreadNames("pyroscope-test-worker-.*")
+            .setJfrFileSnapshots(true)
+            .build();
+        Profiler profiler = new Profiler(config);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread worker = new Thread(() -> {
+            try {
+                done.await();
+            } catch (InterruptedException ignored) {
+            }
+        }, "pyroscope-test-worker-1");
+        worker.start();
+        profiler.addThread(Thread.currentThread());
+
+        profiler.start();
+        Thread.sleep(200);
+        profiler.stop();
+        done.countDown();
+        Snapshot snapshot = profiler.dumpProfile(Instant.now(), Instant.now());
+        try {
+            // the registered thread and the one matching the pattern, out of all the threads of the JVM
+            assertEquals(2, sampledThreads(snapshot.file).size());
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    @Test
+    void testInvalidThreadNames() {
+        Config.Builder builder = new Config.Builder()
+            .setApplicationName("test.app")
+            .setProfilingThreadNames("pyroscope-test-worker-(");
+        assertThrows(IllegalArgumentException.class, builder::build);
+    }
+
+    private static Set<Long> sampledThreads(File jfr) throws IOException {
+        Set<Long> threads = new HashSet<>();
+        try (JfrReader reader = new JfrReader(jfr)) {
+            reader.read((type, r) -> {
+                for (JfrReader.Field f : type.fields) {
+                    if (f.name.equals("sampledThread")) {
+                        threads.add(r.readLong(f));
+                        return;
+                    }
+                    r.skip(f);
+                }
+            });
+        }
+        return threads;
+    }
+
+    private static void assertJFR(Snapshot snapshot) {
+        assertNotNull(snapshot.data);
+        assertTrue(snapshot.data.length > 4);
+        assertEquals("FLR", new String(snapshot.data, 0, 3, StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,522 @@
+package io.pyroscope.javaagent;
+
+import com.sun.net.httpserver.HttpServer;
+import io.pyroscope.http.Format;
+import io.pyroscope.javaagent.api.Logger;
+import io.pyroscope.javaagent.config.Config;
+import io.pyroscope.javaagent.impl.AsyncExporter;
+import io.pyroscope.javaagent.impl.PyroscopeExporter;
+import io.pyroscope.javaagent.impl.QueuedExporter;
+import io.pyroscope.javaagent.impl.SpoolingExporter;
+import io.pyroscope.javaagent.util.zip.Codecs;
+import io.pyroscope.labels.pb.JfrLabels;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// lives next to Snapshot, whose constructors are package private
+public class PyroscopeExporterTest {
+    private static final byte[] POISON = "poison".getBytes(StandardCharsets.UTF_8);
+    private static final Logger NOOP_LOGGER = (l, msg, args) -> {
+    };
+
+    private HttpServer server;
+    private final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> accepted = Collections.synchronizedList(new ArrayList<>());
+    // Content-Encoding of every request, "" if none
+    private final List<String> encodings = Collections.synchronizedList(new ArrayList<>());
+    private volatile int failures;
+    // encoded bodies are answered with 415
+    private volatile boolean rejectEncoding;
+    // bodies containing POISON are answered with poisonStatus
+    private volatile int poisonStatus;
+    // the first request blocks until released
+    private volatile CountDownLatch blockFirst = new CountDownLatch(0);
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ingest", exchange -> {
+            String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            encodings.add(encoding == null ? "" : encoding);
+            byte[] body = readAll(exchange.getRequestBody());
+            bodies.add(body);
+            int n = bodies.size();
+            if (n == 1) {
+                try {
+                    blockFirst.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            int status = n <= failures ? 503 : 200;
+            if (rejectEncoding && encoding != null) {
+                status = 415;
+            }
+            if (poisonStatus != 0 && contains(body, POISON)) {
+                status = poisonStatus;
+            }
+            if (status == 200) {
+                accepted.add(exchange.getRequestURI().getQuery());
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void testRetriesResendTheSameBody() {
+        failures = 1;
+        exporter().export(snapshot(new byte[]{1, 2, 3}));
+        assertEquals(2, bodies.size());
+        assertArrayEquals(bodies.get(0), bodies.get(1));
+    }
+
+    @Test
+    void testUploadMetrics() {
+        AgentMetrics metrics = AgentMetrics.INSTANCE;
+        long uploads = metrics.getUploads();
+        long retries = metrics.getUploadRetries();
+        long bytes = metrics.getUploadBytes();
+        failures = 1;
+        exporter().export(snapshot(new byte[]{1, 2, 3}));
+        // other tests may still upload in the background
+        assertTrue(metrics.getUploads() >= uploads + 1);
+        assertTrue(metrics.getUploadRetries() >= retries + 1);
+        assertTrue(metrics.getUploadBytes() >= bytes + bodies.get(1).length);
+        assertTrue(metrics.getLastUploadNanos() > 0);
+    }
+
+    @Test
+    void testFileSnapshot() throws IOException {
+        failures = 1;
+        File file = File.createTempFile("pyroscope-test", ".jfr");
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+        exporter().export(new Snapshot(Format.JFR, EventType.ITIMER, Instant.now(), Instant.now(), file,
+            JfrLabels.Snapshot.getDefaultInstance()));
+        assertEquals(2, bodies.size());
+        assertArrayEquals(bodies.get(0), bodies.get(1));
+        // the snapshot and the spooled body are cleaned up
+        assertFalse(file.exists());
+        File[] spooled = file.getParentFile().listFiles((dir, name) -> name.startsWith("pyroscope-upload"));
+        assertEquals(0, spooled == null ? 0 : spooled.length);
+    }
+
+    @Test
+    void testAsyncRetry() throws InterruptedException {
+        failures = 1;
+        asyncExporter().export(snapshot(new byte[]{1, 2, 3}));
+        awaitBodies(2);
+        assertArrayEquals(bodies.get(0), bodies.get(1));
+    }
+
+    @Test
+    void testAsyncUploadsAreNotBlockedBySlowOne() throws InterruptedException {
+        blockFirst = new CountDownLatch(1);
+        AsyncExporter exporter = asyncExporter();
+        exporter.export(snapshot(new byte[]{1}));
+        exporter.export(snapshot(new byte[]{2}));
+        exporter.export(snapshot(new byte[]{3}));
+        // the first upload is still in flight
+        awaitBodies(3);
+        blockFirst.countDown();
+    }
+
+    @Test
+    void testAsyncStopGivesUpRetries() throws IOException, InterruptedException {
+        failures = Integer.MAX_VALUE;
+        File file = File.createTempFile("pyroscope-test", ".jfr");
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+        AsyncExporter exporter = asyncExporter();
+        exporter.export(new Snapshot(Format.JFR, EventType.ITIMER, Instant.now(), Instant.now(), file,
+            JfrLabels.Snapshot.getDefaultInstance()));
+        awaitBodies(1);
+        exporter.stop();
+        // the upload waiting for its retry is given up and cleaned up
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (file.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(file.exists());
+    }
+
+    @Test
+    void testSpoolUploadsInOrderAfterOutage(@TempDir File dir) throws InterruptedException {
+        failures = 2;
+        SpoolingExporter exporter = spoolingExporter(dir, Long.MAX_VALUE);
+        exporter.export(snapshot(1, new byte[]{1}));
+        exporter.export(snapshot(2, new byte[]{2}));
+        exporter.export(snapshot(3, new byte[]{3}));
+        awaitAccepted(3);
+        assertTrue(accepted.get(0).contains("from=1&"));
+        assertTrue(accepted.get(1).contains("from=2&"));
+        assertTrue(accepted.get(2).contains("from=3&"));
+        awaitSegments(dir, 0);
+    }
+
+    @Test
+    void testSpoolEvictsOldestSegments(@TempDir File dir) throws InterruptedException {
+        failures = Integer.MAX_VALUE;
+        SpoolingExporter exporter = spoolingExporter(dir, 1);
+        exporter.export(snapshot(1, new byte[]{1}));
+        // the first snapshot is being uploaded and is never evicted
+        awaitBodies(1);
+        exporter.export(snapshot(2, new byte[]{2}));
+        exporter.export(snapshot(3, new byte[]{3}));
+        awaitSegments(dir, 2);
+        failures = 0;
+        awaitAccepted(2);
+        assertTrue(accepted.get(0).contains("from=1&"));
+        assertTrue(accepted.get(1).contains("from=3&"));
+        awaitSegments(dir, 0);
+    }
+
+    @Test
+    void testSpoolRecoversSegments(@TempDir File dir) throws InterruptedException {
+        failures = Integer.MAX_VALUE;
+        SpoolingExporter first = spoolingExporter(dir, Long.MAX_VALUE);
+        first.export(snapshot(1, new byte[]{1}));
+        awaitBodies(1);
+        // its drain thread exits instead of racing the next exporter for the segment
+        first.stop();
+        // a new exporter on the same directory, as after a restart
+        failures = 0;
+        spoolingExporter(dir, Long.MAX_VALUE);
+        awaitSegments(dir, 0);
+        awaitAccepted(1);
+        assertTrue(accepted.get(0).contains("from=1&"));
+    }
+
+    @Test
+    void testSpoolDropsPoisonSegment(@TempDir File dir) throws InterruptedException {
+        poisonStatus = 503;
+        Config config = spoolConfig(dir, 2);
+        SpoolingExporter exporter = new SpoolingExporter(config, new PyroscopeExporter(config, NOOP_LOGGER), NOOP_LOGGER);
+        exporter.export(snapshot(1, POISON));
+        exporter.export(snapshot(2, new byte[]{2}));
+        // the poison segment is dropped after two tries instead of blocking the next one
+        awaitAccepted(1);
+        assertTrue(accepted.get(0).contains("from=2&"));
+        awaitSegments(dir, 0);
+        assertEquals(3, bodies.size());
+    }
+
+    @Test
+    void testSpoolDropsRejectedSegment(@TempDir File dir) throws InterruptedException {
+        poisonStatus = 400;
+        Config config = spoolConfig(dir, -1);
+        SpoolingExporter exporter = new SpoolingExporter(config, new PyroscopeExporter(config, NOOP_LOGGER), NOOP_LOGGER);
+        exporter.export(snapshot(1, POISON));
+        exporter.export(snapshot(2, new byte[]{2}));
+        // not retried
+        awaitAccepted(1);
+        awaitSegments(dir, 0);
+        assertEquals(2, bodies.size());
+    }
+
+    @Test
+    void testQueuedSnapshotsAreBatched() throws InterruptedException {
+        blockFirst = new CountDownLatch(1);
+        Config config = config().newBuilder()
+            .setCompressionLevelJFR(Deflater.NO_COMPRESSION)
+            .setIngestBatchMaxSnapshots(8)
+            .build();
+        QueuedExporter exporter = new QueuedExporter(config, new PyroscopeExporter(config, NOOP_LOGGER), NOOP_LOGGER);
+        exporter.export(snapshot(1, new byte[]{1}));
+        awaitBodies(1);
+        // queued while the first upload is in flight
+        exporter.export(snapshot(11, new byte[]{2}));
+        exporter.export(snapshot(21, new byte[]{3}));
+        exporter.export(snapshot(31, new byte[]{4}));
+        // not merged, there is a gap before it
+        exporter.export(snapshot(51, new byte[]{5}));
+        blockFirst.countDown();
+        awaitAccepted(3);
+        assertTrue(accepted.get(1).contains("from=11&until=41&"));
+        assertTrue(contains(bodies.get(1), new byte[]{2, 3, 4}));
+        assertTrue(accepted.get(2).contains("from=51&until=61&"));
+    }
+
+    @Test
+    void testMergeSnapshots() throws IOException {
+        JfrLabels.Snapshot l1 = JfrLabels.Snapshot.newBuilder()
+            .putContexts(1, JfrLabels.Context.newBuilder().putLabels(1, 2).build())
+            .putStrings(1, "k").putStrings(2, "v1")
+            .build();
+        JfrLabels.Snapshot l2 = JfrLabels.Snapshot.newBuilder()
+            .putContexts(3, JfrLabels.Context.newBuilder().putLabels(1, 4).build())
+            .putStrings(4, "v2")
+            .build();
+        File file = File.createTempFile("pyroscope-test", ".jfr");
+        Files.write(file.toPath(), new byte[]{3, 4});
+        Snapshot s1 = new Snapshot(Format.JFR, EventType.ITIMER, Instant.ofEpochSecond(1), Instant.ofEpochSecond(11),
+            new byte[]{1, 2}, l1);
+        Snapshot s2 = new Snapshot(Format.JFR, EventType.ITIMER, Instant.ofEpochSecond(11), Instant.ofEpochSecond(21),
+            file, l2);
+        Snapshot merged = SnapshotBatch.merge(Arrays.asList(s1, s2));
+        try {
+            assertEquals(Instant.ofEpochSecond(1), merged.started);
+            assertEquals(Instant.ofEpochSecond(21), merged.ended);
+            assertArrayEquals(new byte[]{1, 2, 3, 4}, Files.readAllBytes(merged.file.toPath()));
+            assertEquals(2, merged.labels.getContextsCount());
+            assertEquals(3, merged.labels.getStringsCount());
+        } finally {
+            merged.release();
+            s2.release();
+        }
+        assertFalse(SnapshotBatch.canMerge(s1, new Snapshot(Format.JFR, EventType.WALL, Instant.ofEpochSecond(11),
+            Instant.ofEpochSecond(21), new byte[0], JfrLabels.Snapshot.getDefaultInstance())));
+        assertFalse(SnapshotBatch.canMerge(s1, new Snapshot(Format.JFR, EventType.ITIMER, Instant.ofEpochSecond(12),
+            Instant.ofEpochSecond(22), new byte[0], JfrLabels.Snapshot.getDefaultInstance())));
+    }
+
+    @Test
+    void testCollapsedSnapshotIsSplitByLabelSet() {
+        JfrLabels.Snapshot labels = JfrLabels.Snapshot.newBuilder()
+            .putContexts(7, JfrLabels.Context.newBuilder().putLabels(1, 2).build())
+            .putStrings(1, "k")
+            .putStrings(2, "v")
+            .build();
+        Config config = config().newBuilder()
+            .setCompressionLevelJFR(Deflater.NO_COMPRESSION)
+            .build();
+        new PyroscopeExporter(config, NOOP_LOGGER).export(collapsed(labels,
+            "a;b 4\n".getBytes(StandardCharsets.UTF_8), SnapshotBatch.contextLabels(labels, 0),
+            "a;c 2\n".getBytes(StandardCharsets.UTF_8), SnapshotBatch.contextLabels(labels, 7)));
+        assertEquals(2, accepted.size());
+        assertTrue(accepted.get(0).contains("format=folded"), accepted.get(0));
+        assertFalse(accepted.get(0).contains("k=v"), accepted.get(0));
+        assertTrue(accepted.get(1).contains("name=test.app{k=v}"), accepted.get(1));
+        assertTrue(contains(bodies.get(0), "a;b 4".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void testCollapsedPartsAreUploadedFromFiles(@TempDir File dir) throws Exception {
+        JfrLabels.Snapshot.Builder labels = JfrLabels.Snapshot.newBuilder().putStrings(1, "k");
+        for (int i = 1; i <= 100; i++) {
+            labels.putStrings(i + 1, "v" + i)
+                .putContexts(i, JfrLabels.Context.newBuilder().putLabels(1, i + 1).build());
+        }
+        List<Snapshot> parts = new ArrayList<>();
+        // at most collapsedMaxLabelSets label sets and the stacks without labels
+        for (int i = 0; i <= 16; i++) {
+            File file = new File(dir, i + ".collapsed");
+            Files.write(file.toPath(), ("a;b " + (i + 1) + "\n").getBytes(StandardCharsets.UTF_8));
+            parts.add(new Snapshot(Format.COLLAPSED, EventType.ITIMER, EnumSet.of(EventType.ITIMER), null,
+                Instant.now(), Instant.now(), null, file, SnapshotBatch.contextLabels(labels.build(), i)));
+        }
+        Snapshot snapshot = new Snapshot(Format.COLLAPSED, EventType.ITIMER, EnumSet.of(EventType.ITIMER), null,
+            Instant.now(), Instant.now(), parts, labels.build());
+        // nothing of the interval is held in memory
+        assertNull(snapshot.data);
+        for (Snapshot part : parts) {
+            assertNull(part.data);
+        }
+        Config config = config().newBuilder()
+            .setIngestMaxInFlight(4)
+            .build();
+        new AsyncExporter(config, new PyroscopeExporter(config, NOOP_LOGGER), NOOP_LOGGER).export(snapshot);
+        awaitAccepted(17);
+        // each part is released once it is uploaded
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (dir.list().length > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    void testBodyCodec() throws IOException {
+        Config config = config().newBuilder()
+            .setContentEncoding("deflate")
+            .build();
+        new PyroscopeExporter(config, NOOP_LOGGER).export(snapshot("jfr-data".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(Collections.singletonList("deflate"), encodings);
+        assertEquals(1, accepted.size());
+        // the parts are not gzipped on their own
+        byte[] body = readAll(Codecs.forName("deflate").decode(new ByteArrayInputStream(bodies.get(0))));
+        assertTrue(contains(body, "jfr-data".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void testUnsupportedEncodingFallsBackToGzip() {
+        rejectEncoding = true;
+        Config config = config().newBuilder()
+            .setContentEncoding("deflate")
+            .build();
+        PyroscopeExporter exporter = new PyroscopeExporter(config, NOOP_LOGGER);
+        exporter.export(snapshot(new byte[]{1, 2, 3}));
+        exporter.export(snapshot(new byte[]{4, 5, 6}));
+        assertEquals(Arrays.asList("deflate", "", ""), encodings);
+        assertEquals(2, accepted.size());
+    }
+
+    @Test
+    void testAsyncUnsupportedEncodingFallsBackToGzip() throws InterruptedException {
+        rejectEncoding = true;
+        Config config = config().newBuilder()
+            .setContentEncoding("deflate")
+            .setIngestMaxInFlight(1)
+            .build();
+        new AsyncExporter(config, new PyroscopeExporter(config, NOOP_LOGGER), NOOP_LOGGER)
+            .export(snapshot(new byte[]{1, 2, 3}));
+        awaitAccepted(1);
+        assertEquals(Arrays.asList("deflate", ""), encodings);
+    }
+
+    @Test
+    void testSpooledSegmentIsDecodedAfterFallback(@TempDir File dir) throws InterruptedException {
+        rejectEncoding = true;
+        Config config = config().newBuilder()
+            .setContentEncoding("deflate")
+            .setSpoolDirectory(dir.getAbsolutePath())
+            .build();
+        new SpoolingExporter(config, new PyroscopeExporter(config, NOOP_LOGGER), NOOP_LOGGER)
+            .export(snapshot("jfr-data".getBytes(StandardCharsets.UTF_8)));
+        awaitAccepted(1);
+        assertEquals(Arrays.asList("deflate", ""), encodings);
+        assertTrue(contains(bodies.get(1), "jfr-data".getBytes(StandardCharsets.UTF_8)));
+        awaitSegments(dir, 0);
+    }
+
+    private static boolean contains(byte[] haystack, byte[] needle) {
+        outer:
+        for (int i = 0; i + needle.length <= haystack.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void awaitAccepted(int n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (accepted.size() < n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(n, accepted.size());
+    }
+
+    private static void awaitSegments(File dir, int n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (segments(dir) != n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(n, segments(dir));
+    }
+
+    private static int segments(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".seg"));
+        return files == null ? 0 : files.length;
+    }
+
+    private void awaitBodies(int n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (bodies.size() < n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // retries after a backoff may already have come in
+        assertTrue(bodies.size() >= n);
+    }
+
+    private PyroscopeExporter exporter() {
+        return new PyroscopeExporter(config(), NOOP_LOGGER);
+    }
+
+    private AsyncExporter asyncExporter() {
+        Config config = config().newBuilder()
+            .setIngestMaxInFlight(2)
+            .build();
+        return new AsyncExporter(config, new PyroscopeExporter(config, NOOP_LOGGER), NOOP_LOGGER);
+    }
+
+    private SpoolingExporter spoolingExporter(File dir, long maxSize) {
+        Config config = config().newBuilder()
+            .setSpoolDirectory(dir.getAbsolutePath())
+            .setSpoolMaxSize(maxSize)
+            .build();
+        return new SpoolingExporter(config, new PyroscopeExporter(config, NOOP_LOGGER), NOOP_LOGGER);
+    }
+
+    private Config spoolConfig(File dir, int maxTries) {
+        return config().newBuilder()
+            .setCompressionLevelJFR(Deflater.NO_COMPRESSION)
+            .setSpoolDirectory(dir.getAbsolutePath())
+            .setSpoolMaxTries(maxTries)
+            .build();
+    }
+
+    private Config config() {
+        return new Config.Builder()
+            .setApplicationName("test.app")
+            .setServerAddress("http://127.0.0.1:" + server.getAddress().getPort())
+            .build();
+    }
+
+    private static Snapshot collapsed(JfrLabels.Snapshot labels, byte[] data0, JfrLabels.Snapshot labels0,
+                                      byte[] data1, JfrLabels.Snapshot labels1) {
+        List<Snapshot> parts = Arrays.asList(
+            new Snapshot(Format.COLLAPSED, EventType.ITIMER, EnumSet.of(EventType.ITIMER), null,
+                Instant.now(), Instant.now(), data0, null, labels0),
+            new Snapshot(Format.COLLAPSED, EventType.ITIMER, EnumSet.of(EventType.ITIMER), null,
+                Instant.now(), Instant.now(), data1, null, labels1));
+        return new Snapshot(Format.COLLAPSED, EventType.ITIMER, EnumSet.of(EventType.ITIMER), null,
+            Instant.now(), Instant.now(), parts, labels);
+    }
+
+    private static Snapshot snapshot(byte[] data) {
+        return new Snapshot(Format.JFR, EventType.ITIMER, Instant.now(), Instant.now(), data,
+            JfrLabels.Snapshot.getDefaultInstance());
+    }
+
+    private static Snapshot snapshot(long started, byte[] data) {
+        return new Snapshot(Format.JFR, EventType.ITIMER, Instant.ofEpochSecond(started), Instant.ofEpochSecond(started + 10),
+            data, JfrLabels.Snapshot.getDefaultInstance());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            res.write(buf, 0, n);
+        }
+        return res.toByteArray();
+    }
+}
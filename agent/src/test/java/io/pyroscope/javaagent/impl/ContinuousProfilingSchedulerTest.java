@@ -0,0 +1,71 @@
+package io.pyroscope.javaagent.impl;
+
+import io.pyroscope.http.Format;
+import io.pyroscope.javaagent.EventType;
+import io.pyroscope.javaagent.PyroscopeAgent;
+import io.pyroscope.javaagent.Snapshot;
+import io.pyroscope.javaagent.config.Config;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ContinuousProfilingSchedulerTest {
+    @Test
+    void uploadOffsetIsStableAndWithinInterval() {
+        Config a = new Config.Builder()
+            .setApplicationName("test.app{pod=a}")
+            .setUploadInterval(Duration.ofSeconds(10))
+            .build();
+        Config b = a.newBuilder()
+            .setApplicationName("test.app{pod=b}")
+            .build();
+        long offset = ContinuousProfilingScheduler.uploadOffsetMillis(a);
+        assertEquals(offset, ContinuousProfilingScheduler.uploadOffsetMillis(a));
+        assertTrue(offset >= 0 && offset < 10_000);
+        assertNotEquals(offset, ContinuousProfilingScheduler.uploadOffsetMillis(b));
+    }
+
+    @Test
+    void alignedIntervals() throws InterruptedException {
+        Config config = new Config.Builder()
+            .setApplicationName("test.app")
+            .setFormat(Format.JFR)
+            .setProfilingEvent(EventType.ITIMER)
+            .setUploadInterval(Duration.ofSeconds(1))
+            .setUploadIntervalAligned(true)
+            .build();
+        long offset = ContinuousProfilingScheduler.uploadOffsetMillis(config);
+        List<Snapshot> snapshots = Collections.synchronizedList(new ArrayList<>());
+        List<Long> exportedAt = Collections.synchronizedList(new ArrayList<>());
+        PyroscopeAgent.start(new PyroscopeAgent.Options.Builder(config)
+            .setExporter(snapshot -> {
+                exportedAt.add(System.currentTimeMillis());
+                snapshots.add(snapshot);
+            })
+            .build());
+        try {
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (snapshots.size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            PyroscopeAgent.stop();
+        }
+        assertTrue(snapshots.size() >= 2);
+        for (int i = 0; i < 2; i++) {
+            long ended = snapshots.get(i).ended.toEpochMilli();
+            // intervals end on a second boundary, give the scheduler some slack
+            assertTrue(ended % 1000 < 200, "ended at " + ended);
+            assertTrue(exportedAt.get(i) >= ended + offset - 10);
+        }
+        // the second interval is a whole one
+        assertEquals(1, snapshots.get(1).ended.getEpochSecond() - snapshots.get(0).ended.getEpochSecond());
+    }
+}
@@ -0,0 +1,80 @@
+package io.pyroscope.javaagent.impl;
+
+import io.pyroscope.javaagent.config.Config;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OverheadControllerTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    private final Config config = new Config.Builder()
+        .setApplicationName("test.app")
+        .setProfilingInterval(Duration.ofMillis(10))
+        .setProfilingAlloc("512k")
+        .setProfilingOverheadBudget(0.01)
+        .setLabels(Collections.singletonMap("env", "test"))
+        .setIngestMaxRetries(3)
+        .build();
+
+    @Test
+    void overBudgetBacksOff() {
+        OverheadController controller = new OverheadController(config);
+        // 4% of a second against a 1% budget
+        controller.record(40_000_000L, 0);
+        Config next = controller.adjust(SECOND);
+        assertNotNull(next);
+        assertEquals(2, controller.scale(), 1e-9);
+        assertEquals(Duration.ofMillis(20), next.profilingInterval);
+        assertEquals(Long.toString(1024 * 1024), next.profilingAlloc);
+        assertEquals(config.labels, next.labels);
+        assertEquals(config.ingestMaxTries, next.ingestMaxTries);
+    }
+
+    @Test
+    void scaleIsBounded() {
+        OverheadController controller = new OverheadController(config);
+        for (int i = 0; i < 10; i++) {
+            controller.record(SECOND, 0);
+            controller.adjust(SECOND);
+        }
+        assertEquals(OverheadController.MAX_SCALE, controller.scale(), 1e-9);
+
+        // no cost at all, back to the configured settings
+        Config next = null;
+        for (int i = 0; i < 10 && controller.scale() > 1; i++) {
+            next = controller.adjust(SECOND);
+        }
+        assertNotNull(next);
+        assertEquals(1, controller.scale(), 1e-9);
+        assertEquals(config.profilingInterval, next.profilingInterval);
+    }
+
+    @Test
+    void smallChangesAreIgnored() {
+        OverheadController controller = new OverheadController(config);
+        controller.record(9_000_000L, 0);
+        assertNull(controller.adjust(SECOND));
+        assertNull(controller.adjust(0));
+
+        // uploaded bytes count too
+        controller.record(0, 4 * 1_000_000_000L / OverheadController.UPLOAD_NANOS_PER_BYTE / 100);
+        assertNotNull(controller.adjust(SECOND));
+        assertTrue(controller.scale() > 1);
+    }
+
+    @Test
+    void parseSize() {
+        assertEquals(512 * 1024, OverheadController.parseSize("512k"));
+        assertEquals(2 * 1024 * 1024, OverheadController.parseSize("2M"));
+        assertEquals(1000, OverheadController.parseSize("1000"));
+        assertEquals(-1, OverheadController.parseSize(""));
+        assertEquals(-1, OverheadController.parseSize("lots"));
+    }
+}
@@ -0,0 +1,55 @@
+package io.pyroscope.javaagent.util;
+
+import okhttp3.Dns;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CachingDnsTest {
+    private final AtomicInteger lookups = new AtomicInteger();
+    private volatile boolean fail;
+    private final Dns counting = hostname -> {
+        lookups.incrementAndGet();
+        if (fail) {
+            throw new UnknownHostException(hostname);
+        }
+        return Collections.singletonList(InetAddress.getByAddress(hostname, new byte[]{127, 0, 0, 1}));
+    };
+
+    @Test
+    void cachesWithinTtl() throws UnknownHostException {
+        CachingDns dns = new CachingDns(counting, Duration.ofMinutes(1));
+        List<InetAddress> first = dns.lookup("ingest");
+        assertEquals(first, dns.lookup("ingest"));
+        assertEquals(1, lookups.get());
+        dns.lookup("other");
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    void expires() throws UnknownHostException, InterruptedException {
+        CachingDns dns = new CachingDns(counting, Duration.ofMillis(1));
+        dns.lookup("ingest");
+        Thread.sleep(5);
+        dns.lookup("ingest");
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    void failuresAreNotCached() throws UnknownHostException {
+        CachingDns dns = new CachingDns(counting, Duration.ofMinutes(1));
+        fail = true;
+        assertThrows(UnknownHostException.class, () -> dns.lookup("ingest"));
+        fail = false;
+        dns.lookup("ingest");
+        assertEquals(2, lookups.get());
+    }
+}
@@ -0,0 +1,118 @@
+package io.pyroscope.javaagent.util.collapsed;
+
+import io.pyroscope.javaagent.EventType;
+import io.pyroscope.labels.LabelsSet;
+import io.pyroscope.labels.Pyroscope;
+import io.pyroscope.labels.io.pyroscope.PyroscopeAsyncProfiler;
+import io.pyroscope.labels.pb.JfrLabels;
+import one.profiler.AsyncProfiler;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class JfrToCollapsedTest {
+    static volatile long sink;
+
+    private static File record(int labelSets) throws Exception {
+        AsyncProfiler profiler = PyroscopeAsyncProfiler.getAsyncProfiler();
+        File jfr = File.createTempFile("pyroscope", ".jfr");
+        jfr.deleteOnExit();
+        profiler.execute("start,event=itimer,interval=1000000,file=" + jfr);
+        try {
+            long end = System.currentTimeMillis() + 500;
+            int i = 0;
+            while (System.currentTimeMillis() < end) {
+                final int n = i++ % labelSets;
+                Pyroscope.LabelsWrapper.run(new LabelsSet("k", "v" + n), () -> {
+                    for (int j = 0; j < 100000; j++) {
+                        sink += (long) j * n;
+                    }
+                });
+            }
+        } finally {
+            profiler.stop();
+        }
+        return jfr;
+    }
+
+    private static long samples(String stacks) {
+        long samples = 0;
+        for (String line : stacks.split("\n")) {
+            if (!line.isEmpty()) {
+                samples += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+            }
+        }
+        return samples;
+    }
+
+    @Test
+    void testSplitsStacksByContext() throws Exception {
+        File jfr = record(4);
+        Map<Long, ByteArrayOutputStream> outputs = new LinkedHashMap<>();
+        JfrToCollapsed.convert(jfr, EventType.ITIMER, 16, contextId -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            outputs.put(contextId, out);
+            return out;
+        });
+        JfrLabels.Snapshot labels = Pyroscope.LabelsWrapper.dump();
+        assertTrue(outputs.size() > 1, outputs.keySet().toString());
+        long samples = 0;
+        boolean labeled = false;
+        for (Map.Entry<Long, ByteArrayOutputStream> output : outputs.entrySet()) {
+            long contextId = output.getKey();
+            assertTrue(contextId == 0 || labels.getContextsMap().containsKey(contextId));
+            String stacks = new String(output.getValue().toByteArray(), StandardCharsets.UTF_8);
+            samples += samples(stacks);
+            for (String line : stacks.split("\n")) {
+                if (contextId != 0 && line.contains(JfrToCollapsedTest.class.getName() + ".")) {
+                    labeled = true;
+                }
+                // root frame first
+                assertTrue(!line.startsWith(JfrToCollapsedTest.class.getName()), line);
+            }
+        }
+        assertTrue(samples > 0);
+        assertTrue(labeled);
+    }
+
+    @Test
+    void testLabelSetsAreCapped() throws Exception {
+        File jfr = record(100);
+        Map<Long, File> outputs = new LinkedHashMap<>();
+        try {
+            JfrToCollapsed.convert(jfr, EventType.ITIMER, 8, contextId -> {
+                File file = File.createTempFile("pyroscope", ".collapsed");
+                outputs.put(contextId, file);
+                return new FileOutputStream(file);
+            });
+            // one upload per label set and one for the stacks without labels
+            assertTrue(outputs.size() <= 9, outputs.keySet().toString());
+            assertTrue(outputs.containsKey(0L));
+
+            long capped = 0;
+            for (File file : outputs.values()) {
+                capped += samples(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            }
+            ByteArrayOutputStream all = new ByteArrayOutputStream();
+            JfrToCollapsed.convert(jfr, EventType.ITIMER, 0, contextId -> {
+                assertEquals(0, contextId);
+                return all;
+            });
+            // folded, not dropped
+            assertEquals(samples(new String(all.toByteArray(), StandardCharsets.UTF_8)), capped);
+        } finally {
+            for (File file : outputs.values()) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package io.pyroscope.javaagent.util.jfr;
+
+import io.pyroscope.javaagent.util.LongHashSet;
+import io.pyroscope.labels.LabelsSet;
+import io.pyroscope.labels.Pyroscope;
+import io.pyroscope.labels.io.pyroscope.PyroscopeAsyncProfiler;
+import io.pyroscope.labels.pb.JfrLabels;
+import one.profiler.AsyncProfiler;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ContextIdsTest {
+    static volatile long sink;
+
+    @Test
+    void testReadsContextIdsOfSamples() throws Exception {
+        AsyncProfiler profiler = PyroscopeAsyncProfiler.getAsyncProfiler();
+        File jfr = File.createTempFile("pyroscope", ".jfr");
+        jfr.deleteOnExit();
+        profiler.execute("start,event=itimer,interval=1000000,file=" + jfr);
+        try {
+            long end = System.currentTimeMillis() + 500;
+            int i = 0;
+            while (System.currentTimeMillis() < end) {
+                final int n = i++ % 4;
+                Pyroscope.LabelsWrapper.run(new LabelsSet("k", "v" + n), () -> {
+                    for (int j = 0; j < 100000; j++) {
+                        sink += (long) j * n;
+                    }
+                });
+            }
+        } finally {
+            profiler.stop();
+        }
+
+        LongHashSet ids = ContextIds.read(jfr);
+        JfrLabels.Snapshot labels = Pyroscope.LabelsWrapper.dump();
+        assertTrue(ids.size() > 0);
+        assertTrue(ids.size() <= labels.getContextsCount());
+        for (long id : labels.getContextsMap().keySet()) {
+            ids.add(id);
+        }
+        // every sampled context is known to the labels registry
+        assertEquals(labels.getContextsCount(), ids.size());
+    }
+}
@@ -0,0 +1,160 @@
+package io.pyroscope.javaagent.util.pprof;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import io.pyroscope.javaagent.EventType;
+import io.pyroscope.labels.LabelsSet;
+import io.pyroscope.labels.Pyroscope;
+import io.pyroscope.labels.io.pyroscope.PyroscopeAsyncProfiler;
+import one.profiler.AsyncProfiler;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class JfrToPprofTest {
+    static volatile long sink;
+
+    @Test
+    void testBuilderInterns() throws IOException {
+        PprofBuilder builder = new PprofBuilder().sampleType("cpu", "count");
+        long a = builder.location("a.A.run", 1);
+        assertEquals(a, builder.location("a.A.run", 1));
+        long b = builder.location("a.A.run", 2);
+        assertTrue(a != b);
+        builder.sample(new long[]{b, a}, new long[]{3}, new long[]{builder.string("k"), builder.string("v")});
+        builder.sample(new long[]{a}, new long[]{1}, new long[0]);
+
+        Profile profile = Profile.parse(builder.build());
+        assertEquals("", profile.strings.get(0));
+        assertEquals(2, profile.samples);
+        assertEquals(1, profile.functions.size());
+        assertEquals(4, profile.values);
+        assertTrue(profile.labels.contains("k=v"));
+    }
+
+    @Test
+    void testConvertsSamplesWithLabels() throws Exception {
+        AsyncProfiler profiler = PyroscopeAsyncProfiler.getAsyncProfiler();
+        File jfr = File.createTempFile("pyroscope", ".jfr");
+        jfr.deleteOnExit();
+        Instant started = Instant.now();
+        profiler.execute("start,event=itimer,interval=1000000,file=" + jfr);
+        try {
+            long end = System.currentTimeMillis() + 500;
+            int i = 0;
+            while (System.currentTimeMillis() < end) {
+                final int n = i++ % 4;
+                Pyroscope.LabelsWrapper.run(new LabelsSet("k", "v" + n), () -> {
+                    for (int j = 0; j < 100000; j++) {
+                        sink += (long) j * n;
+                    }
+                });
+            }
+        } finally {
+            profiler.stop();
+        }
+
+        byte[] data = JfrToPprof.convert(jfr, EnumSet.of(EventType.ITIMER), Duration.ofMillis(1), started,
+            Instant.now(), Pyroscope.LabelsWrapper.dump());
+        Profile profile = Profile.parse(data);
+        assertEquals(JfrToPprof.SampleType.CPU.id, profile.strings.get(profile.sampleTypes.get(0)));
+        assertEquals(1, profile.sampleTypes.size());
+        assertTrue(profile.samples > 0);
+        // identical stacks of a context are aggregated into one sample
+        assertTrue(profile.values > profile.samples);
+        assertTrue(profile.functions.stream().anyMatch(f -> f.startsWith(JfrToPprofTest.class.getName() + ".")),
+            profile.functions.toString());
+        assertTrue(profile.labels.contains("k=v0"), profile.labels.toString());
+    }
+
+    /**
+     * The parts of a pprof profile the tests check.
+     */
+    private static final class Profile {
+        final List<String> strings = new ArrayList<>();
+        final List<Integer> sampleTypes = new ArrayList<>();
+        final List<String> functions = new ArrayList<>();
+        final Set<String> labels = new HashSet<>();
+        int samples;
+        long values;
+
+        static Profile parse(byte[] data) throws IOException {
+            Profile p = new Profile();
+            List<Long> functionNames = new ArrayList<>();
+            List<long[]> labelIndices = new ArrayList<>();
+            CodedInputStream in = CodedInputStream.newInstance(data);
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case 1:
+                        p.sampleTypes.add((int) firstField(in.readBytes().newCodedInput(), 1));
+                        break;
+                    case 2:
+                        p.samples++;
+                        parseSample(in.readBytes().newCodedInput(), p, labelIndices);
+                        break;
+                    case 5:
+                        functionNames.add(firstField(in.readBytes().newCodedInput(), 2));
+                        break;
+                    case 6:
+                        p.strings.add(in.readString());
+                        break;
+                    default:
+                        in.skipField(tag);
+                }
+            }
+            for (long name : functionNames) {
+                p.functions.add(p.strings.get((int) name));
+            }
+            for (long[] label : labelIndices) {
+                p.labels.add(p.strings.get((int) label[0]) + "=" + p.strings.get((int) label[1]));
+            }
+            return p;
+        }
+
+        private static void parseSample(CodedInputStream in, Profile p, List<long[]> labels) throws IOException {
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case 2: {
+                        CodedInputStream values = in.readBytes().newCodedInput();
+                        while (!values.isAtEnd()) {
+                            p.values += values.readInt64();
+                        }
+                        break;
+                    }
+                    case 3: {
+                        CodedInputStream label = in.readBytes().newCodedInput();
+                        labels.add(new long[]{firstField(label, 1), firstField(label, 2)});
+                        break;
+                    }
+                    default:
+                        in.skipField(tag);
+                }
+            }
+        }
+
+        // reads varint fields up to the given one, fields are written in order
+        private static long firstField(CodedInputStream in, int field) throws IOException {
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                if (WireFormat.getTagFieldNumber(tag) == field) {
+                    return in.readInt64();
+                }
+                in.skipField(tag);
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package io.pyroscope.javaagent.util.zip;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CodecsTest {
+    @Test
+    void testForName() {
+        assertSame(Codecs.GZIP, Codecs.forName("gzip"));
+        assertSame(Codecs.GZIP, Codecs.forName(" GZIP "));
+        assertSame(Codecs.IDENTITY, Codecs.forName("identity"));
+        assertSame(Codecs.IDENTITY, Codecs.forName("none"));
+        assertSame(Codecs.DEFLATE, Codecs.forName("Deflate"));
+        assertNull(Codecs.forName("br"));
+        assertFalse(Codecs.encodesBody(Codecs.GZIP));
+        assertFalse(Codecs.encodesBody(Codecs.IDENTITY));
+        assertTrue(Codecs.encodesBody(Codecs.DEFLATE));
+    }
+
+    @Test
+    void testServiceLoader() throws IOException {
+        Codec codec = Codecs.forName("x-pyroscope-test");
+        assertTrue(codec instanceof TestCodec);
+        assertTrue(Codecs.encodesBody(codec));
+        roundTrip(codec);
+    }
+
+    @Test
+    void testBuiltInRoundTrip() throws IOException {
+        roundTrip(Codecs.GZIP);
+        roundTrip(Codecs.DEFLATE);
+        roundTrip(Codecs.IDENTITY);
+    }
+
+    private static void roundTrip(Codec codec) throws IOException {
+        byte[] data = new byte[100_000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) "pyroscope".charAt(i % 9);
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (OutputStream out = codec.encode(encoded, Deflater.BEST_SPEED)) {
+            out.write(data);
+        }
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        try (InputStream in = codec.decode(new ByteArrayInputStream(encoded.toByteArray()))) {
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                decoded.write(buf, 0, n);
+            }
+        }
+        assertArrayEquals(data, decoded.toByteArray(), codec.name());
+    }
+}
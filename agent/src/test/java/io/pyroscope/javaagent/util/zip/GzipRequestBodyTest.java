@@ -0,0 +1,151 @@
+package io.pyroscope.javaagent.util.zip;
+
+import okio.Buffer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GzipRequestBodyTest {
+    @Test
+    void testRoundTrip() throws IOException {
+        for (int size : new int[]{0, 1, 64 * 1024, 300 * 1024 + 7}) {
+            byte[] data = data(size);
+            assertArrayEquals(data, gunzip(GzipRequestBody.create(data, Deflater.BEST_SPEED, null)));
+            // a body is written once per attempt, the reused deflater must start over every time
+            assertArrayEquals(data, gunzip(GzipRequestBody.create(data, Deflater.BEST_COMPRESSION, null)));
+        }
+    }
+
+    @Test
+    void testFile() throws IOException {
+        byte[] data = data(200 * 1024 + 3);
+        File file = File.createTempFile("pyroscope-test", ".jfr");
+        try {
+            Files.write(file.toPath(), data);
+            GzipRequestBody body = GzipRequestBody.create(file, Deflater.BEST_SPEED, null);
+            assertArrayEquals(data, gunzip(body));
+            assertArrayEquals(data, gunzip(body));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    void testParallelRoundTrip() throws IOException {
+        ParallelGzip parallel = new ParallelGzip(2);
+        try {
+            int block = ParallelGzip.BLOCK_SIZE;
+            for (int size : new int[]{block + 1, 2 * block, 11 * block + 5}) {
+                byte[] data = data(size);
+                for (int level : new int[]{Deflater.BEST_SPEED, 6, Deflater.BEST_COMPRESSION}) {
+                    assertArrayEquals(data, gunzip(GzipRequestBody.create(data, level, null, parallel)));
+                }
+            }
+        } finally {
+            parallel.shutdown();
+        }
+    }
+
+    @Test
+    void testParallelFile() throws IOException {
+        ParallelGzip parallel = new ParallelGzip(2);
+        // more blocks than fit in flight, so block buffers are reused
+        for (int size : new int[]{9 * ParallelGzip.BLOCK_SIZE, 9 * ParallelGzip.BLOCK_SIZE + 3}) {
+            byte[] data = data(size);
+            File file = File.createTempFile("pyroscope-test", ".jfr");
+            try {
+                Files.write(file.toPath(), data);
+                GzipRequestBody body = GzipRequestBody.create(file, Deflater.BEST_SPEED, null, parallel);
+                assertArrayEquals(data, gunzip(body));
+                assertArrayEquals(data, gunzip(body));
+            } finally {
+                file.delete();
+            }
+        }
+        parallel.shutdown();
+    }
+
+    @Test
+    void testParallelUsesPreviousBlockAsDictionary() throws IOException {
+        // every block repeats the end of the previous one, which only a dictionary can find
+        byte[] pattern = new byte[30000];
+        new Random(0).nextBytes(pattern);
+        byte[] data = new byte[8 * ParallelGzip.BLOCK_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = pattern[i % pattern.length];
+        }
+        ParallelGzip parallel = new ParallelGzip(4);
+        try {
+            Buffer serial = new Buffer();
+            GzipRequestBody.create(data, Deflater.BEST_SPEED, null).writeTo(serial);
+            Buffer blocks = new Buffer();
+            GzipRequestBody.create(data, Deflater.BEST_SPEED, null, parallel).writeTo(blocks);
+            // blocks compressed without a dictionary take about six times the serial size
+            assertTrue(blocks.size() < serial.size() * 11 / 10, blocks.size() + " vs " + serial.size());
+        } finally {
+            parallel.shutdown();
+        }
+    }
+
+    @Test
+    void testShutdownFallsBackToSerial() throws IOException, InterruptedException {
+        ParallelGzip parallel = new ParallelGzip(2);
+        byte[] data = data(3 * ParallelGzip.BLOCK_SIZE);
+        GzipRequestBody body = GzipRequestBody.create(data, Deflater.BEST_SPEED, null, parallel);
+        assertArrayEquals(data, gunzip(body));
+        parallel.shutdown();
+        assertTrue(parallel.isShutdown());
+        // a retry of the same body after the exporter has stopped
+        assertArrayEquals(data, gunzip(body));
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (compressionThreads() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, compressionThreads());
+    }
+
+    private static int compressionThreads() {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("PyroscopeCompression-")) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        Random r = new Random(size);
+        // compressible but not trivially so
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + r.nextInt(8));
+        }
+        return data;
+    }
+
+    private static byte[] gunzip(GzipRequestBody body) throws IOException {
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(buffer.inputStream())) {
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                res.write(buf, 0, n);
+            }
+        }
+        return res.toByteArray();
+    }
+}
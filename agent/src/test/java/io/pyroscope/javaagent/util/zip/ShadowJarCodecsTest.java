@@ -0,0 +1,51 @@
+package io.pyroscope.javaagent.util.zip;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Codecs looked up by the classes of the shaded agent jar, which has no service files of its own.
+ */
+@EnabledIfSystemProperty(named = "pyroscope.shadowJar", matches = ".+")
+public class ShadowJarCodecsTest {
+    private static final String SERVICE = "META-INF/services/" + Codec.class.getName();
+
+    @Test
+    void testCodecOnTheClassPath() throws Exception {
+        URL agent = new File(System.getProperty("pyroscope.shadowJar")).toURI().toURL();
+        URL codecClasses = TestCodec.class.getProtectionDomain().getCodeSource().getLocation();
+        URL service = ShadowJarCodecsTest.class.getClassLoader().getResource(SERVICE);
+        assertNotNull(service);
+        // the root of the test resources
+        URL codecServices = new URL(service, "../..");
+
+        try (URLClassLoader jar = new URLClassLoader(new URL[]{agent}, null)) {
+            assertNull(jar.getResource(SERVICE));
+            assertNull(forName(jar, "x-pyroscope-test"));
+            // built in
+            assertNotNull(forName(jar, "deflate"));
+        }
+        // the agent jar and the codec jar on the same class path
+        try (URLClassLoader classPath = new URLClassLoader(new URL[]{agent, codecClasses, codecServices}, null)) {
+            Object codec = forName(classPath, "x-pyroscope-test");
+            assertNotNull(codec);
+            assertEquals(TestCodec.class.getName(), codec.getClass().getName());
+            assertSame(classPath, codec.getClass().getClassLoader());
+        }
+    }
+
+    private static Object forName(ClassLoader loader, String name) throws Exception {
+        Method forName = loader.loadClass(Codecs.class.getName()).getMethod("forName", String.class);
+        return forName.invoke(null, name);
+    }
+}
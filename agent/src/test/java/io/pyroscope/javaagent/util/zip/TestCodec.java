@@ -0,0 +1,34 @@
+package io.pyroscope.javaagent.util.zip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A codec found by {@link java.util.ServiceLoader}, as a zstd or lz4 one would be. Deflates under a name of its own.
+ */
+public class TestCodec implements Codec {
+    @Override
+    public String name() {
+        return "x-pyroscope-test";
+    }
+
+    @Override
+    public OutputStream encode(OutputStream out, int level) {
+        return new DeflaterOutputStream(out, new Deflater(level)) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                def.end();
+            }
+        };
+    }
+
+    @Override
+    public InputStream decode(InputStream in) {
+        return new InflaterInputStream(in);
+    }
+}
@@ -0,0 +1,261 @@
+package io.pyroscope.labels;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.LongPredicate;
+
+/**
+ * Context registry built on primitive arrays, an alternative to {@link RefCounted#contexts}.
+ * <p>
+ * A context is stored as its (keyId, valueId) pairs sorted by key id and packed into a single {@code long[]}.
+ * Entries live in open-addressing tables with precomputed hashes, ids and refcounts kept in parallel primitive
+ * arrays, so a live context costs one small {@code long[]} plus a few table slots instead of a map, its
+ * entries, a {@link Ref}, a boxed id and an {@code AtomicLong}.
+ * <p>
+ * Like {@link RefCounted#contexts}, a registered context holds one reference to each of its key and value
+ * strings, which is released when the context is collected by {@link #gc(int)}.
+ * The table is split into lock-striped segments by hash.
+ */
+final class PackedContexts {
+    static volatile boolean enabled = false;
+
+    static final PackedContexts INSTANCE = new PackedContexts();
+
+    private static final int SEGMENTS = 16;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    // keys of contexts whose refcount dropped to zero, they may have been resurrected since
+    private final ConcurrentLinkedQueue<long[]> released = new ConcurrentLinkedQueue<>();
+
+    PackedContexts() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Packs labels into sorted (keyId, valueId) pairs.
+     */
+    static long[] pack(Map<Ref<String>, Ref<String>> labels) {
+        long[] packed = new long[labels.size() * 2];
+        int n = 0;
+        for (Map.Entry<Ref<String>, Ref<String>> it : labels.entrySet()) {
+            long k = it.getKey().id;
+            long v = it.getValue().id;
+            int i = n;
+            // insertion sort by key, label sets are small
+            while (i > 0 && packed[i - 2] > k) {
+                packed[i] = packed[i - 2];
+                packed[i + 1] = packed[i - 1];
+                i -= 2;
+            }
+            packed[i] = k;
+            packed[i + 1] = v;
+            n += 2;
+        }
+        return packed;
+    }
+
+    static int hash(long[] packed) {
+        int h = 1;
+        for (long it : packed) {
+            h = 31 * h + Long.hashCode(it);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Acquires a reference to the context with the given packed labels, registering it if needed.
+     *
+     * @param outFresh set to true if the context was registered by this call,
+     *                 in which case it takes over the string references held by the caller
+     * @return context id
+     */
+    long acquire(long[] packed, boolean[] outFresh) {
+        int hash = hash(packed);
+        Segment s = segments[hash & (SEGMENTS - 1)];
+        synchronized (s) {
+            int slot = s.find(packed, hash);
+            if (slot >= 0) {
+                s.refCounts[slot]++;
+                outFresh[0] = false;
+                return s.ids[slot];
+            }
+            long id = RefCounted.contexts.idCounter.incrementAndGet();
+            s.insert(packed, hash, id);
+            outFresh[0] = true;
+            return id;
+        }
+    }
+
+    void release(long[] packed) {
+        int hash = hash(packed);
+        Segment s = segments[hash & (SEGMENTS - 1)];
+        synchronized (s) {
+            int slot = s.find(packed, hash);
+            if (slot < 0) {
+                throw new AssertionError();
+            }
+            if (--s.refCounts[slot] == 0) {
+                released.add(s.keys[slot]);
+            }
+        }
+    }
+
+    /**
+     * Removes up to {@code max} contexts which are not referenced anymore and releases their strings.
+     * Only contexts released since the previous calls are visited, never the whole table.
+     *
+     * @return the number of candidates visited
+     */
+    int gc(int max) {
+        int n = 0;
+        long[] packed;
+        while (n < max && (packed = released.poll()) != null) {
+            n++;
+            int hash = hash(packed);
+            Segment s = segments[hash & (SEGMENTS - 1)];
+            synchronized (s) {
+                int slot = s.find(packed, hash);
+                // the same key array identifies the same registration
+                if (slot < 0 || s.keys[slot] != packed || s.refCounts[slot] != 0) {
+                    continue;
+                }
+                s.remove(slot);
+            }
+            for (long id : packed) {
+                RefCounted.strings.releaseById(id);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Visits the contexts last dumped before {@code threshold} and marks them as dumped in {@code generation}.
+     * If {@code filter} is not null, only contexts whose id matches are visited.
+     */
+    void dump(long threshold, long generation, LongPredicate filter, Visitor visitor) {
+        for (Segment s : segments) {
+            synchronized (s) {
+                for (int i = 0; i < s.keys.length; i++) {
+                    if (s.keys[i] != null && s.dumpedGenerations[i] < threshold
+                            && (filter == null || filter.test(s.ids[i]))) {
+                        s.dumpedGenerations[i] = generation;
+                        visitor.visit(s.ids[i], s.keys[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                size += s.size;
+            }
+        }
+        return size;
+    }
+
+    interface Visitor {
+        void visit(long id, long[] packed);
+    }
+
+    private static final class Segment {
+        long[][] keys = new long[INITIAL_CAPACITY][];
+        int[] hashes = new int[INITIAL_CAPACITY];
+        long[] ids = new long[INITIAL_CAPACITY];
+        long[] refCounts = new long[INITIAL_CAPACITY];
+        long[] dumpedGenerations = new long[INITIAL_CAPACITY];
+        int size;
+
+        int find(long[] packed, int hash) {
+            int mask = keys.length - 1;
+            for (int i = hash & mask; keys[i] != null; i = (i + 1) & mask) {
+                if (hashes[i] == hash && equal(keys[i], packed)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void insert(long[] packed, int hash, long id) {
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = packed;
+            hashes[i] = hash;
+            ids[i] = id;
+            refCounts[i] = 1;
+            dumpedGenerations[i] = 0;
+            size++;
+        }
+
+        void remove(int slot) {
+            int mask = keys.length - 1;
+            keys[slot] = null;
+            size--;
+            // backward shift deletion keeps probe sequences intact without tombstones
+            int hole = slot;
+            for (int i = (slot + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+                int home = hashes[i] & mask;
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    keys[hole] = keys[i];
+                    hashes[hole] = hashes[i];
+                    ids[hole] = ids[i];
+                    refCounts[hole] = refCounts[i];
+                    dumpedGenerations[hole] = dumpedGenerations[i];
+                    keys[i] = null;
+                    hole = i;
+                }
+            }
+        }
+
+        private void resize(int capacity) {
+            long[][] oldKeys = keys;
+            int[] oldHashes = hashes;
+            long[] oldIds = ids;
+            long[] oldRefCounts = refCounts;
+            long[] oldDumpedGenerations = dumpedGenerations;
+            keys = new long[capacity][];
+            hashes = new int[capacity];
+            ids = new long[capacity];
+            refCounts = new long[capacity];
+            dumpedGenerations = new long[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] == null) {
+                    continue;
+                }
+                int i = oldHashes[j] & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                hashes[i] = oldHashes[j];
+                ids[i] = oldIds[j];
+                refCounts[i] = oldRefCounts[j];
+                dumpedGenerations[i] = oldDumpedGenerations[j];
+            }
+        }
+
+        private static boolean equal(long[] a, long[] b) {
+            if (a.length != b.length) {
+                return false;
+            }
+            for (int i = 0; i < a.length; i++) {
+                if (a[i] != b[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
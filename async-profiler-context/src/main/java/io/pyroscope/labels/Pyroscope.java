@@ -6,6 +6,7 @@ import io.pyroscope.labels.pb.*;
 import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.function.LongPredicate;
 
 public class Pyroscope {
     /**
@@ -28,22 +29,93 @@ public class Pyroscope {
             }
         }
 
+        private static final Object dumpLock = new Object();
+        // incremented by every dump, guarded by dumpLock
+        private static long generation = 0;
+        // generation of the last full dump, guarded by dumpLock
+        private static long fullGeneration = 0;
+        private static volatile int gcBudget = Integer.MAX_VALUE;
+
         public static JfrLabels.Snapshot dump() {
-            JfrLabels.Snapshot.Builder sb = JfrLabels.Snapshot.newBuilder();
+            return dump(false, null);
+        }
 
-            for (Ref<String> it : RefCounted.strings.valueToRef.values()) {
-                sb.putStrings(it.id, it.val);
-            }
-            for (Ref<Map<Ref<String>, Ref<String>>> it : RefCounted.contexts.valueToRef.values()) {
-                JfrLabels.Context.Builder cb = JfrLabels.Context.newBuilder();
-                for (Map.Entry<Ref<String>, Ref<String>> kv : it.val.entrySet()) {
-                    cb.putLabels(kv.getKey().id, kv.getValue().id);
+        public static JfrLabels.Snapshot dump(boolean delta) {
+            return dump(delta, null);
+        }
+
+        /**
+         * Dumps the registered strings and contexts and collects the ones which are not referenced anymore.
+         *
+         * @param delta if true, only strings and contexts which were not emitted since the last full dump are
+         *              emitted. Ids are never reused, so the union of a full dump and the delta dumps following
+         *              it resolves every context id sampled in between. A delta dump is only useful for a
+         *              consumer which keeps the labels across dumps; falls back to a full dump if there was no
+         *              full dump yet.
+         * @param referenced if not null, only contexts whose id matches and the strings they use are emitted,
+         *                   e.g. the context ids found in the recording the snapshot is uploaded with.
+         *                   Contexts which are left out are collected as usual.
+         */
+        public static JfrLabels.Snapshot dump(boolean delta, LongPredicate referenced) {
+            synchronized (dumpLock) {
+                TransitionCache.releaseTerminated();
+                JfrLabels.Snapshot.Builder sb = JfrLabels.Snapshot.newBuilder();
+
+                long gen = ++generation;
+                long threshold;
+                if (delta && fullGeneration != 0) {
+                    threshold = fullGeneration;
+                } else {
+                    threshold = Long.MAX_VALUE;
+                    fullGeneration = gen;
+                }
+                if (referenced == null) {
+                    for (Ref<String> it : RefCounted.strings.valueToRef.values()) {
+                        if (it.dumpedGeneration < threshold) {
+                            it.dumpedGeneration = gen;
+                            sb.putStrings(it.id, it.val);
+                        }
+                    }
+                }
+                for (Ref<Map<Ref<String>, Ref<String>>> it : RefCounted.contexts.valueToRef.values()) {
+                    if (it.dumpedGeneration >= threshold || referenced != null && !referenced.test(it.id)) {
+                        continue;
+                    }
+                    it.dumpedGeneration = gen;
+                    JfrLabels.Context.Builder cb = JfrLabels.Context.newBuilder();
+                    for (Map.Entry<Ref<String>, Ref<String>> kv : it.val.entrySet()) {
+                        cb.putLabels(kv.getKey().id, kv.getValue().id);
+                        if (referenced != null) {
+                            putString(sb, kv.getKey(), threshold, gen);
+                            putString(sb, kv.getValue(), threshold, gen);
+                        }
+                    }
+                    sb.putContexts(it.id, cb.build());
                 }
-                sb.putContexts(it.id, cb.build());
+                PackedContexts.INSTANCE.dump(threshold, gen, referenced, (id, packed) -> {
+                    JfrLabels.Context.Builder cb = JfrLabels.Context.newBuilder();
+                    for (int i = 0; i < packed.length; i += 2) {
+                        cb.putLabels(packed[i], packed[i + 1]);
+                        if (referenced != null) {
+                            putString(sb, RefCounted.strings.idToRef.get(packed[i]), threshold, gen);
+                            putString(sb, RefCounted.strings.idToRef.get(packed[i + 1]), threshold, gen);
+                        }
+                    }
+                    sb.putContexts(id, cb.build());
+                });
+                int budget = gcBudget;
+                RefCounted.contexts.gc(budget);
+                PackedContexts.INSTANCE.gc(budget);
+                RefCounted.strings.gc(budget);
+                return sb.build();
+            }
+        }
+
+        private static void putString(JfrLabels.Snapshot.Builder sb, Ref<String> it, long threshold, long gen) {
+            if (it.dumpedGeneration < threshold && it.dumpedGeneration != gen) {
+                it.dumpedGeneration = gen;
+                sb.putStrings(it.id, it.val);
             }
-            RefCounted.contexts.gc();
-            RefCounted.strings.gc();
-            return sb.build();
         }
     }
 
@@ -57,4 +129,58 @@ public class Pyroscope {
         return staticLabels;
     }
 
+    /**
+     * @return the number of registered label strings, including the ones not referenced anymore which are
+     * collected by the next {@link LabelsWrapper#dump()}
+     */
+    public static int getStringCount() {
+        return RefCounted.strings.valueToRef.size();
+    }
+
+    /**
+     * @return the number of registered contexts in both registries, including the ones not referenced anymore
+     * which are collected by the next {@link LabelsWrapper#dump()}
+     */
+    public static int getContextCount() {
+        return RefCounted.contexts.valueToRef.size() + PackedContexts.INSTANCE.size();
+    }
+
+    /**
+     * Enables the per-thread transition cache for {@link ScopedContext}.
+     * With the cache enabled, entering a label scope that the thread has entered before from the same parent
+     * context does not allocate a labels map and does not touch refcounts. The cost is that up to
+     * a few hundred recently used contexts per thread are kept alive until evicted or until the thread terminates.
+     * Scopes must be closed on the thread they were opened on.
+     * <p>
+     * Meant to be set once at startup, before the first scope is entered. A cache is only touched by its own thread,
+     * so disabling it later does not unpin the contexts held by the caches of live threads, they are only released
+     * once their threads terminate.
+     */
+    public static void setTransitionCacheEnabled(boolean enabled) {
+        TransitionCache.enabled = enabled;
+    }
+
+    /**
+     * Registers new contexts in a compact registry which stores each context as sorted (keyId, valueId) pairs
+     * packed into a {@code long[]}, instead of a map of refs keyed by the map itself.
+     * This reduces the heap footprint of live contexts, which matters with hundreds of thousands of them.
+     * Contexts registered before the switch stay in the registry they were registered in until collected.
+     */
+    public static void setPackedContextsEnabled(boolean enabled) {
+        PackedContexts.enabled = enabled;
+    }
+
+    /**
+     * Limits how many released strings and contexts each {@link LabelsWrapper#dump()} collects per registry.
+     * Released entries are queued when their refcount drops to zero, so collection never scans the registries;
+     * with a limit, a burst of released entries is collected over several dumps instead of stalling one.
+     * Entries waiting to be collected are still included in dumps. Unlimited by default.
+     */
+    public static void setGcBudget(int maxPerDump) {
+        if (maxPerDump <= 0) {
+            throw new IllegalArgumentException("maxPerDump must be positive");
+        }
+        LabelsWrapper.gcBudget = maxPerDump;
+    }
+
 }
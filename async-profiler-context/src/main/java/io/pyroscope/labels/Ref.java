@@ -6,6 +6,8 @@ class Ref<T> {
     public final T val;
     public final AtomicLong refCount = new AtomicLong(1);
     public final Long id;
+    // generation of the last dump this ref was emitted in, guarded by the dump lock
+    long dumpedGeneration;
 
     public Ref(T val, Long id) {
         this.val = val;
@@ -1,30 +1,35 @@
 package io.pyroscope.labels;
 
-import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
 
 class RefCounted<T> {
 
     public static final RefCounted<String> strings = new RefCounted<>((String) -> {
-    });
+    }, true);
 
     public static final RefCounted<Map<Ref<String>, Ref<String>>> contexts = new RefCounted<>(
             (Map<Ref<String>, Ref<String>> context) -> {
                 for (Map.Entry<Ref<String>, Ref<String>> it : context.entrySet()) {
-                    it.getKey().refCount.decrementAndGet();
-                    it.getValue().refCount.decrementAndGet();
+                    strings.release(it.getKey());
+                    strings.release(it.getValue());
                 }
-            }
+            }, false
     );
 
     public final ReleasedCallback<T> releasedCallback;
     public final ConcurrentHashMap<T, Ref<T>> valueToRef = new ConcurrentHashMap<>();
+    // only maintained for strings, which PackedContexts reference by id
+    public final ConcurrentHashMap<Long, Ref<T>> idToRef;
     public final AtomicLong idCounter = new AtomicLong(0);
+    // refs whose refcount dropped to zero, they may have been resurrected since or be queued more than once
+    private final ConcurrentLinkedQueue<Ref<T>> released = new ConcurrentLinkedQueue<>();
 
-    RefCounted(ReleasedCallback<T> releasedCallback) {
+    RefCounted(ReleasedCallback<T> releasedCallback, boolean indexIds) {
         this.releasedCallback = releasedCallback;
+        this.idToRef = indexIds ? new ConcurrentHashMap<>() : null;
     }
 
     Ref<T> acquireRef(T v) {
@@ -42,6 +47,9 @@ class RefCounted<T> {
             });
 
             if (outFresh[0]) {
+                if (idToRef != null) {
+                    idToRef.put(res.id, res);
+                }
                 return res;
             } else {
                 while (true) {
@@ -59,20 +67,43 @@ class RefCounted<T> {
     }
 
 
-    void gc() {
-        Iterator<Ref<T>> it = valueToRef.values().iterator();
-        while (it.hasNext()) {
-            Ref<T> ref = it.next();
+    /**
+     * Drops a reference, a ref which is not referenced anymore becomes a candidate for {@link #gc(int)}.
+     */
+    void release(Ref<T> ref) {
+        if (ref.refCount.decrementAndGet() == 0) {
+            released.add(ref);
+        }
+    }
 
-            if (ref.refCount.get() == 0) {
-                boolean success = ref.refCount.compareAndSet(0, -1);
-                if (success) {
-                    it.remove();
-                    releasedCallback.released(ref.val);
-                }  // else resurrected
+    void releaseById(long id) {
+        Ref<T> ref = idToRef.get(id);
+        if (ref == null) {
+            throw new AssertionError();
+        }
+        release(ref);
+    }
 
-            }
+    /**
+     * Removes up to {@code max} refs which are not referenced anymore.
+     * Only refs released since the previous calls are visited, never the whole table.
+     *
+     * @return the number of candidates visited
+     */
+    int gc(int max) {
+        int n = 0;
+        Ref<T> ref;
+        while (n < max && (ref = released.poll()) != null) {
+            n++;
+            if (ref.refCount.compareAndSet(0, -1)) {
+                valueToRef.remove(ref.val, ref);
+                if (idToRef != null) {
+                    idToRef.remove(ref.id);
+                }
+                releasedCallback.released(ref.val);
+            }  // else resurrected, or already collected through a duplicate
         }
+        return n;
     }
 
     void resetForTesting() {
@@ -9,19 +9,70 @@ import java.util.function.BiConsumer;
 
 public class ScopedContext implements AutoCloseable {
     static final ThreadLocal<Context> context = ThreadLocal.withInitial(() ->
-            new Context(0L, Collections.emptyMap())
+            new Context(0L, Collections.emptyMap(), null, null)
     );
 
+    private static volatile AsyncProfiler asyncProfiler;
+
     final Context previous;
     final Context current;
+    // null if current is pinned by the transition cache or registered in PackedContexts
     final Ref<Map<Ref<String>, Ref<String>>> currentRef;
+    // not null if current is pinned by the thread's transition cache instead of being referenced by this scope
+    final TransitionCache cache;
     boolean closed = false;
     public ScopedContext(LabelsSet labels) {
         previous = context.get();
+        if (TransitionCache.enabled) {
+            cache = TransitionCache.get();
+            Context next = previous;
+            for (int i = 0; i < labels.args.length; i += 2) {
+                next = cache.transition(next, labels.args[i].toString(), labels.args[i + 1].toString());
+            }
+            current = next;
+            currentRef = null;
+            cache.enter(current.id);
+        } else {
+            cache = null;
+            current = register(merge(previous.labels, labels.args));
+            currentRef = current.ref;
+        }
+
+        asyncProfiler().setContextId(current.id);
+        context.set(current);
+    }
+
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (cache != null) {
+            cache.exit(current.id);
+        } else {
+            current.release();
+        }
+        context.set(previous);
+        asyncProfiler().setContextId(previous.id);
+    }
+
+    public void forEach(BiConsumer<String, String> consumer) {
+        for (Map.Entry<Ref<String>, Ref<String>> it : current.labels.entrySet()) {
+            consumer.accept(it.getKey().val, it.getValue().val);
+        }
+    }
+
+    /**
+     * Builds the labels of a child context: the parent labels overridden by the key-value pairs in args.
+     * Every key and value ref in the returned map is referenced once more on behalf of the map.
+     */
+    static Map<Ref<String>, Ref<String>> merge(Map<Ref<String>, Ref<String>> parent, Object[] args) {
         Map<Ref<String>, Ref<String>> nextContext = new HashMap<>(
-                previous.labels.size() + labels.args.length / 2
+                parent.size() + args.length / 2
         );
-        for (Map.Entry<Ref<String>, Ref<String>> it : previous.labels.entrySet()) {
+        for (Map.Entry<Ref<String>, Ref<String>> it : parent.entrySet()) {
             Ref<String> key = it.getKey();
             Ref<String> value = it.getValue();
 
@@ -34,9 +85,9 @@ public class ScopedContext implements AutoCloseable {
             nextContext.put(key, value);
         }
 
-        for (int i = 0; i < labels.args.length; i += 2) {
-            String ks = labels.args[i].toString();
-            String vs = labels.args[i + 1].toString();
+        for (int i = 0; i < args.length; i += 2) {
+            String ks = args[i].toString();
+            String vs = args[i + 1].toString();
             Ref<String> k = RefCounted.strings.acquireRef(ks);
             Ref<String> v = RefCounted.strings.acquireRef(vs);
 
@@ -46,46 +97,65 @@ public class ScopedContext implements AutoCloseable {
                 assertAlive(prev.refCount.decrementAndGet());
             }
         }
+        return nextContext;
+    }
 
+    /**
+     * Acquires a reference to the context with the labels built by {@link #merge(Map, Object[])},
+     * in {@link PackedContexts} if enabled, in {@link RefCounted#contexts} otherwise.
+     * If an equal context is already registered, the references held by the map are handed back.
+     */
+    static Context register(Map<Ref<String>, Ref<String>> nextContext) {
         boolean[] fresh = new boolean[1];
-        currentRef = RefCounted.contexts.acquireRef(nextContext, fresh);
+        Context res;
+        if (PackedContexts.enabled) {
+            long[] packed = PackedContexts.pack(nextContext);
+            long id = PackedContexts.INSTANCE.acquire(packed, fresh);
+            res = new Context(id, nextContext, null, packed);
+        } else {
+            Ref<Map<Ref<String>, Ref<String>>> ref = RefCounted.contexts.acquireRef(nextContext, fresh);
+            res = new Context(ref.id, nextContext, ref, null);
+        }
         if (!fresh[0]) {
             for (Map.Entry<Ref<String>, Ref<String>> it : nextContext.entrySet()) {
-                it.getKey().refCount.decrementAndGet();
-                it.getValue().refCount.decrementAndGet();
+                RefCounted.strings.release(it.getKey());
+                RefCounted.strings.release(it.getValue());
             }
         }
-
-        AsyncProfiler.getInstance().setContextId(currentRef.id);
-        current = new Context(currentRef.id, nextContext);
-        context.set(current);
-    }
-
-
-    @Override
-    public void close() {
-        if (closed) {
-            return;
-        }
-        closed = true;
-        currentRef.refCount.decrementAndGet();
-        context.set(previous);
-        AsyncProfiler.getInstance().setContextId(previous.id);
+        return res;
     }
 
-    public void forEach(BiConsumer<String, String> consumer) {
-        for (Map.Entry<Ref<String>, Ref<String>> it : current.labels.entrySet()) {
-            consumer.accept(it.getKey().val, it.getValue().val);
+    // AsyncProfiler.getInstance is synchronized, avoid taking a global lock on every enter and exit
+    private static AsyncProfiler asyncProfiler() {
+        AsyncProfiler p = asyncProfiler;
+        if (p == null) {
+            p = AsyncProfiler.getInstance();
+            asyncProfiler = p;
         }
+        return p;
     }
 
     static class Context {
         public final Long id;
         public final Map<Ref<String>, Ref<String>> labels;
+        // the registry entry this context references, exactly one is not null except for the empty context
+        final Ref<Map<Ref<String>, Ref<String>>> ref;
+        final long[] packed;
 
-        public Context(Long id, Map<Ref<String>, Ref<String>> labels) {
+        public Context(Long id, Map<Ref<String>, Ref<String>> labels,
+                       Ref<Map<Ref<String>, Ref<String>>> ref, long[] packed) {
             this.id = id;
             this.labels = labels;
+            this.ref = ref;
+            this.packed = packed;
+        }
+
+        void release() {
+            if (ref != null) {
+                RefCounted.contexts.release(ref);
+            } else {
+                PackedContexts.INSTANCE.release(packed);
+            }
         }
     }
 
@@ -0,0 +1,164 @@
+package io.pyroscope.labels;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Per-thread cache of context transitions keyed by (parent context id, key ref, value ref).
+ * <p>
+ * Every cached child context is pinned by the cache: the cache owns one reference to it, so entering a cached
+ * scope neither builds a labels map nor touches refcounts. A pin is released when its slot is reused by another
+ * transition (deferred while the context is still active on the owning thread) or, for terminated threads,
+ * on the next {@link Pyroscope.LabelsWrapper#dump()}.
+ * <p>
+ * A cache is only ever accessed by its owning thread, except for the cleanup of terminated threads.
+ */
+final class TransitionCache {
+    static final int CAPACITY = 256;
+    private static final int MASK = CAPACITY - 1;
+
+    // set once at startup, see Pyroscope#setTransitionCacheEnabled
+    static volatile boolean enabled = false;
+
+    private static final ConcurrentLinkedQueue<TransitionCache> caches = new ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<TransitionCache> cache = ThreadLocal.withInitial(() -> {
+        TransitionCache c = new TransitionCache(Thread.currentThread());
+        caches.add(c);
+        return c;
+    });
+
+    private final WeakReference<Thread> owner;
+    private final long[] parentIds = new long[CAPACITY];
+    private final Ref<String>[] keys;
+    private final Ref<String>[] values;
+    private final ScopedContext.Context[] contexts = new ScopedContext.Context[CAPACITY];
+
+    // ids of the cached contexts currently entered on the owning thread, innermost last
+    private long[] active = new long[16];
+    private int depth = 0;
+    // evicted pins which could not be released because their contexts were still active
+    private final ArrayList<ScopedContext.Context> deferred = new ArrayList<>();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private TransitionCache(Thread owner) {
+        this.owner = new WeakReference<>(owner);
+        this.keys = new Ref[CAPACITY];
+        this.values = new Ref[CAPACITY];
+    }
+
+    static TransitionCache get() {
+        return cache.get();
+    }
+
+    /**
+     * Resolves the context reached from {@code parent} by setting {@code key} to {@code value}.
+     * The returned context is pinned by this cache.
+     */
+    ScopedContext.Context transition(ScopedContext.Context parent, String key, String value) {
+        int i = index(parent.id, key, value);
+        Ref<String> k = keys[i];
+        if (k != null && parentIds[i] == parent.id && k.val.equals(key) && values[i].val.equals(value)) {
+            return contexts[i];
+        }
+
+        Map<Ref<String>, Ref<String>> next = ScopedContext.merge(parent.labels, new Object[]{key, value});
+        ScopedContext.Context child = ScopedContext.register(next);
+
+        // the parent is no longer needed, it is now safe to drop whatever occupied the slot
+        ScopedContext.Context evicted = contexts[i];
+        parentIds[i] = parent.id;
+        // both strings are pinned by the child context, so these are the refs it holds
+        keys[i] = RefCounted.strings.valueToRef.get(key);
+        values[i] = RefCounted.strings.valueToRef.get(value);
+        contexts[i] = child;
+        if (evicted != null) {
+            unpin(evicted);
+        }
+        return child;
+    }
+
+    void enter(long id) {
+        if (depth == active.length) {
+            long[] grown = new long[active.length * 2];
+            System.arraycopy(active, 0, grown, 0, depth);
+            active = grown;
+        }
+        active[depth++] = id;
+    }
+
+    void exit(long id) {
+        for (int i = depth - 1; i >= 0; i--) {
+            if (active[i] == id) {
+                System.arraycopy(active, i + 1, active, i, depth - i - 1);
+                depth--;
+                break;
+            }
+        }
+        if (!deferred.isEmpty()) {
+            Iterator<ScopedContext.Context> it = deferred.iterator();
+            while (it.hasNext()) {
+                ScopedContext.Context c = it.next();
+                if (!isActive(c.id)) {
+                    it.remove();
+                    c.release();
+                }
+            }
+        }
+    }
+
+    private void unpin(ScopedContext.Context c) {
+        if (isActive(c.id)) {
+            deferred.add(c);
+        } else {
+            c.release();
+        }
+    }
+
+    private boolean isActive(long id) {
+        for (int i = 0; i < depth; i++) {
+            if (active[i] == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void releaseAll() {
+        for (int i = 0; i < CAPACITY; i++) {
+            if (contexts[i] != null) {
+                contexts[i].release();
+                keys[i] = null;
+                values[i] = null;
+                contexts[i] = null;
+            }
+        }
+        for (ScopedContext.Context c : deferred) {
+            c.release();
+        }
+        deferred.clear();
+        depth = 0;
+    }
+
+    /**
+     * Releases the pins held by caches of terminated threads, so their contexts can be collected.
+     */
+    static void releaseTerminated() {
+        for (TransitionCache c : caches) {
+            Thread t = c.owner.get();
+            // remove decides the winner if dumps race
+            if ((t == null || !t.isAlive()) && caches.remove(c)) {
+                c.releaseAll();
+            }
+        }
+    }
+
+    private static int index(long parentId, String key, String value) {
+        int h = Long.hashCode(parentId);
+        h = 31 * h + key.hashCode();
+        h = 31 * h + value.hashCode();
+        return (h ^ (h >>> 16)) & MASK;
+    }
+}
@@ -231,6 +231,106 @@ public class LabelsTest {
         assertEquals(0, RefCounted.contexts.valueToRef.size());
     }
 
+    @Test
+    void testDeltaDump() {
+        try (ScopedContext s = new ScopedContext(new LabelsSet("k1", "v1"))) {
+            // only what was registered after the full dump in setUp
+            Snapshot snapshot = Pyroscope.LabelsWrapper.dump(true);
+            assertEquals(1, snapshot.getContextsCount());
+            assertEquals(2, snapshot.getStringsCount());
+
+            // nothing new
+            snapshot = Pyroscope.LabelsWrapper.dump(true);
+            assertEquals(0, snapshot.getContextsCount());
+            assertEquals(0, snapshot.getStringsCount());
+
+            try (ScopedContext s2 = new ScopedContext(new LabelsSet("k2", "v1"))) {
+                snapshot = Pyroscope.LabelsWrapper.dump(true);
+                assertEquals(1, snapshot.getContextsCount());
+                Map<Long, Long> labels = mapOf(1L, 2L);
+                labels.put(3L, 2L);
+                assertEquals(labels, snapshot.getContextsMap().get(s2.current.id).getLabelsMap());
+                assertEquals(1, snapshot.getStringsCount());
+                assertEquals("k2", snapshot.getStringsMap().get(3L));
+            }
+
+            // a full dump resyncs everything which is still registered
+            snapshot = Pyroscope.LabelsWrapper.dump(false);
+            assertEquals(2, snapshot.getContextsCount());
+            assertEquals(3, snapshot.getStringsCount());
+            snapshot = Pyroscope.LabelsWrapper.dump(true);
+            assertEquals(0, snapshot.getContextsCount());
+        }
+        Pyroscope.LabelsWrapper.dump(true);
+        assertEquals(0, RefCounted.strings.valueToRef.size());
+        assertEquals(0, RefCounted.contexts.valueToRef.size());
+    }
+
+    @Test
+    void testReferencedDump() {
+        try (ScopedContext s = new ScopedContext(new LabelsSet("k1", "v1"))) {
+            try (ScopedContext s2 = new ScopedContext(new LabelsSet("k2", "v2"))) {
+                long id = s2.current.id;
+                Snapshot snapshot = Pyroscope.LabelsWrapper.dump(false, it -> it == id);
+                assertEquals(1, snapshot.getContextsCount());
+                assertEquals(4, snapshot.getStringsCount());
+
+                snapshot = Pyroscope.LabelsWrapper.dump(false, it -> it == s.current.id);
+                assertEquals(1, snapshot.getContextsCount());
+                assertEquals(2, snapshot.getStringsCount());
+                assertEquals("k1", snapshot.getStringsMap().get(1L));
+                assertEquals("v1", snapshot.getStringsMap().get(2L));
+
+                snapshot = Pyroscope.LabelsWrapper.dump(false, it -> false);
+                assertEquals(0, snapshot.getContextsCount());
+                assertEquals(0, snapshot.getStringsCount());
+            }
+        }
+        // contexts which are left out are still collected
+        Pyroscope.LabelsWrapper.dump(false, it -> false);
+        assertEquals(0, RefCounted.strings.valueToRef.size());
+        assertEquals(0, RefCounted.contexts.valueToRef.size());
+    }
+
+    @Test
+    void testGcBudget() {
+        for (int i = 0; i < 10; i++) {
+            try (ScopedContext s = new ScopedContext(new LabelsSet("k", "v" + i))) {
+                assertEquals(1, s.currentRef.refCount.get());
+            }
+        }
+        Pyroscope.setGcBudget(3);
+        try {
+            Pyroscope.LabelsWrapper.dump();
+            assertEquals(7, RefCounted.contexts.valueToRef.size());
+            Snapshot snapshot = Pyroscope.LabelsWrapper.dump();
+            // entries waiting to be collected are still dumped
+            assertEquals(7, snapshot.getContextsCount());
+            assertEquals(4, RefCounted.contexts.valueToRef.size());
+        } finally {
+            Pyroscope.setGcBudget(Integer.MAX_VALUE);
+        }
+        Pyroscope.LabelsWrapper.dump();
+        Pyroscope.LabelsWrapper.dump();
+        assertEquals(0, RefCounted.contexts.valueToRef.size());
+        assertEquals(0, RefCounted.strings.valueToRef.size());
+    }
+
+    @Test
+    void testCounts() {
+        assertEquals(0, Pyroscope.getContextCount());
+        assertEquals(0, Pyroscope.getStringCount());
+        try (ScopedContext s = new ScopedContext(new LabelsSet("k1", "v1", "k2", "v2"))) {
+            assertEquals(1, Pyroscope.getContextCount());
+            assertEquals(4, Pyroscope.getStringCount());
+        }
+        // released, but only collected by the dump
+        assertEquals(1, Pyroscope.getContextCount());
+        Pyroscope.LabelsWrapper.dump();
+        assertEquals(0, Pyroscope.getContextCount());
+        assertEquals(0, Pyroscope.getStringCount());
+    }
+
     private static Map<Long, Long> mapOf(Long k, Long v) {
         HashMap<Long, Long> res = new HashMap<>();
         res.put(k, v);
@@ -0,0 +1,160 @@
+package io.pyroscope.labels;
+
+import io.pyroscope.labels.io.pyroscope.PyroscopeAsyncProfiler;
+import io.pyroscope.labels.pb.JfrLabels;
+import io.pyroscope.labels.pb.JfrLabels.Snapshot;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class PackedContextsTest {
+    static {
+        PyroscopeAsyncProfiler.getAsyncProfiler();
+    }
+
+    @BeforeEach
+    void setUp() {
+        RefCounted.strings.resetForTesting();
+        RefCounted.contexts.resetForTesting();
+        Pyroscope.LabelsWrapper.dump();
+        Pyroscope.setPackedContextsEnabled(true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Pyroscope.setPackedContextsEnabled(false);
+    }
+
+    @Test
+    void testRegisterAndCollect() {
+        long id;
+        try (ScopedContext s = new ScopedContext(new LabelsSet("k1", "v1", "k2", "v2"))) {
+            assertNull(s.currentRef);
+            id = s.current.id;
+            try (ScopedContext s2 = new ScopedContext(new LabelsSet("k2", "v2"))) {
+                // same labels, same context
+                assertEquals(id, s2.current.id);
+            }
+            assertEquals(1, PackedContexts.INSTANCE.size());
+            assertEquals(0, RefCounted.contexts.valueToRef.size());
+
+            Snapshot snapshot = Pyroscope.LabelsWrapper.dump();
+            assertEquals(1, snapshot.getContextsCount());
+            assertEquals(labels("k1", "v1", "k2", "v2"), resolve(snapshot, id));
+        }
+        assertEquals(1, PackedContexts.INSTANCE.size());
+
+        Snapshot snapshot = Pyroscope.LabelsWrapper.dump();
+        // released contexts are reported once more
+        assertEquals(1, snapshot.getContextsCount());
+        assertEquals(0, PackedContexts.INSTANCE.size());
+        assertEquals(0, RefCounted.strings.valueToRef.size());
+        assertEquals(0, RefCounted.strings.idToRef.size());
+
+        snapshot = Pyroscope.LabelsWrapper.dump();
+        assertEquals(0, snapshot.getContextsCount());
+        assertEquals(0, snapshot.getStringsCount());
+    }
+
+    @Test
+    void testPackIsOrderIndependent() {
+        Ref<String> a = new Ref<>("a", 3L);
+        Ref<String> b = new Ref<>("b", 1L);
+        Ref<String> c = new Ref<>("c", 2L);
+        Map<Ref<String>, Ref<String>> m1 = new HashMap<>();
+        m1.put(a, b);
+        m1.put(c, a);
+        m1.put(b, c);
+        long[] packed = PackedContexts.pack(m1);
+        assertEquals("[1, 2, 2, 3, 3, 1]", Arrays.toString(packed));
+    }
+
+    @Test
+    void testCollectAcrossResize() {
+        PackedContexts registry = new PackedContexts();
+        boolean[] fresh = new boolean[1];
+        for (int i = 0; i < 1000; i++) {
+            long id = registry.acquire(new long[]{i, i}, fresh);
+            assertEquals(true, fresh[0]);
+            assertEquals(id, registry.acquire(new long[]{i, i}, fresh));
+            assertEquals(false, fresh[0]);
+        }
+        assertEquals(1000, registry.size());
+        for (int i = 0; i < 1000; i++) {
+            registry.release(new long[]{i, i});
+            if (i % 2 == 0) {
+                registry.release(new long[]{i, i});
+            }
+        }
+        // every other context is collected, the remaining ones are still found after backward shifts
+        for (int i = 0; i < 1000; i += 2) {
+            RefCounted.strings.idToRef.put((long) i, new Ref<>("s" + i, (long) i));
+        }
+        registry.gc(Integer.MAX_VALUE);
+        assertEquals(500, registry.size());
+        for (int i = 1; i < 1000; i += 2) {
+            registry.acquire(new long[]{i, i}, fresh);
+            assertEquals(false, fresh[0]);
+        }
+        RefCounted.strings.idToRef.clear();
+    }
+
+    @Test
+    void stressTest() throws InterruptedException {
+        final int n = 8;
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            threads[i] = new Thread(() -> {
+                final Random r = new Random();
+                for (int j = 0; j < 10000; j++) {
+                    String k = "s" + r.nextInt(20);
+                    String v = "s" + r.nextInt(20);
+                    Pyroscope.LabelsWrapper.run(new LabelsSet(k, v), () -> {
+                        String k2 = "s" + r.nextInt(20);
+                        String v2 = "s" + r.nextInt(20);
+                        Pyroscope.LabelsWrapper.run(new LabelsSet(k2, v2), () -> {
+
+                        });
+                    });
+                    if (j % 1000 == 0) {
+                        Pyroscope.LabelsWrapper.dump();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Pyroscope.LabelsWrapper.dump();
+        Pyroscope.LabelsWrapper.dump();
+        assertEquals(0, PackedContexts.INSTANCE.size());
+        assertEquals(0, RefCounted.strings.valueToRef.size());
+        assertEquals(0, RefCounted.strings.idToRef.size());
+    }
+
+    private static Map<String, String> resolve(Snapshot snapshot, long id) {
+        Map<String, String> res = new HashMap<>();
+        JfrLabels.Context ctx = snapshot.getContextsMap().get(id);
+        for (Map.Entry<Long, Long> it : ctx.getLabelsMap().entrySet()) {
+            res.put(snapshot.getStringsMap().get(it.getKey()), snapshot.getStringsMap().get(it.getValue()));
+        }
+        return res;
+    }
+
+    private static Map<String, String> labels(String... kv) {
+        Map<String, String> res = new HashMap<>();
+        for (int i = 0; i < kv.length; i += 2) {
+            res.put(kv[i], kv[i + 1]);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,144 @@
+package io.pyroscope.labels;
+
+import io.pyroscope.labels.io.pyroscope.PyroscopeAsyncProfiler;
+import io.pyroscope.labels.pb.JfrLabels.Snapshot;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class TransitionCacheTest {
+    static {
+        PyroscopeAsyncProfiler.getAsyncProfiler();
+    }
+
+    @BeforeEach
+    void setUp() {
+        RefCounted.strings.resetForTesting();
+        RefCounted.contexts.resetForTesting();
+        Pyroscope.LabelsWrapper.dump();
+        Pyroscope.setTransitionCacheEnabled(true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Pyroscope.setTransitionCacheEnabled(false);
+    }
+
+    @Test
+    void testCachedEnterDoesNotTouchRefCounts() throws Throwable {
+        runOnThread(() -> {
+            ScopedContext.Context first;
+            try (ScopedContext s = new ScopedContext(new LabelsSet("k1", "v1"))) {
+                assertNull(s.currentRef);
+                assertEquals(0, s.previous.id);
+                assertEquals(1, s.current.id);
+                first = s.current;
+            }
+            Ref<String> k1 = RefCounted.strings.valueToRef.get("k1");
+            assertEquals(1, k1.refCount.get());
+            assertEquals(1, RefCounted.contexts.valueToRef.get(first.labels).refCount.get());
+
+            for (int i = 0; i < 10; i++) {
+                try (ScopedContext s = new ScopedContext(new LabelsSet("k1", "v1"))) {
+                    assertSame(first, s.current);
+                    assertEquals(1, k1.refCount.get());
+                    assertEquals(1, RefCounted.contexts.valueToRef.get(first.labels).refCount.get());
+                }
+            }
+            assertEquals(0, ScopedContext.context.get().id);
+
+            Snapshot snapshot = Pyroscope.LabelsWrapper.dump();
+            assertEquals(1, snapshot.getContextsCount());
+            assertEquals(1, RefCounted.contexts.valueToRef.size());
+        });
+
+        // the pins of the terminated thread are released by the next dump, the dump after collects them
+        Snapshot snapshot = Pyroscope.LabelsWrapper.dump();
+        assertEquals(1, snapshot.getContextsCount());
+        assertEquals(0, RefCounted.contexts.valueToRef.size());
+        assertEquals(0, RefCounted.strings.valueToRef.size());
+    }
+
+    @Test
+    void testNestedMultiPairLabelSets() throws Throwable {
+        runOnThread(() -> {
+            try (ScopedContext outer = new ScopedContext(new LabelsSet("k1", "v1", "k2", "v2"))) {
+                try (ScopedContext inner = new ScopedContext(new LabelsSet("k1", "v3"))) {
+                    List<String> labels = new ArrayList<>();
+                    inner.forEach((k, v) -> labels.add(k + "=" + v));
+                    labels.sort(String::compareTo);
+                    assertEquals("[k1=v3, k2=v2]", labels.toString());
+                    assertEquals(outer.current.id, inner.previous.id);
+                }
+                assertEquals(outer.current.id, ScopedContext.context.get().id);
+            }
+        });
+        Pyroscope.LabelsWrapper.dump();
+        Pyroscope.LabelsWrapper.dump();
+        assertEquals(0, RefCounted.contexts.valueToRef.size());
+        assertEquals(0, RefCounted.strings.valueToRef.size());
+    }
+
+    @Test
+    void stressTest() throws Throwable {
+        final int n = 8;
+        Thread[] threads = new Thread[n];
+        Throwable[] errors = new Throwable[n];
+        for (int i = 0; i < n; i++) {
+            final int id = i;
+            threads[i] = new Thread(() -> {
+                final Random r = new Random();
+                // more distinct transitions than the cache capacity to exercise eviction
+                for (int j = 0; j < 10000; j++) {
+                    String k = "s" + r.nextInt(40);
+                    String v = "s" + r.nextInt(40);
+                    Pyroscope.LabelsWrapper.run(new LabelsSet(k, v), () -> {
+                        String k2 = "s" + r.nextInt(40);
+                        String v2 = "s" + r.nextInt(40);
+                        Pyroscope.LabelsWrapper.run(new LabelsSet(k2, v2), () -> {
+
+                        });
+                    });
+                    if (j % 1000 == 0) {
+                        Pyroscope.LabelsWrapper.dump();
+                    }
+                }
+            });
+            threads[i].setUncaughtExceptionHandler((t, e) -> errors[id] = e);
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (Throwable e : errors) {
+            if (e != null) {
+                throw e;
+            }
+        }
+        Pyroscope.LabelsWrapper.dump();
+        Pyroscope.LabelsWrapper.dump();
+        assertEquals(0, ScopedContext.context.get().id);
+        assertEquals(0, RefCounted.strings.valueToRef.size());
+        assertEquals(0, RefCounted.contexts.valueToRef.size());
+    }
+
+    // runs r on a fresh thread, which terminates before this returns
+    private static void runOnThread(Runnable r) throws Throwable {
+        Throwable[] error = new Throwable[1];
+        Thread t = new Thread(r);
+        t.setUncaughtExceptionHandler((thread, e) -> error[0] = e);
+        t.start();
+        t.join();
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package io.pyroscope.benchmarks;
+
+import io.pyroscope.javaagent.config.AppName;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and formatting an application name with labels, done for every upload.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppNameBenchmark {
+    @Param({"0", "4", "16"})
+    public int labels;
+
+    private String name;
+    private AppName appName;
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder("my.app.cpu");
+        if (labels > 0) {
+            sb.append('{');
+            for (int i = 0; i < labels; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append("key").append(i).append('=').append("value").append(i);
+            }
+            sb.append('}');
+        }
+        name = sb.toString();
+        appName = AppName.parse(name);
+    }
+
+    @Benchmark
+    public AppName parse() {
+        return AppName.parse(name);
+    }
+
+    @Benchmark
+    public String format() {
+        return appName.toString();
+    }
+}
@@ -0,0 +1,79 @@
+package io.pyroscope.benchmarks;
+
+import io.pyroscope.javaagent.util.zip.GzipRequestBody;
+import io.pyroscope.javaagent.util.zip.GzipSink;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compressing a JFR-sized payload into a request sink: {@link GzipSink#gzip(RequestBody, int)} over
+ * an in-memory or file body, against {@link GzipRequestBody}, at the fastest, the default and the best
+ * compression level.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GzipBenchmark {
+    @Param({"1048576", "16777216"})
+    public int size;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    private byte[] data;
+    private File file;
+    private BufferedSink sink;
+
+    @Setup
+    public void setUp() throws IOException {
+        data = new byte[size];
+        Random r = new Random(0);
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) r.nextInt(16);
+        }
+        file = File.createTempFile("pyroscope-bench", ".jfr");
+        file.deleteOnExit();
+        Files.write(file.toPath(), data);
+        sink = Okio.buffer(Okio.blackhole());
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public void gzipSinkBytes() throws IOException {
+        GzipSink.gzip(RequestBody.create(data), level).writeTo(sink);
+        sink.flush();
+    }
+
+    @Benchmark
+    public void gzipSinkFile() throws IOException {
+        GzipSink.gzip(RequestBody.create(file, null), level).writeTo(sink);
+        sink.flush();
+    }
+
+    @Benchmark
+    public void gzipRequestBodyBytes() throws IOException {
+        GzipRequestBody.create(data, level, null).writeTo(sink);
+        sink.flush();
+    }
+
+    @Benchmark
+    public void gzipRequestBodyFile() throws IOException {
+        GzipRequestBody.create(file, level, null).writeTo(sink);
+        sink.flush();
+    }
+}
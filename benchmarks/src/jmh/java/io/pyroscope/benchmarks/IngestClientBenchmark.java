@@ -0,0 +1,94 @@
+package io.pyroscope.benchmarks;
+
+import com.sun.net.httpserver.HttpServer;
+import io.pyroscope.javaagent.config.Config;
+import io.pyroscope.javaagent.impl.PyroscopeExporter;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload latency against a local mock ingest server for the client settings of {@link Config}:
+ * a pooled connection against a new connection per upload, with and without the DNS cache.
+ * The JDK server used here speaks HTTP/1.1 only, so HTTP/2 prior knowledge is not covered.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IngestClientBenchmark {
+    @Param({"5", "0"})
+    public int maxIdleConnections;
+
+    @Param({"false", "true"})
+    public boolean dnsCache;
+
+    @Param({"65536"})
+    public int size;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private OkHttpClient client;
+    private Request request;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ingest", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] buf = new byte[8192];
+                while (in.read(buf) >= 0) {
+                    // drain
+                }
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        String address = "http://localhost:" + server.getAddress().getPort();
+        Config config = new Config.Builder()
+            .setServerAddress(address)
+            .setIngestMaxIdleConnections(maxIdleConnections)
+            .setIngestDnsCacheTtl(dnsCache ? Duration.ofMinutes(1) : null)
+            .build();
+        client = PyroscopeExporter.newClient(config);
+
+        byte[] body = new byte[size];
+        new Random(0).nextBytes(body);
+        request = new Request.Builder()
+            .url(address + "/ingest")
+            .post(RequestBody.create(body))
+            .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+        server.stop(0);
+        serverExecutor.shutdown();
+    }
+
+    @Benchmark
+    public int upload() throws IOException {
+        try (Response response = client.newCall(request).execute()) {
+            return response.code();
+        }
+    }
+}
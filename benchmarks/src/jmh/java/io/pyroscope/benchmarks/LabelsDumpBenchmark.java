@@ -0,0 +1,56 @@
+package io.pyroscope.benchmarks;
+
+import io.pyroscope.labels.LabelsSet;
+import io.pyroscope.labels.Pyroscope;
+import io.pyroscope.labels.ScopedContext;
+import io.pyroscope.labels.io.pyroscope.PyroscopeAsyncProfiler;
+import io.pyroscope.labels.pb.JfrLabels;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full {@link Pyroscope.LabelsWrapper#dump()} of {@code contexts} live contexts, in either context registry.
+ * The contexts are kept alive by nested open scopes, each one overrides the labels of its parent, so every
+ * scope holds a distinct context of two labels. Nothing is released, every dump emits and collects the same.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LabelsDumpBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int contexts;
+
+    @Param({"false", "true"})
+    public boolean packedContexts;
+
+    private ScopedContext[] scopes;
+
+    @Setup
+    public void setUp() {
+        PyroscopeAsyncProfiler.getAsyncProfiler();
+        Pyroscope.setPackedContextsEnabled(packedContexts);
+        scopes = new ScopedContext[contexts];
+        for (int i = 0; i < contexts; i++) {
+            scopes[i] = new ScopedContext(new LabelsSet("endpoint", "/api/" + (i % 100), "request", Integer.toString(i)));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (int i = scopes.length - 1; i >= 0; i--) {
+            scopes[i].close();
+        }
+        scopes = null;
+        Pyroscope.LabelsWrapper.dump();
+        Pyroscope.setPackedContextsEnabled(false);
+    }
+
+    @Benchmark
+    public JfrLabels.Snapshot dump() {
+        return Pyroscope.LabelsWrapper.dump();
+    }
+}
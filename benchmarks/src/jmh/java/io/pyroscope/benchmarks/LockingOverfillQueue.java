@@ -0,0 +1,54 @@
+package io.pyroscope.benchmarks;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The lock based {@link io.pyroscope.javaagent.OverfillQueue} the agent used before it became lock-free,
+ * kept as the baseline of {@link OverfillQueueBenchmark}.
+ */
+final class LockingOverfillQueue<E> {
+    private final ArrayBlockingQueue<E> innerQueue;
+    private final ReentrantLock lock = new ReentrantLock(false);
+    private final Condition notEmpty = lock.newCondition();
+
+    LockingOverfillQueue(final int capacity) {
+        this.innerQueue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    void put(final E element) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (!innerQueue.offer(element)) {
+                innerQueue.poll();
+                innerQueue.offer(element);
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            E element;
+            while ((element = innerQueue.poll()) == null) {
+                notEmpty.await();
+            }
+            return element;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    E poll() {
+        lock.lock();
+        try {
+            return innerQueue.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
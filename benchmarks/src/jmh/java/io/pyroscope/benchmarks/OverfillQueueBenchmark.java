@@ -0,0 +1,78 @@
+package io.pyroscope.benchmarks;
+
+import io.pyroscope.javaagent.OverfillQueue;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Several producers putting into one queue drained by a single consumer, as when schedulers share an exporter:
+ * the lock-free {@link OverfillQueue} against the previous {@link LockingOverfillQueue}.
+ * The consumer polls so that the iteration can end while the queue is empty.
+ * The uncontended benchmarks put and take on a single thread, take never finds the queue empty and does not park.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OverfillQueueBenchmark {
+    private static final Object ELEMENT = new Object();
+
+    @Param({"8", "1024"})
+    public int capacity;
+
+    private OverfillQueue<Object> lockFree;
+    private LockingOverfillQueue<Object> locking;
+
+    @Setup
+    public void setUp() {
+        lockFree = new OverfillQueue<>(capacity);
+        locking = new LockingOverfillQueue<>(capacity);
+    }
+
+    @Benchmark
+    @Group("lockFree")
+    @GroupThreads(4)
+    public void lockFreePut() throws InterruptedException {
+        lockFree.put(ELEMENT);
+    }
+
+    @Benchmark
+    @Group("lockFree")
+    @GroupThreads(1)
+    public Object lockFreePoll() {
+        return lockFree.poll();
+    }
+
+    @Benchmark
+    @Group("lockFreeUncontended")
+    @GroupThreads(1)
+    public Object lockFreePutTake() throws InterruptedException {
+        lockFree.put(ELEMENT);
+        return lockFree.take();
+    }
+
+    @Benchmark
+    @Group("lockingUncontended")
+    @GroupThreads(1)
+    public Object lockingPutTake() throws InterruptedException {
+        locking.put(ELEMENT);
+        return locking.take();
+    }
+
+    @Benchmark
+    @Group("locking")
+    @GroupThreads(4)
+    public void lockingPut() throws InterruptedException {
+        locking.put(ELEMENT);
+    }
+
+    @Benchmark
+    @Group("locking")
+    @GroupThreads(1)
+    public Object lockingPoll() {
+        return locking.poll();
+    }
+}
@@ -0,0 +1,73 @@
+package io.pyroscope.benchmarks;
+
+import io.pyroscope.javaagent.util.zip.GzipRequestBody;
+import io.pyroscope.javaagent.util.zip.ParallelGzip;
+import okio.BufferedSink;
+import okio.Okio;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link GzipRequestBody} of a JFR-sized payload compressed serially, {@code threads} = 1, against block-parallel
+ * on a {@link ParallelGzip} pool, across compression levels and sizes up to a large JFR recording.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelGzipBenchmark {
+    @Param({"1048576", "16777216", "50331648"})
+    public int size;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    private byte[] data;
+    private File file;
+    private ParallelGzip parallel;
+    private BufferedSink sink;
+
+    @Setup
+    public void setUp() throws IOException {
+        data = new byte[size];
+        Random r = new Random(0);
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) r.nextInt(16);
+        }
+        file = File.createTempFile("pyroscope-bench", ".jfr");
+        file.deleteOnExit();
+        Files.write(file.toPath(), data);
+        parallel = threads > 1 ? new ParallelGzip(threads) : null;
+        sink = Okio.buffer(Okio.blackhole());
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+        if (parallel != null) {
+            parallel.shutdown();
+        }
+    }
+
+    @Benchmark
+    public void bytes() throws IOException {
+        GzipRequestBody.create(data, level, null, parallel).writeTo(sink);
+        sink.flush();
+    }
+
+    @Benchmark
+    public void file() throws IOException {
+        GzipRequestBody.create(file, level, null, parallel).writeTo(sink);
+        sink.flush();
+    }
+}
@@ -0,0 +1,75 @@
+package io.pyroscope.benchmarks;
+
+import io.pyroscope.labels.LabelsSet;
+import io.pyroscope.labels.Pyroscope;
+import io.pyroscope.labels.ScopedContext;
+import io.pyroscope.labels.io.pyroscope.PyroscopeAsyncProfiler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enter/exit cost of {@link ScopedContext} with and without the transition cache, in either context registry.
+ * Run with the gc profiler (enabled by default in build.gradle) and compare gc.alloc.rate.norm:
+ * with the cache enabled, entering a previously seen scope should allocate (close to) nothing.
+ * Every level cycles through {@code cardinality} label values, high cardinalities overflow the transition cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScopedContextBenchmark {
+    @Param({"false", "true"})
+    public boolean transitionCache;
+
+    @Param({"false", "true"})
+    public boolean packedContexts;
+
+    @Param({"1", "3"})
+    public int depth;
+
+    @Param({"1", "1000"})
+    public int cardinality;
+
+    private LabelsSet[][] labels;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        PyroscopeAsyncProfiler.getAsyncProfiler();
+        Pyroscope.setTransitionCacheEnabled(transitionCache);
+        Pyroscope.setPackedContextsEnabled(packedContexts);
+        labels = new LabelsSet[depth][cardinality];
+        for (int i = 0; i < depth; i++) {
+            for (int j = 0; j < cardinality; j++) {
+                labels[i][j] = new LabelsSet("key" + i, "value" + j);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Pyroscope.setTransitionCacheEnabled(false);
+        Pyroscope.setPackedContextsEnabled(false);
+        Pyroscope.LabelsWrapper.dump();
+    }
+
+    @Benchmark
+    public void enterExit() {
+        if (++next == cardinality) {
+            next = 0;
+        }
+        enter(0);
+    }
+
+    private void enter(int level) {
+        if (level == depth) {
+            return;
+        }
+        try (ScopedContext ignored = new ScopedContext(labels[level][next])) {
+            enter(level + 1);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package io.pyroscope.labels;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RefCounted#gc(int)} of {@code released} strings whose refcount dropped to zero, the collection part of
+ * every labels dump. Lives in the labels package to reach the package private registry.
+ * A private registry is used, so the global ones are not touched.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RefCountedGcBenchmark {
+    @Param({"1000", "100000"})
+    public int released;
+
+    private String[] values;
+    private RefCounted<String> registry;
+
+    @Setup(Level.Trial)
+    public void setUpValues() {
+        values = new String[released];
+        for (int i = 0; i < released; i++) {
+            values[i] = "value" + i;
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        registry = new RefCounted<>(s -> {
+        }, true);
+        for (String value : values) {
+            registry.release(registry.acquireRef(value));
+        }
+    }
+
+    @Benchmark
+    public int gc() {
+        return registry.gc(Integer.MAX_VALUE);
+    }
+}